@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -25,6 +27,11 @@ import simpledb.transaction.TransactionId;
 public class Parser {
     static boolean explain = false;
 
+    /** ZQL has no LIMIT clause, so a trailing "LIMIT n" is taken off a
+        statement before it is parsed and added to its logical plan. */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d+)\\s*(;\\s*)?$", Pattern.CASE_INSENSITIVE);
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -278,12 +285,61 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /** The plans of the SELECT statements run recently */
+    private final StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
+
+    StatementCache getStatementCache() {
+        return statementCache;
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
-        Query query = new Query(tId);
+        return handleQueryStatement(s, tId, -1);
+    }
 
+    /**
+     * Plan and return a query that returns at most limit tuples, or every
+     * tuple if limit is -1.
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
+        return planQuery(lp, tId);
+    }
+
+    /**
+     * Plan and return a SELECT statement through the statement cache: its
+     * cached plan, with its constants bound in, if there is one, else the
+     * plan of the statement parsed with placeholder constants, which is
+     * cached for the next time.
+     */
+    Query handleCachedQueryStatement(StatementCache.Statement s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        StatementCache.Entry entry = statementCache.get(s);
+        if (entry == null) {
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    s.template().getBytes(StandardCharsets.UTF_8)));
+            ZStatement stmt = p.readStatement();
+            if (!(stmt instanceof ZQuery))
+                throw new simpledb.ParsingException("Not a SELECT statement: " + s.key);
+            entry = statementCache.put(s, parseQueryLogicalPlan(tId, (ZQuery) stmt));
+        }
+        LogicalPlan lp = entry.bind(s);
+        if (limit >= 0)
+            lp.addLimit(limit);
+        Query query = planQuery(lp, tId);
+        entry.planned(lp);
+        return query;
+    }
+
+    private Query planQuery(LogicalPlan lp, TransactionId tId)
+            throws simpledb.ParsingException {
+        Query query = new Query(tId);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -386,7 +442,8 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        // INSERT ... SELECT may load many rows; append them in bulk
+        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId, s.getQuery() != null));
         return insertQ;
     }
 
@@ -463,14 +520,34 @@ public class Parser {
         }
     }
 
+    /**
+     * @return the value of the trailing LIMIT clause of a statement, or -1
+     *   if it has none
+     */
+    static int limitOf(String sql) {
+        Matcher m = LIMIT_CLAUSE.matcher(sql);
+        return m.find() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * @return the statement without its trailing LIMIT clause, if it has one
+     */
+    static String withoutLimit(String sql) {
+        Matcher m = LIMIT_CLAUSE.matcher(sql);
+        return m.find() ? sql.substring(0, m.start()) + ";" : sql;
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(withoutLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limitOf(s) >= 0)
+                    lp.addLimit(limitOf(s));
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -493,10 +570,101 @@ public class Parser {
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
+    /**
+     * Prepare a statement with ? parameters in place of some of its
+     * constants, to be run with {@link #execute} or planned with
+     * {@link #bind}.
+     */
+    public PreparedStatement prepare(String sql) {
+        return new PreparedStatement(sql, StatementCache.parameterCount(withoutLimit(sql)));
+    }
+
+    /**
+     * Run a prepared statement, like {@link #processNextStatement}, with
+     * params bound to its ? parameters in order.
+     *
+     * @param params Integers or Strings, one for each parameter
+     */
+    public void execute(PreparedStatement ps, Object... params) {
+        runStatement(ps.getSql(), Arrays.asList(params));
+    }
+
+    /**
+     * Plan a prepared SELECT, INSERT or DELETE statement, with params bound
+     * to its ? parameters in order, to run as part of a transaction.
+     *
+     * @param params Integers or Strings, one for each parameter
+     * @throws simpledb.ParsingException if the statement is not valid, is
+     *             not a SELECT, INSERT or DELETE statement, or does not have
+     *             one parameter for each value
+     */
+    public Query bind(PreparedStatement ps, TransactionId tId, Object... params)
+            throws DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        String sql = ps.getSql();
+        int limit = limitOf(sql);
+        StatementCache.Statement st = StatementCache.parse(withoutLimit(sql), Arrays.asList(params));
+        if (st.isCacheable())
+            return handleCachedQueryStatement(st, tId, limit);
+        ZStatement s = parseStatement(st, limit);
+        Query query = handleStatement(s, tId, limit);
+        if (query == null)
+            throw new simpledb.ParsingException("Cannot bind " + sql);
+        return query;
+    }
+
+    /**
+     * Parse a statement that is not planned through the statement cache.
+     */
+    private ZStatement parseStatement(StatementCache.Statement st, int limit)
+            throws simpledb.ParsingException, Zql.ParseException {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                st.text().getBytes(StandardCharsets.UTF_8)));
+        ZStatement s = p.readStatement();
+        if (limit >= 0 && !(s instanceof ZQuery))
+            throw new simpledb.ParsingException("LIMIT is only supported on SELECT statements");
+        return s;
+    }
+
+    /**
+     * Plan an INSERT, DELETE or SELECT statement.
+     *
+     * @return the statement's query, or null if it is none of these
+     */
+    private Query handleStatement(ZStatement s, TransactionId tId, int limit)
+            throws DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        if (s instanceof ZInsert)
+            return handleInsertStatement((ZInsert) s, tId);
+        if (s instanceof ZDelete)
+            return handleDeleteStatement((ZDelete) s, tId);
+        if (s instanceof ZQuery)
+            return handleQueryStatement((ZQuery) s, tId, limit);
+        return null;
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; )
+                text.write(buf, 0, n);
+            runStatement(text.toString(StandardCharsets.UTF_8.name()), Collections.emptyList());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run a statement, with params bound to its ? parameters, as part of the
+     * current transaction, or of a transaction of its own if there is none.
+     * A SELECT statement is planned through the statement cache.
+     */
+    private void runStatement(String sql, List<?> params) {
+        try {
+            int limit = limitOf(sql);
+            StatementCache.Statement st = StatementCache.parse(withoutLimit(sql), params);
+            ZStatement s = st.isCacheable() ? null : parseStatement(st, limit);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -509,16 +677,12 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
-                        query = handleInsertStatement((ZInsert) s,
-                                curtrans.getId());
-                    else if (s instanceof ZDelete)
-                        query = handleDeleteStatement((ZDelete) s,
-                                curtrans.getId());
-                    else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
-                    else {
+                    if (s == null)
+                        query = handleCachedQueryStatement(st,
+                                curtrans.getId(), limit);
+                    else
+                        query = handleStatement(s, curtrans.getId(), limit);
+                    if (query == null && s != null) {
                         System.out
                                 .println("Can't parse "
                                         + s
@@ -567,11 +731,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +745,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-sample rate]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -591,11 +755,8 @@ public class Parser {
     protected boolean interactive = true;
 
     protected void start(String[] argv) throws IOException {
-        // first add tables to database
-        Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
-
         String queryFile = null;
+        double sampleRate = TableStats.DEFAULT_SAMPLE_RATE;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
@@ -611,12 +772,29 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    // the fraction of each table's pages read for statistics
+                    try {
+                        sampleRate = Double.parseDouble(argv[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        sampleRate = -1;
+                    }
+                    if (!(sampleRate > 0 && sampleRate <= 1)) {
+                        System.out.println("Expected a sample rate in (0, 1] after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+
+        // add tables to database
+        Database.getCatalog().loadSchema(argv[0]);
+        TableStats.computeStatistics(new File(argv[0] + ".stats"), sampleRate);
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
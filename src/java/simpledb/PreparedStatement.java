@@ -0,0 +1,33 @@
+package simpledb;
+
+/**
+ * A statement with ? parameters in place of some of its constants, prepared
+ * with {@link Parser#prepare} to be run many times with different values
+ * bound to them (see {@link Parser#execute} and {@link Parser#bind}). A
+ * SELECT statement is parsed and its joins ordered only the first time it
+ * runs; later runs reuse the plan the Parser cached.
+ */
+public class PreparedStatement {
+    private final String sql;
+    private final int parameterCount;
+
+    PreparedStatement(String sql, int parameterCount) {
+        this.sql = sql;
+        this.parameterCount = parameterCount;
+    }
+
+    /** @return the text of the statement */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of ? parameters in the statement */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
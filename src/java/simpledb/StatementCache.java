@@ -0,0 +1,352 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * StatementCache keeps the plans of recently run SELECT statements, so that
+ * running one again, with the same or other constants, skips parsing it and
+ * ordering its joins.
+ * <p>
+ * Statements are keyed on their normalized text, with every constant
+ * replaced by a ? parameter and runs of whitespace collapsed, so that
+ * statements differing only in their constants share a plan. A plan holds
+ * the logical plan of the statement parsed with placeholder constants,
+ * which is copied with the constants of each run bound in (see
+ * {@link LogicalPlan#bind}), and the join order chosen the last time it was
+ * planned (see {@link LogicalPlan.JoinPlan}). The scans of the base tables
+ * are chosen again on each run, since the best one depends on the
+ * constants; the physical operators are built anew, since they hold the
+ * state of a run.
+ * <p>
+ * The join order is planned again once the statistics of any table the
+ * statement reads have been replaced, such as when the table has been
+ * analyzed again after many changes (see {@link TableStats}), and a plan
+ * is dropped if any of its tables has been replaced in the catalog. The
+ * least recently used plans are dropped once there are more than the
+ * cache's capacity.
+ */
+class StatementCache {
+
+    /** The number of plans a Parser keeps */
+    static final int DEFAULT_CAPACITY = 128;
+
+    /** The prefix of the placeholder constants statements are parsed with */
+    private static final String PLACEHOLDER = "?";
+
+    private static final Pattern PLACEHOLDER_CONSTANT = Pattern.compile("\\?(\\d+)");
+    private static final Pattern SELECT = Pattern.compile("\\bselect\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * A statement, split into its normalized text and the constants bound to
+     * its parameters.
+     */
+    static class Statement {
+        /** The text of the statement, with ? in place of each constant */
+        final String key;
+        /** The number of ? parameters the statement was written with */
+        final int parameterCount;
+        /** The constants bound to each ? of key, as the values LogicalPlan filters hold */
+        final List<String> values = new ArrayList<>();
+        /** The constants bound to each ? of key, as SQL literals */
+        final List<String> literals = new ArrayList<>();
+
+        private Statement(String key, int parameterCount) {
+            this.key = key;
+            this.parameterCount = parameterCount;
+        }
+
+        /**
+         * @return true if the statement is a SELECT without subqueries, whose
+         *         plan can be cached
+         */
+        boolean isCacheable() {
+            Matcher m = SELECT.matcher(key);
+            if (!m.lookingAt())
+                return false;
+            int selects = 0;
+            for (m.reset(); m.find(); )
+                selects++;
+            return selects == 1;
+        }
+
+        /**
+         * @return the text of the statement with its constants in place
+         */
+        String text() {
+            return substitute(key, literals);
+        }
+
+        /**
+         * @return the text of the statement with placeholder constants, ?0,
+         *         ?1, ..., that {@link #valueOf} maps back to its constants
+         */
+        String template() {
+            List<String> placeholders = new ArrayList<>();
+            for (int i = 0; i < values.size(); i++)
+                placeholders.add("'" + PLACEHOLDER + i + "'");
+            return substitute(key, placeholders);
+        }
+
+        /**
+         * @return the constant of this statement a placeholder constant of
+         *         its template stands for, or c itself if it is not one
+         */
+        String valueOf(String c) {
+            Matcher m = PLACEHOLDER_CONSTANT.matcher(c);
+            if (m.matches() && Integer.parseInt(m.group(1)) < values.size())
+                return values.get(Integer.parseInt(m.group(1)));
+            return c;
+        }
+
+        private static String substitute(String key, List<String> constants) {
+            StringBuilder text = new StringBuilder();
+            int next = 0;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c == '?')
+                    text.append(constants.get(next++));
+                else
+                    text.append(c);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Normalize a statement: replace each constant, quoted string or number,
+     * with a ? parameter bound to it, bind params to the ? parameters the
+     * statement was written with, in order, and collapse runs of whitespace.
+     *
+     * @param sql the statement, without a LIMIT clause
+     * @param params the values of its ? parameters: Integers, Strings,
+     *            IntFields or StringFields
+     * @throws ParsingException if there is not one value of a supported type
+     *             for each ? parameter
+     */
+    static Statement parse(String sql, List<?> params) throws ParsingException {
+        StringBuilder key = new StringBuilder();
+        List<String> values = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        int parameterCount = 0;
+        int i = 0, n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // a quoted string, in which '' stands for '
+                StringBuilder value = new StringBuilder();
+                int j = i + 1;
+                while (j < n && (sql.charAt(j) != '\'' || (j + 1 < n && sql.charAt(j + 1) == '\''))) {
+                    value.append(sql.charAt(j));
+                    j += sql.charAt(j) == '\'' ? 2 : 1;
+                }
+                if (j >= n)
+                    throw new ParsingException("Unterminated string in " + sql);
+                key.append('?');
+                values.add(value.toString());
+                literals.add(sql.substring(i, j + 1));
+                i = j + 1;
+            } else if (Character.isDigit(c) && (i == 0 || !isNamePart(sql.charAt(i - 1)))) {
+                int j = i;
+                while (j < n && Character.isDigit(sql.charAt(j)))
+                    j++;
+                key.append('?');
+                values.add(sql.substring(i, j));
+                literals.add(sql.substring(i, j));
+                i = j;
+            } else if (c == '?') {
+                if (parameterCount >= params.size())
+                    throw new ParsingException("No value given for parameter " + (parameterCount + 1) + " of " + sql);
+                Object param = params.get(parameterCount++);
+                key.append('?');
+                if (param instanceof Integer || param instanceof IntField) {
+                    String value = param.toString();
+                    values.add(value);
+                    literals.add(value);
+                } else if (param instanceof String || param instanceof StringField) {
+                    String value = param instanceof String ? (String) param : ((StringField) param).getValue();
+                    values.add(value);
+                    literals.add("'" + value.replace("'", "''") + "'");
+                } else {
+                    throw new ParsingException("Unsupported value " + param + " for parameter " + parameterCount);
+                }
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i)))
+                    i++;
+                if (key.length() > 0)
+                    key.append(' ');
+            } else {
+                key.append(c);
+                i++;
+            }
+        }
+        if (parameterCount < params.size())
+            throw new ParsingException(sql + " has " + parameterCount + " parameters, but "
+                    + params.size() + " values were given");
+
+        String normalized = key.toString().trim();
+        if (normalized.endsWith(" ;"))
+            normalized = normalized.substring(0, normalized.length() - 2) + ";";
+        Statement statement = new Statement(normalized, parameterCount);
+        statement.values.addAll(values);
+        statement.literals.addAll(literals);
+        return statement;
+    }
+
+    /**
+     * @return the number of ? parameters of a statement, outside its quoted strings
+     */
+    static int parameterCount(String sql) {
+        int count = 0;
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            else if (c == '?' && !quoted)
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    /**
+     * The cached plan of a statement.
+     */
+    static class Entry {
+        private final LogicalPlan template;
+        /** The id of each table the statement reads, by name */
+        private final Map<String, Integer> tableIds = new HashMap<>();
+        /** The statistics of each table the join order was chosen with, by name */
+        private final Map<String, TableStats> stats = new HashMap<>();
+        private LogicalPlan.JoinPlan joinPlan;
+
+        private Entry(LogicalPlan template) {
+            this.template = template;
+            for (int id : template.getTableAliasToIdMapping().values())
+                tableIds.put(Database.getCatalog().getTableName(id), id);
+        }
+
+        /** @return true if every table the statement reads is still in the catalog */
+        private boolean isValid() {
+            for (Map.Entry<String, Integer> e : tableIds.entrySet()) {
+                try {
+                    if (Database.getCatalog().getTableId(e.getKey()) != e.getValue())
+                        return false;
+                } catch (NoSuchElementException ex) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the plan of the statement with the constants of s bound in,
+         * to be planned with the cached join order, unless the statistics of
+         * a table it reads have been replaced since that was chosen.
+         */
+        synchronized LogicalPlan bind(Statement s) throws ParsingException {
+            boolean current = true;
+            for (String name : tableIds.keySet())
+                current &= stats.get(name) == TableStats.getTableStats(name);
+            if (!current) {
+                joinPlan = null;
+                for (String name : tableIds.keySet())
+                    stats.put(name, TableStats.getTableStats(name));
+            }
+            LogicalPlan lp = template.bind(s::valueOf);
+            lp.setJoinPlan(joinPlan);
+            return lp;
+        }
+
+        /**
+         * Keep the join order chosen for a plan returned by {@link #bind},
+         * once it has been converted to a physical plan.
+         */
+        synchronized void planned(LogicalPlan lp) {
+            joinPlan = lp.getJoinPlan();
+        }
+
+        /** @return the join order cached, or null if there is none */
+        synchronized LogicalPlan.JoinPlan getJoinPlan() {
+            return joinPlan;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity the most plans to keep
+     */
+    StatementCache(int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the plan cached for a statement, or null if there is none or
+     *         a table it reads has been replaced
+     */
+    synchronized Entry get(Statement s) {
+        Entry e = entries.get(s.key);
+        if (e != null && !e.isValid()) {
+            entries.remove(s.key);
+            e = null;
+        }
+        if (e == null)
+            misses++;
+        else
+            hits++;
+        return e;
+    }
+
+    /**
+     * Cache the plan of a statement, parsed from its {@link Statement#template}.
+     *
+     * @return the cached plan
+     */
+    synchronized Entry put(Statement s, LogicalPlan template) {
+        Entry e = new Entry(template);
+        entries.put(s.key, e);
+        return e;
+    }
+
+    /** @return the number of plans cached */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a plan */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no plan */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /** Drop every cached plan */
+    synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +12,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -30,6 +32,8 @@ public class Catalog {
     public Catalog() {
         // some code goes here
         map = new ConcurrentHashMap<>();
+        indexes = new ConcurrentHashMap<>();
+        columnGroups = new ConcurrentHashMap<>();
     }
 
     public static class Table {
@@ -51,6 +55,8 @@ public class Catalog {
     }
 
     private Map<Integer, Table> map;
+    private Map<Integer, List<SecondaryIndex>> indexes;
+    private Map<Integer, List<int[]>> columnGroups;
 
     /**
      * Add a new table to the catalog.
@@ -139,6 +145,68 @@ public class Catalog {
         return table;
     }
 
+    /**
+     * Add a secondary index to the catalog. The file holding its entries is
+     * added as a table under the given name, and the index is kept up to date
+     * as tuples are inserted into or deleted from the indexed table.
+     * @param index the index to add
+     * @param name the name of the index
+     */
+    public void addIndex(SecondaryIndex index, String name) {
+        addTable(index.getFile(), name);
+        indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table; the list is
+     * empty if there are none.
+     * @param tableid The id of the indexed table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * Declare a group of columns of a table whose values are correlated, so
+     * that the table's statistics keep track of how they depend on each
+     * other (see simpledb.optimizer.ColumnGroupStats) and the selectivity of
+     * predicates on several of them is not estimated as if they were
+     * independent. The statistics of the table include the group once the
+     * table is analyzed again.
+     * @param tableid The id of the table
+     * @param fields The indexes of two or more distinct fields of the table
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws IllegalArgumentException if fields are not two or more distinct fields of the table
+     */
+    public void addColumnGroup(int tableid, int... fields) {
+        int numFields = getTupleDesc(tableid).numFields();
+        int[] group = fields.clone();
+        Arrays.sort(group);
+        for (int i = 0; i < group.length; i++) {
+            if (group[i] < 0 || group[i] >= numFields || (i > 0 && group[i] == group[i - 1]))
+                throw new IllegalArgumentException("not a field of table " + tableid + ": " + group[i]);
+        }
+        if (group.length < 2)
+            throw new IllegalArgumentException("a column group needs at least two fields");
+        List<int[]> groups = columnGroups.computeIfAbsent(tableid, k -> new CopyOnWriteArrayList<>());
+        for (int[] g : groups) {
+            if (Arrays.equals(g, group))
+                return;
+        }
+        groups.add(group);
+    }
+
+    /**
+     * Returns the column groups declared on the specified table, each with
+     * its fields in ascending order; the list is empty if there are none.
+     * @param tableid The id of the table
+     */
+    public List<int[]> getColumnGroups(int tableid) {
+        List<int[]> list = columnGroups.get(tableid);
+        return list == null ? Collections.emptyList() : list;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return map.keySet().iterator();
@@ -153,10 +221,24 @@ public class Catalog {
         return table.name;
     }
     
+    /**
+     * Remove a table, and the secondary indexes and column groups declared
+     * on it, from the catalog. Does nothing if there is no such table.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        map.remove(tableid);
+        indexes.remove(tableid);
+        columnGroups.remove(tableid);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         map.clear();
+        indexes.clear();
+        columnGroups.clear();
     }
     
     /**
@@ -121,7 +121,9 @@ public final class LockManager {
                     break;
                 } else if (lock.type == lockType.shared ||
                         (lock.type == lockType.exclusive && lock.holders.contains(tid)) ) {
-                    lock.holders.add(tid);
+                    // a holder is listed once, so that releasing the lock really drops it
+                    if (!lock.holders.contains(tid))
+                        lock.holders.add(tid);
                     addLock(tid, pid);
                     break;
                 }
@@ -62,6 +62,7 @@ public class Aggregate extends Operator {
             }
         }
         this.opIterator = aggregator.iterator();
+        observeCardinality(aggregator.numGroups());
     }
 
     /**
@@ -84,5 +84,11 @@ public interface Aggregator extends Serializable {
      * @see TupleIterator for a possible helper
      */
     OpIterator iterator();
+
+    /**
+     * @return the number of groups merged so far, which is the number of
+     *         tuples iterator() returns
+     */
+    int numGroups();
     
 }
@@ -9,6 +9,18 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * The tuples of child1 are hashed in batches of MAP_SIZE, and child2 is
+ * scanned once per batch, probing the hash table. Each time a batch is
+ * filled and more of child1 remains, the join compares the number of tuples
+ * of child1 read so far with the estimate (see
+ * {@link #setEstimatedChildCardinalities}): once that is
+ * {@link Operator#MISESTIMATE_FACTOR} times larger, while child2 is expected
+ * to be smaller than what was read, the join switches its build side and
+ * hashes child2 instead, probing with the tuples of the current batch and
+ * then the rest of child1. Either way, the output tuples are the
+ * concatenation of the joining tuples of child1 and child2, in no
+ * particular order.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,8 +28,18 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    /** The tuple of the probe side being joined */
+    transient private Tuple probeTuple = null;
+    /** The estimated cardinalities of child1 and child2, or 0 if unknown */
+    private int estimatedCard1 = 0, estimatedCard2 = 0;
+    /** True once the build side has been switched to child2 */
+    private boolean switched = false;
+    /** The tuples of child1 read before switching, probed before the rest of child1 */
+    transient private Iterator<Tuple> prefix = null;
+    /** The number of tuples of child1 read while hashing it */
+    private int read1 = 0;
+    /** The number of tuples of child1 joined before switching, skipped when it is rewound */
+    private int skip1 = 0;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -55,28 +77,113 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /**
+     * Set the cardinalities the optimizer estimated for the children, for
+     * the join to compare with what it reads.
+     *
+     * @param card1 the estimated cardinality of child1, or 0 if unknown
+     * @param card2 the estimated cardinality of child2, or 0 if unknown
+     */
+    public void setEstimatedChildCardinalities(int card1, int card2) {
+        this.estimatedCard1 = card1;
+        this.estimatedCard2 = card2;
+    }
+
+    /**
+     * @return true if the join hashes child2 rather than child1, having
+     *         found child1 much larger than estimated
+     */
+    public boolean isBuildSideSwitched() {
+        return switched;
+    }
+
     final Map<Object, List<Tuple>> map = new HashMap<>();
     public final static int MAP_SIZE = 20000;
+    /** The number of tuples in map */
+    private int built = 0;
+
+    private OpIterator buildChild() {
+        return switched ? child2 : child1;
+    }
+
+    private OpIterator probeChild() {
+        return switched ? child1 : child2;
+    }
 
     private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+        OpIterator build = buildChild();
+        int field = switched ? pred.getField2() : pred.getField1();
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+        built = 0;
+        while (build.hasNext()) {
+            Tuple t = build.next();
+            List<Tuple> list = map.computeIfAbsent(t.getField(field), k -> new ArrayList<>());
+            list.add(t);
+            if (!switched)
+                read1++;
+            if (built++ == MAP_SIZE)
                 return true;
         }
-        return cnt > 0;
+        return built > 0;
 
     }
 
+    /**
+     * @return the cardinality of child expected by the plan: the number of
+     *         tuples it returns, if it is a pipeline breaker that has
+     *         observed it, else estimate
+     */
+    private static int expectedCardinality(OpIterator child, int estimate) {
+        if (child instanceof Operator && ((Operator) child).getObservedCardinality() >= 0)
+            return ((Operator) child).getObservedCardinality();
+        return estimate;
+    }
+
+    /**
+     * Having filled a batch with tuples of child1, switch to hashing child2
+     * if child1 is much larger than estimated and child2 is expected to be
+     * smaller than the tuples read so far, so that it is hashed in fewer
+     * batches and the probe side is scanned fewer times. The batches
+     * already joined are skipped whenever child1 is scanned again.
+     */
+    private void replanBuildSide() throws DbException, TransactionAbortedException {
+        if (switched || built <= MAP_SIZE || !child1.hasNext())
+            return;
+        if (!Operator.isMisestimate(estimatedCard1, read1) || read1 < estimatedCard1)
+            return;
+        int card2 = expectedCardinality(child2, estimatedCard2);
+        if (card2 <= 0 || card2 >= read1)
+            return;
+        List<Tuple> read = new ArrayList<>(built);
+        for (List<Tuple> l : map.values())
+            read.addAll(l);
+        switched = true;
+        skip1 = read1 - built;
+        prefix = read.iterator();
+        loadMap();
+    }
+
+    /**
+     * Rewind the probe side, skipping the tuples of child1 that were joined
+     * before switching.
+     */
+    private void rewindProbe() throws DbException, TransactionAbortedException {
+        OpIterator probe = probeChild();
+        probe.rewind();
+        for (int i = 0; switched && i < skip1 && probe.hasNext(); i++)
+            probe.next();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        switched = false;
+        prefix = null;
+        read1 = 0;
+        skip1 = 0;
         loadMap();
+        replanBuildSide();
         super.open();
     }
 
@@ -84,8 +191,8 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
+        this.probeTuple=null;
+        this.prefix=null;
         this.listIt=null;
         this.map.clear();
     }
@@ -93,6 +200,12 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        probeTuple = null;
+        prefix = null;
+        listIt = null;
+        read1 = 0;
+        skip1 = 0;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -116,7 +229,9 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
+        Tuple match = listIt.next();
+        Tuple t1 = switched ? probeTuple : match;
+        Tuple t2 = switched ? match : probeTuple;
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,18 +246,31 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    /**
+     * @return the next tuple to probe the hash table with, or null once the
+     *         probe side has been read
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (prefix != null && prefix.hasNext())
+            return prefix.next();
+        OpIterator probe = probeChild();
+        return probe.hasNext() ? probe.next() : null;
+    }
+
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
+        if (map.isEmpty())
+            return null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        // loop around the probe side
+        int field = switched ? pred.getField1() : pred.getField2();
+        while ((probeTuple = nextProbe()) != null) {
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
+            List<Tuple> l = map.get(probeTuple.getField(field));
             if (l == null)
                 continue;
             listIt = l.iterator();
@@ -151,9 +279,11 @@ public class HashEquiJoin extends Operator {
 
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
+        // the probe side is done: advance the build side
+        prefix = null;
+        rewindProbe();
         if (loadMap()) {
+            replanBuildSide();
             return fetchNext();
         }
 
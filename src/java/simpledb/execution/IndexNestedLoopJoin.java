@@ -0,0 +1,162 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.index.IndexScan;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The IndexNestedLoopJoin operator joins each tuple of its outer child with
+ * the tuples of a base table found by probing an index on the table's join
+ * field, instead of rescanning the whole table for every outer tuple. The
+ * index is either the table itself, if it is a BTreeFile keyed on the join
+ * field, or a secondary index on that field.
+ * <p>
+ * The inner child is the SeqScan the table would otherwise be read with; it
+ * names the table, its alias and the transaction, and is never opened.
+ *
+ * @see IndexScan#forPredicate
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private OpIterator child1;
+    private SeqScan child2;
+    private Tuple tuple1;
+    private OpIterator probe;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) table, which must have an index on
+     *            the join field that can answer the join predicate
+     * @throws IllegalArgumentException
+     *            if there is no such index
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("no index on the inner join field");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if the table read by inner has an index on the inner join
+     *         field that can answer the join predicate
+     */
+    public static boolean canProbe(JoinPredicate p, SeqScan inner) {
+        return IndexScan.supports(p.getOperator()) && IndexScan.hasIndex(inner.getTableId(), p.getField2());
+    }
+
+    /**
+     * The join predicate is <tt>outer.f1 op inner.f2</tt>; the index is
+     * searched for <tt>inner.f2 op' outer.f1</tt>, with op' the mirror of op.
+     */
+    private static OpIterator probeScan(JoinPredicate p, SeqScan inner, Tuple outer) {
+        Predicate.Op op;
+        switch (p.getOperator()) {
+            case LESS_THAN: op = Predicate.Op.GREATER_THAN; break;
+            case LESS_THAN_OR_EQ: op = Predicate.Op.GREATER_THAN_OR_EQ; break;
+            case GREATER_THAN: op = Predicate.Op.LESS_THAN; break;
+            case GREATER_THAN_OR_EQ: op = Predicate.Op.LESS_THAN_OR_EQ; break;
+            default: op = p.getOperator();
+        }
+        IndexPredicate ipred = new IndexPredicate(op, outer.getField(p.getField1()));
+        return IndexScan.forPredicate(inner.getTransactionId(), inner.getTableId(), inner.getAlias(),
+                p.getField2(), ipred);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        closeProbe();
+        child1.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+    }
+
+    private void closeProbe() {
+        if (probe != null)
+            probe.close();
+        probe = null;
+    }
+
+    /**
+     * Returns the next outer tuple joined with a matching inner tuple, probing
+     * the index again for each outer tuple.
+     *
+     * @see Join#fetchNext
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null && probe.hasNext()) {
+                Tuple tuple2 = probe.next();
+                Tuple tuple = new Tuple(getTupleDesc());
+                tuple.setRecordId(tuple1.getRecordId());
+                int len1 = tuple1.getTupleDesc().numFields(), len2 = tuple2.getTupleDesc().numFields();
+                int idx = 0;
+                for (int i = 0; i < len1; i++, idx++) tuple.setField(idx, tuple1.getField(i));
+                for (int i = 0; i < len2; i++, idx++) tuple.setField(idx, tuple2.getField(i));
+                return tuple;
+            }
+            closeProbe();
+            if (!child1.hasNext())
+                return null;
+            tuple1 = child1.next();
+            probe = probeScan(p, child2, tuple1);
+            probe.open();
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = (SeqScan) children[1];
+    }
+}
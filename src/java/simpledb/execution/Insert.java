@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -11,6 +13,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -19,10 +23,14 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** Number of tuples handed to BufferPool.bulkInsertTuples at a time in bulk mode. */
+    public static final int BULK_BATCH_SIZE = 8192;
+
     private TransactionId tid;
     private OpIterator child;
     private int tableId;
     private boolean done;
+    private final boolean bulk;
     private final TupleDesc tupleDesc;
     /**
      * Constructor.
@@ -39,10 +47,34 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableId
+     *            The table in which to insert tuples.
+     * @param bulk
+     *            If true and the table is a HeapFile, load the tuples into
+     *            fresh pages appended to the table (see
+     *            BufferPool#bulkInsertTuples) instead of inserting them one
+     *            at a time.
+     * @throws DbException
+     *             if TupleDesc of child differs from table into which we are to
+     *             insert.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulk)
+            throws DbException {
         // some code goes here
         this.tid = t;
         this.child = child;
         this.tableId = tableId;
+        this.bulk = bulk;
         tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
     }
 
@@ -86,12 +118,24 @@ public class Insert extends Operator {
         // some code goes here
         if (done) return null;
         int count = 0;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (bulk && file instanceof HeapFile) {
+            List<Tuple> batch = new ArrayList<>();
+            while (child.hasNext()) {
+                batch.add(child.next());
+                if (batch.size() == BULK_BATCH_SIZE) {
+                    count += bulkInsert(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            count += bulkInsert(batch);
+        }
         while (child.hasNext()) {
             try {
                 Database.getBufferPool().insertTuple(tid, tableId, child.next());
                 count++;
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new DbException("could not insert into table " + tableId + ": " + e);
             }
         }
         Tuple tuple = new Tuple(tupleDesc);
@@ -100,6 +144,16 @@ public class Insert extends Operator {
         return tuple;
     }
 
+    private int bulkInsert(List<Tuple> batch)
+            throws TransactionAbortedException, DbException {
+        try {
+            Database.getBufferPool().bulkInsertTuples(tid, tableId, batch);
+        } catch (IOException e) {
+            throw new DbException("could not insert into table " + tableId + ": " + e);
+        }
+        return batch.size();
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -138,4 +138,8 @@ public class IntegerAggregator implements Aggregator {
         return new TupleIterator(integerAggDesc, IntegerAggregatorList);
     }
 
+    public int numGroups() {
+        return groupIntegerAggVal.size();
+    }
+
 }
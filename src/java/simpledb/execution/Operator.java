@@ -12,11 +12,22 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Pipeline breakers, which read their whole input before returning a tuple,
+ * record the number of tuples they will return (see
+ * {@link #observeCardinality}), which a {@link HashEquiJoin} above them
+ * chooses its build side with in place of the estimate.
  */
 public abstract class Operator implements OpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The factor by which an actual cardinality must differ from its
+     * estimate to be taken as a misestimate
+     */
+    public static final int MISESTIMATE_FACTOR = 10;
+
     public boolean hasNext() throws DbException, TransactionAbortedException {
         if (!this.open)
             throw new IllegalStateException("Operator not yet open");
@@ -72,6 +83,7 @@ public abstract class Operator implements OpIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private int observedCardinality = -1;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
@@ -119,4 +131,32 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return the number of tuples this pipeline breaker returns, as recorded
+     *         once it had read its input, or -1 if it has not recorded one
+     */
+    public int getObservedCardinality() {
+        return this.observedCardinality;
+    }
+
+    /**
+     * Record the number of tuples this operator returns, once it is known;
+     * called by pipeline breakers, such as sorts and aggregates, after they
+     * have read their input.
+     */
+    protected void observeCardinality(int card) {
+        this.observedCardinality = card;
+    }
+
+    /**
+     * @return true if the estimate is known, that is positive, and actual is
+     *         at least {@link #MISESTIMATE_FACTOR} times larger or smaller
+     */
+    public static boolean isMisestimate(int estimated, int actual) {
+        if (estimated <= 0)
+            return false;
+        return actual >= (long) estimated * MISESTIMATE_FACTOR
+                || (long) actual * MISESTIMATE_FACTOR <= estimated;
+    }
+
 }
@@ -63,8 +63,10 @@ public class OrderBy extends Operator {
             TransactionAbortedException {
         child.open();
         // load all the tuples in a collection, and sort it
+        childTups.clear();
         while (child.hasNext())
             childTups.add(child.next());
+        observeCardinality(childTups.size());
         childTups.sort(new TupleComparator(orderByField, asc));
         it = childTups.iterator();
         super.open();
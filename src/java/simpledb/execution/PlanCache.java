@@ -1,53 +1,278 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask over the list of joins being ordered: bit i
+ * is set when the i-th join is in the set. Plans are kept in open-addressed
+ * arrays keyed by that mask, and a plan is stored as its last join and the
+ * set of joins producing its left input only; the joins producing its right
+ * input are the rest of the set, and the order of the set is the order of
+ * each of the two sets followed by the last join.
+ * <p>
+ * Besides the cheapest plan for a set, whatever the order of its output,
+ * the cheapest plan whose output is sorted on each interesting column is
+ * kept, since it may save a sort later on. Columns are numbered by the
+ * caller, and a plan is looked up by its set and either a column number or
+ * ANY_ORDER. A plan records the orders of the plans of its two inputs. */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
+    /** The order of the cheapest plan for a set, whatever its output order */
+    public static final int ANY_ORDER = -1;
+
+    private static final double MAX_LOAD = 0.5;
+
+    private long[] sets;
+    private int[] orders;
+    private double[] costs;
+    private int[] cards;
+    private long[] sortedOn;
+    private int[] lastIndexes;
+    private LogicalJoinNode[] lastJoins;
+    private long[] lefts;
+    private int[] leftOrders;
+    private int[] rightOrders;
+    /** For plans in ANY_ORDER, the columns the set has sorted plans on */
+    private long[] sortedPlans;
+    private int size = 0;
+
+    public PlanCache() {
+        this(64);
+    }
+
+    /** @param expected the number of plans expected to be added */
+    public PlanCache(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        sets = new long[capacity];
+        orders = new int[capacity];
+        costs = new double[capacity];
+        cards = new int[capacity];
+        sortedOn = new long[capacity];
+        lastIndexes = new int[capacity];
+        lastJoins = new LogicalJoinNode[capacity];
+        lefts = new long[capacity];
+        leftOrders = new int[capacity];
+        rightOrders = new int[capacity];
+        sortedPlans = new long[capacity];
+    }
+
+    /** Return the slot of the plan for s in order, or of the empty slot where it belongs */
+    private int slot(long s, int order) {
+        int mask = sets.length - 1;
+        int i = (int) (((s + order) * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (sets[i] != 0 && (sets[i] != s || orders[i] != order))
+            i = (i + 1) & mask;
+        return i;
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
+        @param order ANY_ORDER, or the column the output of the plan is sorted
+            on; a plan for s in ANY_ORDER must have been added first
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param sorted the columns the output of the plan is sorted on
+        @param lastIndex the index of the join performed last in the plan
+        @param lastJoin the join performed last in the plan, which may have its
+            inner and outer swapped relative to the lastIndex-th join
+        @param left the set of joins producing one input of the last join,
+            which may be empty; the rest of s produces the other input
+        @param leftOrder the order of the plan for left that the plan uses
+        @param rightOrder the order of the plan for the rest of s that the plan uses
+    */
+    public void addPlan(long s, int order, double cost, int card, long sorted,
+            int lastIndex, LogicalJoinNode lastJoin, long left, int leftOrder, int rightOrder) {
+        if (s == 0)
+            throw new IllegalArgumentException("empty join set");
+        if (order != ANY_ORDER && !contains(s))
+            throw new IllegalStateException("no plan for the join set in any order");
+        int i = slot(s, order);
+        if (sets[i] == 0) {
+            if (size + 1 > sets.length * MAX_LOAD) {
+                grow();
+                i = slot(s, order);
+            }
+            size++;
+        }
+        sets[i] = s;
+        orders[i] = order;
+        costs[i] = cost;
+        cards[i] = card;
+        sortedOn[i] = sorted;
+        lastIndexes[i] = lastIndex;
+        lastJoins[i] = lastJoin;
+        lefts[i] = left;
+        leftOrders[i] = leftOrder;
+        rightOrders[i] = rightOrder;
+        if (order != ANY_ORDER)
+            sortedPlans[slot(s, ANY_ORDER)] |= 1L << order;
+    }
+
+    private void grow() {
+        long[] oldSets = sets;
+        int[] oldOrders = orders;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        long[] oldSortedOn = sortedOn;
+        int[] oldLastIndexes = lastIndexes;
+        LogicalJoinNode[] oldLastJoins = lastJoins;
+        long[] oldLefts = lefts;
+        int[] oldLeftOrders = leftOrders;
+        int[] oldRightOrders = rightOrders;
+        long[] oldSortedPlans = sortedPlans;
+        allocate(oldSets.length * 2);
+        for (int j = 0; j < oldSets.length; j++) {
+            if (oldSets[j] == 0)
+                continue;
+            int i = slot(oldSets[j], oldOrders[j]);
+            sets[i] = oldSets[j];
+            orders[i] = oldOrders[j];
+            costs[i] = oldCosts[j];
+            cards[i] = oldCards[j];
+            sortedOn[i] = oldSortedOn[j];
+            lastIndexes[i] = oldLastIndexes[j];
+            lastJoins[i] = oldLastJoins[j];
+            lefts[i] = oldLefts[j];
+            leftOrders[i] = oldLeftOrders[j];
+            rightOrders[i] = oldRightOrders[j];
+            sortedPlans[i] = oldSortedPlans[j];
+        }
+    }
+
+    /** @return true if there is a plan for the join set s */
+    public boolean contains(long s) {
+        return contains(s, ANY_ORDER);
+    }
+
+    /** @return true if there is a plan for the join set s in the specified order */
+    public boolean contains(long s, int order) {
+        return s != 0 && sets[slot(s, order)] == s;
+    }
+
+    /** @return the columns there are plans for the join set s sorted on */
+    public long getSortedPlans(long s) {
+        return sortedPlans[slot(s, ANY_ORDER)];
+    }
+
+    /** Find the best join order in the cache for the specified plan
+        @param s the set of joins to look up the best order for
+        @return the best order for s in the cache, or null if there is none
+    */
+    public List<LogicalJoinNode> getOrder(long s) {
+        return getOrder(s, ANY_ORDER);
+    }
+
+    /** Find the best join order in the cache for the specified plan and order
+        @param s the set of joins to look up the best order for
+        @param order ANY_ORDER, or the column the output must be sorted on
+        @return the best order for s in the cache, or null if there is none
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    public List<LogicalJoinNode> getOrder(long s, int order) {
+        if (!contains(s, order))
+            return null;
+        List<LogicalJoinNode> joins = new ArrayList<>(Long.bitCount(s));
+        for (int i : slots(s, order))
+            joins.add(lastJoins[i]);
+        return joins;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** Find the cost of the subplan ending with each join of the best join order for s
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @param order ANY_ORDER, or the column the output must be sorted on
+        @return the cost of the subplan ending with each join of getOrder(s, order)
     */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    public double[] getSubplanCosts(long s, int order) {
+        List<Integer> slots = slots(s, order);
+        double[] subplanCosts = new double[slots.size()];
+        for (int k = 0; k < subplanCosts.length; k++)
+            subplanCosts[k] = costs[slots.get(k)];
+        return subplanCosts;
+    }
+
+    /** Find the cardinality of the subplan ending with each join of the best join order for s
+        @param s the set of joins to look up the best order for
+        @param order ANY_ORDER, or the column the output must be sorted on
+        @return the cardinality of the subplan ending with each join of getOrder(s, order)
+    */
+    public int[] getSubplanCards(long s, int order) {
+        List<Integer> slots = slots(s, order);
+        int[] subplanCards = new int[slots.size()];
+        for (int k = 0; k < subplanCards.length; k++)
+            subplanCards[k] = cards[slots.get(k)];
+        return subplanCards;
+    }
+
+    /** Return the slots of the plans ending with each join of the plan for s in order */
+    private List<Integer> slots(long s, int order) {
+        List<Integer> slots = new ArrayList<>(Long.bitCount(s));
+        addSlots(s, order, slots);
+        return slots;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    private void addSlots(long s, int order, List<Integer> slots) {
+        if (s == 0)
+            return;
+        int i = slot(s, order);
+        long left = lefts[i];
+        addSlots(left, leftOrders[i], slots);
+        addSlots(s & ~left & ~(1L << lastIndexes[i]), rightOrders[i], slots);
+        slots.add(i);
+    }
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        return getCost(s, ANY_ORDER);
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cost of the best join order in the cache for the specified plan and order
+        @param s the set of joins to look up the best cost for
+        @param order ANY_ORDER, or the column the output must be sorted on
+        @return the cost of the best order for s in the cache
+    */
+    public double getCost(long s, int order) {
+        return costs[slot(s, order)];
+    }
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
+        @param s the set of joins to look up the best cardinality for
+        @return the cardinality of the best order for s in the cache
+    */
+    public int getCard(long s) {
+        return getCard(s, ANY_ORDER);
+    }
+
+    /** Find the cardinality of the best join order in the cache for the specified plan and order
         @param s the set of joins to look up the best cardinality for
+        @param order ANY_ORDER, or the column the output must be sorted on
         @return the cardinality of the best order for s in the cache
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s, int order) {
+        return cards[slot(s, order)];
+    }
+
+    /** Find the columns the output of the best join order for s is sorted on
+        @param s the set of joins to look up the best order for
+        @param order ANY_ORDER, or the column the output must be sorted on
+        @return the columns the output of the best order for s is sorted on
+    */
+    public long getSortedOn(long s, int order) {
+        return sortedOn[slot(s, order)];
+    }
+
+    /** @return the number of plans in the cache */
+    public int size() {
+        return size;
     }
 }
@@ -0,0 +1,223 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children that both return their
+ * tuples in ascending order of their join fields, reading each child once.
+ * Children that are not already in that order must be sorted first, such as
+ * with an {@link OrderBy}.
+ * <p>
+ * An equality join keeps in memory only the tuples of child2 that share the
+ * join value of the current tuple of child1. A range join keeps the tuples
+ * of one child that match every tuple of the other seen so far: the tuples
+ * of child2 below the current tuple of child1 for GREATER_THAN and
+ * GREATER_THAN_OR_EQ, which return tuples in the order of child1, and the
+ * tuples of child1 below the current tuple of child2 for LESS_THAN and
+ * LESS_THAN_OR_EQ, which return tuples in the order of child2.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private OpIterator child1;
+    private OpIterator child2;
+    /** True if child1 is read one tuple at a time and child2 kept in buffer */
+    private final boolean streamLeft;
+
+    /** Tuples of the buffered child that match streamed */
+    private final List<Tuple> buffer = new ArrayList<>();
+    /** The join value of the tuples in buffer, for equality joins */
+    private Field groupKey;
+    /** The current tuple of the streamed child */
+    private Tuple streamed;
+    /** The next tuple of buffer to join with streamed */
+    private int pos;
+    /** The next tuple of the buffered child, read ahead, or null */
+    private Tuple pending;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left relation to join, in ascending order
+     *            of the first join field
+     * @param child2
+     *            Iterator for the right relation to join, in ascending order
+     *            of the second join field
+     * @throws IllegalArgumentException
+     *            if the predicate cannot be merged
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.streamLeft = p.getOperator() != Predicate.Op.LESS_THAN
+                && p.getOperator() != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if a join on op can be performed by merging sorted inputs
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        child1.close();
+        child2.close();
+        reset();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        buffer.clear();
+        groupKey = null;
+        streamed = null;
+        pos = 0;
+        pending = null;
+    }
+
+    /**
+     * Returns the next pair of matching tuples, merging the two children.
+     *
+     * @see Join#fetchNext
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        OpIterator s = streamLeft ? child1 : child2;
+        while (true) {
+            if (streamed != null && pos < buffer.size()) {
+                Tuple buffered = buffer.get(pos++);
+                return streamLeft ? join(streamed, buffered) : join(buffered, streamed);
+            }
+            if (!s.hasNext())
+                return null;
+            streamed = s.next();
+            pos = 0;
+            if (p.getOperator() == Predicate.Op.EQUALS) {
+                nextGroup();
+                // the rest of child1 can only have larger join values
+                if (buffer.isEmpty() && peek() == null)
+                    return null;
+            } else {
+                extendPrefix();
+            }
+        }
+    }
+
+    /**
+     * Read the tuples of child2 that have the join value of streamed into
+     * buffer, unless they are there already, skipping smaller values.
+     */
+    private void nextGroup() throws TransactionAbortedException, DbException {
+        Field key = streamed.getField(p.getField1());
+        if (groupKey != null && key.compare(Predicate.Op.EQUALS, groupKey))
+            return;
+        buffer.clear();
+        groupKey = key;
+        while (peek() != null && pending.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key))
+            pending = null;
+        while (peek() != null && pending.getField(p.getField2()).compare(Predicate.Op.EQUALS, key)) {
+            buffer.add(pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * Add the tuples of the buffered child that match streamed to buffer;
+     * since both children are sorted, they follow those already there.
+     */
+    private void extendPrefix() throws TransactionAbortedException, DbException {
+        while (peek() != null && (streamLeft ? p.filter(streamed, pending) : p.filter(pending, streamed))) {
+            buffer.add(pending);
+            pending = null;
+        }
+    }
+
+    /** Return the next tuple of the buffered child, without consuming it */
+    private Tuple peek() throws TransactionAbortedException, DbException {
+        OpIterator b = streamLeft ? child2 : child1;
+        if (pending == null && b.hasNext())
+            pending = b.next();
+        return pending;
+    }
+
+    private Tuple join(Tuple tuple1, Tuple tuple2) {
+        Tuple tuple = new Tuple(getTupleDesc());
+        tuple.setRecordId(tuple1.getRecordId());
+        int len1 = tuple1.getTupleDesc().numFields(), len2 = tuple2.getTupleDesc().numFields();
+        int idx = 0;
+        for (int i = 0; i < len1; i++, idx++) tuple.setField(idx, tuple1.getField(i));
+        for (int i = 0; i < len2; i++, idx++) tuple.setField(idx, tuple2.getField(i));
+        return tuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
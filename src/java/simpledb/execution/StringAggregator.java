@@ -85,4 +85,8 @@ public class StringAggregator implements Aggregator {
         return new TupleIterator(StringAggDesc, tupleList);
     }
 
+    public int numGroups() {
+        return groupStringAggVal.size();
+    }
+
 }
@@ -0,0 +1,479 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFileEncoder.TupleComparator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile over the tuples of an existing table,
+ * in the manner of CREATE INDEX. Instead of inserting tuples one at a time
+ * (which splits pages over and over and leaves them half full), it
+ * <ol>
+ * <li>sorts the table on the key field with an external merge sort: runs of
+ * tuples are sorted and spilled to temporary files by a pool of worker
+ * threads while the table is still being read, then merged;</li>
+ * <li>packs the sorted tuples into leaf pages, each filled to the fill
+ * factor;</li>
+ * <li>builds the internal levels bottom-up from the first key of each page
+ * (truncated with {@link BTreeFile#separatorKey}), again to the fill factor,
+ * until a single root remains.</li>
+ * </ol>
+ * Pages are numbered in the order they are written and written sequentially
+ * through a single channel; the root pointer page is written last, and the
+ * file is forced before it is returned. The tree is built in a temporary file
+ * next to the target, which no other transaction can reach, so its pages
+ * bypass the buffer pool and the log. Only once it is complete does it
+ * replace the target file, whose cached pages are discarded, and is the tree
+ * added to the catalog; a failed load leaves both as they were.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page filled, leaving room for later inserts */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** Default number of tuples sorted in memory per run */
+	public static final int DEFAULT_RUN_SIZE = 1 << 16;
+
+	private final int keyField;
+	private final double fillFactor;
+	private final int runSize;
+	private final int threads;
+
+	/**
+	 * Create a bulk loader.
+	 *
+	 * @param keyField - the field the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @param runSize - the number of tuples to sort in memory per run
+	 * @param threads - the number of threads sorting runs
+	 */
+	public BTreeBulkLoader(int keyField, double fillFactor, int runSize, int threads) {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		this.keyField = keyField;
+		this.fillFactor = fillFactor;
+		this.runSize = Math.max(1, runSize);
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Create a bulk loader with the default fill factor and run size, sorting
+	 * runs on as many threads as there are processors.
+	 *
+	 * @param keyField - the field the B+ tree will be keyed on
+	 */
+	public BTreeBulkLoader(int keyField) {
+		this(keyField, DEFAULT_FILL_FACTOR, DEFAULT_RUN_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Build a B+ tree holding the tuples of source, add it to the catalog and
+	 * return it. Any existing contents of bFile are replaced.
+	 *
+	 * @param tid - the transaction reading source
+	 * @param source - the table to index
+	 * @param bFile - the file to back the new BTreeFile
+	 * @param name - the name of the new BTreeFile in the catalog
+	 * @return the new BTreeFile
+	 */
+	public BTreeFile load(TransactionId tid, DbFile source, File bFile, String name)
+			throws DbException, TransactionAbortedException, IOException {
+		return load(source.iterator(tid), source.getTupleDesc(), bFile, name);
+	}
+
+	/**
+	 * Build a B+ tree holding the tuples returned by source, add it to the
+	 * catalog and return it. Any existing contents of bFile are replaced once
+	 * the tree is complete; if the load fails, bFile is left as it was.
+	 *
+	 * @param source - the tuples to index; it is opened and closed here
+	 * @param td - the tuple descriptor of source
+	 * @param bFile - the file to back the new BTreeFile
+	 * @param name - the name of the new BTreeFile in the catalog
+	 * @return the new BTreeFile
+	 */
+	public BTreeFile load(DbFileIterator source, TupleDesc td, File bFile, String name)
+			throws DbException, TransactionAbortedException, IOException {
+		File tmpFile = new File(bFile.getPath() + ".tmp");
+		BTreeFile tmp = new BTreeFile(tmpFile, keyField, td);
+		// pages look up their tuple descriptor in the catalog; the pages
+		// only refer to each other by page number, so they are the same
+		// whichever file they were built in
+		Database.getCatalog().addTable(tmp);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<File> runFiles = new ArrayList<>();
+		boolean built = false;
+		try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Iterator<Tuple> sorted = sort(source, td, pool, runFiles);
+			new Builder(tmp, channel).build(sorted);
+			channel.force(true);
+			built = true;
+		} finally {
+			pool.shutdownNow();
+			for (File run : runFiles)
+				run.delete();
+			Database.getCatalog().removeTable(tmp.getId());
+			if (!built)
+				tmpFile.delete();
+		}
+
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Files.move(tmpFile.toPath(), bFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		// the pages of a tree that was in bFile before are no longer valid
+		Database.getBufferPool().discardPages(bf.getId());
+		Database.getCatalog().addTable(bf, name);
+		return bf;
+	}
+
+	/**
+	 * Sort the tuples returned by it on the key field. Full runs are handed to the
+	 * pool to be sorted and spilled while reading continues; if the table fits
+	 * in a single run it is sorted in memory.
+	 */
+	private Iterator<Tuple> sort(DbFileIterator it, TupleDesc td, ExecutorService pool, List<File> runFiles)
+			throws DbException, TransactionAbortedException, IOException {
+		Comparator<Tuple> cmp = new TupleComparator(keyField);
+		List<Future<File>> runs = new ArrayList<>();
+
+		it.open();
+		List<Tuple> buf = new ArrayList<>();
+		while (it.hasNext()) {
+			buf.add(copy(it.next(), td));
+			if (buf.size() == runSize) {
+				runs.add(spill(buf, cmp, pool));
+				buf = new ArrayList<>();
+			}
+		}
+		it.close();
+
+		if (runs.isEmpty()) {
+			buf.sort(cmp);
+			return buf.iterator();
+		}
+		if (!buf.isEmpty())
+			runs.add(spill(buf, cmp, pool));
+
+		List<RunReader> readers = new ArrayList<>();
+		for (Future<File> run : runs) {
+			try {
+				File f = run.get();
+				runFiles.add(f);
+				readers.add(new RunReader(f, td));
+			} catch (InterruptedException | ExecutionException e) {
+				throw new DbException("sorting a run failed: " + e.getCause());
+			}
+		}
+		return new MergeIterator(readers, cmp);
+	}
+
+	private static Future<File> spill(List<Tuple> run, Comparator<Tuple> cmp, ExecutorService pool) {
+		return pool.submit(() -> {
+			run.sort(cmp);
+			File f = File.createTempFile("btree_run", ".tmp");
+			f.deleteOnExit();
+			try (DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(f)))) {
+				dos.writeInt(run.size());
+				for (Tuple t : run) {
+					for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+						t.getField(j).serialize(dos);
+				}
+			}
+			return f;
+		});
+	}
+
+	/** The tuples of the source belong to its pages; the tree gets its own copies */
+	private static Tuple copy(Tuple t, TupleDesc td) {
+		Tuple c = new Tuple(td);
+		for (int j = 0; j < td.numFields(); j++)
+			c.setField(j, t.getField(j));
+		return c;
+	}
+
+	/**
+	 * Reads back the tuples of one spilled run.
+	 */
+	private static class RunReader {
+		private final DataInputStream dis;
+		private final TupleDesc td;
+		private int remaining;
+		Tuple head;
+
+		RunReader(File f, TupleDesc td) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.td = td;
+			this.remaining = dis.readInt();
+			advance();
+		}
+
+		void advance() throws IOException {
+			if (remaining == 0) {
+				head = null;
+				dis.close();
+				return;
+			}
+			remaining--;
+			head = new Tuple(td);
+			try {
+				for (int j = 0; j < td.numFields(); j++)
+					head.setField(j, td.getFieldType(j).parse(dis));
+			} catch (java.text.ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+		}
+	}
+
+	/**
+	 * Merges sorted runs into a single sorted stream.
+	 */
+	private static class MergeIterator implements Iterator<Tuple> {
+		private final PriorityQueue<RunReader> heap;
+
+		MergeIterator(List<RunReader> readers, Comparator<Tuple> cmp) {
+			heap = new PriorityQueue<>(Math.max(1, readers.size()), (a, b) -> cmp.compare(a.head, b.head));
+			for (RunReader r : readers)
+				if (r.head != null)
+					heap.add(r);
+		}
+
+		public boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		public Tuple next() {
+			RunReader r = heap.poll();
+			if (r == null)
+				throw new NoSuchElementException();
+			Tuple t = r.head;
+			try {
+				r.advance();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (r.head != null)
+				heap.add(r);
+			return t;
+		}
+	}
+
+	/**
+	 * Writes the pages of one tree, in page number order.
+	 */
+	private class Builder {
+		private final BTreeFile bf;
+		private final FileChannel channel;
+		private final Type keyType;
+		private int nextPageNo = 1;
+
+		// the pages of the level being built, and the keys separating them
+		private List<Integer> children = new ArrayList<>();
+		private List<Field> separators = new ArrayList<>();
+		private Field lastKey = null;
+
+		Builder(BTreeFile bf, FileChannel channel) {
+			this.bf = bf;
+			this.channel = channel;
+			this.keyType = bf.getTupleDesc().getFieldType(keyField);
+		}
+
+		void build(Iterator<Tuple> sorted) throws DbException, IOException {
+			// leave room for the root pointer page, which is written once the root is known
+			channel.write(ByteBuffer.wrap(new byte[BTreeRootPtrPage.getPageSize()]), 0);
+
+			buildLeaves(sorted);
+			int childCategory = BTreePageId.LEAF;
+			while (children.size() > 1) {
+				buildInternalLevel(childCategory);
+				childCategory = BTreePageId.INTERNAL;
+			}
+
+			byte[] rootPtr = BTreeFileEncoder.convertToRootPtrPage(children.get(0), childCategory, 0);
+			channel.write(ByteBuffer.wrap(rootPtr), 0);
+		}
+
+		/**
+		 * Pack the tuples into leaves of a fill-factor's worth of tuples. One
+		 * leaf is held back so that a short final leaf can be evened out with
+		 * it, keeping every leaf at least half full.
+		 */
+		private void buildLeaves(Iterator<Tuple> sorted) throws DbException, IOException {
+			int maxTuples = emptyLeaf(0).getMaxTuples();
+			int perLeaf = Math.max(1, (int) (maxTuples * fillFactor));
+
+			List<Tuple> held = null;
+			List<Tuple> cur = new ArrayList<>();
+			while (sorted.hasNext()) {
+				cur.add(sorted.next());
+				if (cur.size() == perLeaf) {
+					if (held != null)
+						writeLeaf(held, true);
+					held = cur;
+					cur = new ArrayList<>();
+				}
+			}
+
+			if (held == null) {
+				writeLeaf(cur, false);
+			}
+			else if (cur.isEmpty()) {
+				writeLeaf(held, false);
+			}
+			else if (cur.size() >= maxTuples / 2) {
+				writeLeaf(held, true);
+				writeLeaf(cur, false);
+			}
+			else {
+				held.addAll(cur);
+				if (held.size() <= maxTuples) {
+					writeLeaf(held, false);
+				}
+				else {
+					int half = held.size() / 2;
+					writeLeaf(held.subList(0, half), true);
+					writeLeaf(held.subList(half, held.size()), false);
+				}
+			}
+		}
+
+		private BTreeLeafPage emptyLeaf(int pgNo) throws IOException {
+			return new BTreeLeafPage(new BTreePageId(bf.getId(), pgNo, BTreePageId.LEAF),
+					BTreePage.createEmptyPageData(), keyField);
+		}
+
+		private void writeLeaf(List<Tuple> tuples, boolean moreFollow) throws DbException, IOException {
+			int pgNo = nextPageNo++;
+			BTreeLeafPage page = emptyLeaf(pgNo);
+			for (Tuple t : tuples)
+				page.insertTuple(t);
+			if (pgNo > 1)
+				page.setLeftSiblingId(new BTreePageId(bf.getId(), pgNo - 1, BTreePageId.LEAF));
+			if (moreFollow)
+				page.setRightSiblingId(new BTreePageId(bf.getId(), pgNo + 1, BTreePageId.LEAF));
+			writePage(pgNo, page.getPageData());
+
+			if (!tuples.isEmpty()) {
+				Field firstKey = tuples.get(0).getField(keyField);
+				if (lastKey != null)
+					separators.add(BTreeFile.separatorKey(lastKey, firstKey));
+				lastKey = tuples.get(tuples.size() - 1).getField(keyField);
+			}
+			children.add(pgNo);
+		}
+
+		/**
+		 * Group the pages of the current level under new internal pages, and
+		 * make those the current level. The separator between two groups moves
+		 * up to the new level instead of being stored in either page.
+		 */
+		private void buildInternalLevel(int childCategory) throws DbException, IOException {
+			int maxEntryBytes = entryBytes(null);
+			int targetBytes = Math.max(2, (int) (BTreeInternalPage.getMaxEntries(keyType) * fillFactor)) * maxEntryBytes;
+
+			// greedily fill each page to the target, by key bytes
+			List<Integer> groupStarts = new ArrayList<>();
+			int start = 0;
+			while (start < children.size()) {
+				groupStarts.add(start);
+				int end = start + 1;
+				int used = 0;
+				while (end < children.size() && used + entryBytes(separators.get(end - 1)) <= targetBytes) {
+					used += entryBytes(separators.get(end - 1));
+					end++;
+				}
+				start = end;
+			}
+
+			// even out a short final page with the one before it
+			int groups = groupStarts.size();
+			if (groups > 1) {
+				int from = groupStarts.get(groups - 2);
+				int lastFrom = groupStarts.get(groups - 1);
+				int lastBytes = 0;
+				for (int i = lastFrom; i < children.size() - 1; i++)
+					lastBytes += entryBytes(separators.get(i));
+				if (children.size() - lastFrom < 2 || lastBytes < targetBytes / 2) {
+					int total = 0;
+					for (int i = from; i < children.size() - 1; i++)
+						total += entryBytes(separators.get(i));
+					int split = from + 1;
+					int prefix = 0;
+					while (split < children.size() - 2 && prefix + entryBytes(separators.get(split - 1)) < total / 2) {
+						prefix += entryBytes(separators.get(split - 1));
+						split++;
+					}
+					groupStarts.set(groups - 1, split);
+				}
+			}
+
+			List<Integer> parents = new ArrayList<>();
+			List<Field> parentSeparators = new ArrayList<>();
+			for (int g = 0; g < groupStarts.size(); g++) {
+				int from = groupStarts.get(g);
+				int to = g + 1 < groupStarts.size() ? groupStarts.get(g + 1) : children.size();
+				int pgNo = nextPageNo++;
+				BTreePageId pid = new BTreePageId(bf.getId(), pgNo, BTreePageId.INTERNAL);
+				BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), keyField);
+				for (int i = from; i < to - 1; i++) {
+					page.insertEntry(new BTreeEntry(separators.get(i),
+							new BTreePageId(bf.getId(), children.get(i), childCategory),
+							new BTreePageId(bf.getId(), children.get(i + 1), childCategory)));
+				}
+				writePage(pgNo, page.getPageData());
+				for (int i = from; i < to; i++)
+					setParent(children.get(i), pgNo);
+
+				if (g > 0)
+					parentSeparators.add(separators.get(from - 1));
+				parents.add(pgNo);
+			}
+			children = parents;
+			separators = parentSeparators;
+		}
+
+		/**
+		 * @return the bytes an entry with the given key takes on an internal page,
+		 *   or the largest entry if key is null
+		 */
+		private int entryBytes(Field key) {
+			if (BTreeInternalPage.hasVariableKeys(keyType)) {
+				int len = key == null ? Type.STRING_LEN : ((StringField) key).getValue().length();
+				return 1 + len + BTreePage.INDEX_SIZE;
+			}
+			return keyType.getLen() + BTreePage.INDEX_SIZE;
+		}
+
+		private long offset(int pgNo) {
+			return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+		}
+
+		private void writePage(int pgNo, byte[] data) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			long pos = offset(pgNo);
+			while (buf.hasRemaining())
+				pos += channel.write(buf, pos);
+		}
+
+		/** Both leaf and internal pages start with their parent pointer */
+		private void setParent(int pgNo, int parentPgNo) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(BTreePage.INDEX_SIZE);
+			buf.putInt(parentPgNo).flip();
+			channel.write(buf, offset(pgNo));
+		}
+	}
+}
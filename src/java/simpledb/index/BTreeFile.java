@@ -2,9 +2,14 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -30,10 +35,14 @@ import javax.swing.*;
  */
 public class BTreeFile implements DbFile {
 
+	/** Default number of leaf pages a range scan reads ahead */
+	public static final int DEFAULT_PREFETCH = 8;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final BTreeFreePages freePages = new BTreeFreePages(this);
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -159,8 +168,7 @@ public class BTreeFile implements DbFile {
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
-		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return freePages.numPages();
 	}
 
 	/**
@@ -171,8 +179,8 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
@@ -184,58 +192,56 @@ public class BTreeFile implements DbFile {
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
+	 * @see #findLeafPage(TransactionId, Map, PageId, boolean, BTreePageId, Permissions, Field)
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages,
 									   BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		// base case: when the passed-in BTreePageId has pgcateg() equal to BTreePageId.LEAF then return
-        if (f == null) {
-            return dfs(tid, dirtypages, pid, Permissions.READ_ONLY);
-        } else {
-            return dfs(tid, dirtypages, pid, Permissions.READ_ONLY, f);
-        }
+		return findLeafPage(tid, dirtypages, null, false, pid, perm, f);
 	}
 
-	private BTreeLeafPage dfs(TransactionId tid, Map<PageId, Page> dirtypages,
-                              BTreePageId pid, Permissions perm,
-                              Field f) throws DbException, TransactionAbortedException {
-		// base case: when the passed-in BTreePageId has pgcateg() equal to BTreePageId.LEAF then return
-	    if (pid.pgcateg() == BTreePageId.LEAF) {
-	        BTreeLeafPage bTreeLeafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-	        return bTreeLeafPage;
-        }
-	    BTreeLeafPage res = null;
-	    BTreeInternalPage bTreeInternalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-        Iterator<BTreeEntry> iterator = bTreeInternalPage.iterator();
-        while (iterator.hasNext()) {
-            BTreeEntry bTreeEntry = iterator.next();
-            if (bTreeEntry.getKey().compare(Op.LESS_THAN, f)) continue;
-            if (bTreeEntry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                BTreePageId leftChild = bTreeEntry.getLeftChild();
-                res = dfs(tid, dirtypages, leftChild, Permissions.READ_ONLY);
-                break;
-            }
-        }
-        // corner case : search for a non-existent record
-        return res == null ? dfs(tid, dirtypages, pid, perm) : res;
-    }
-
-    private BTreeLeafPage dfs(TransactionId tid, Map<PageId, Page> dirtypages,
-                              BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
-		// base case: when the passed-in BTreePageId has pgcateg() equal to BTreePageId.LEAF then return
-        if (pid.pgcateg() == BTreePageId.LEAF) {
-            BTreeLeafPage bTreeLeafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-            return bTreeLeafPage;
-        }
-        BTreeInternalPage bTreeInternalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-        Iterator<BTreeEntry> iterator = bTreeInternalPage.iterator();
-        BTreeEntry bTreeEntry = iterator.next();
-        BTreePageId leftChild = bTreeEntry.getLeftChild();
-        return dfs(tid, dirtypages, leftChild, Permissions.READ_ONLY);
-    }
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f,
+	 * descending with latch coupling: the lock on each page of the path is taken
+	 * before the lock on the page above it is released. The read locks a descent
+	 * takes on internal pages (and on the page it starts from) are latches, held
+	 * only until the next page down is locked, unless the transaction held them
+	 * before. A structure modification elsewhere in the tree thus only waits for
+	 * the descents passing through the pages it changes at that moment, not for
+	 * the transactions that once read them. The path stays consistent because a
+	 * split or merge write-locks every page it changes, including the parent,
+	 * and keeps those locks until its transaction ends.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param above - the page the descent comes from, such as the root pointer page, or null
+	 * @param latched - whether the lock on above is a latch to release once pid is locked
+	 * @param pid - the page to descend from
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 * @see #isLatch(TransactionId, Map, PageId)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages,
+			PageId above, boolean latched, BTreePageId pid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			boolean latch = isLatch(tid, dirtypages, pid);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			releaseLatch(tid, dirtypages, above, latched);
+			BTreePageId child = page.findChildId(f);
+			if (child == null)
+				throw new DbException("internal page " + pid.getPageNumber() + " has no children");
+			above = pid;
+			latched = latch;
+			pid = child;
+		}
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		releaseLatch(tid, dirtypages, above, latched);
+		return leaf;
+	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
@@ -254,6 +260,54 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Find and read-lock the left-most leaf page possibly containing the key
+	 * field f, starting from the root pointer page. The locks on the root
+	 * pointer and internal pages are released on the way down.
+	 * @see #findLeafPage(TransactionId, Map, PageId, boolean, BTreePageId, Permissions, Field)
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean latched = isLatch(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtrId, latched, rootPtr.getRootId(), Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * Check whether a read lock about to be taken on a page only to find the
+	 * way through the tree can be a latch, released as soon as the way on is
+	 * locked: it can unless the transaction holds a lock on the page already,
+	 * in which case that lock is kept until the transaction ends as usual.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages this operation has locked for writing
+	 * @param pid - the page about to be locked
+	 * @return true if the lock on pid may be released early
+	 */
+	static boolean isLatch(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		return !dirtypages.containsKey(pid) && !Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Release a latch taken after {@link #isLatch} returned true, unless the
+	 * page has since been locked for writing by this operation.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages this operation has locked for writing
+	 * @param pid - the latched page, or null
+	 * @param latched - the result of isLatch for pid
+	 */
+	static void releaseLatch(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid, boolean latched) {
+		if (pid != null && latched && !dirtypages.containsKey(pid))
+			Database.getBufferPool().unsafeReleasePage(tid, pid);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -288,48 +342,67 @@ public class BTreeFile implements DbFile {
 		BTreePageId parentId = page.getParentId();
 		BTreePageId rightSiblingId = page.getRightSiblingId();
 		BTreePageId splitPageId = page.getId();
-		BTreeLeafPage rightLeafPage = rightSiblingId == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 
 		BTreeLeafPage newLeafPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 		BTreePageId newLeafPageId = newLeafPage.getId();
 
-		int numOfTuples = page.getNumTuples();
-		int idxOfTuplesRemoved = (numOfTuples >> 1);
-
-		// move half of the tuples to the new leaf page
-		for ( ; idxOfTuplesRemoved < numOfTuples; idxOfTuplesRemoved++) {
-			Tuple tupleToMoved = page.getTuple(idxOfTuplesRemoved);
-			page.deleteTuple(tupleToMoved);
-			newLeafPage.insertTuple(tupleToMoved);
+		// move the upper half of the tuples to the new leaf page
+		int numToMove = page.getNumTuples() - (page.getNumTuples() >> 1);
+		Iterator<Tuple> it = page.reverseIterator();
+		List<Tuple> toMove = new ArrayList<>();
+		while (toMove.size() < numToMove) {
+			toMove.add(it.next());
+		}
+		for (Tuple tupleToMove : toMove) {
+			page.deleteTuple(tupleToMove);
+			newLeafPage.insertTuple(tupleToMove);
 		}
 
 		// update the sibling pointers of all the affected leaf pages
 		newLeafPage.setLeftSiblingId(splitPageId);
-		page.setRightSiblingId(newLeafPageId);
 		newLeafPage.setRightSiblingId(rightSiblingId);
+		page.setRightSiblingId(newLeafPageId);
 		if (rightSiblingId != null) {
+			BTreeLeafPage rightLeafPage = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			rightLeafPage.setLeftSiblingId(newLeafPageId);
 		}
 
-		// copy the middle key up into the parent page, update the parent page's childId
+		// copy the (shortest separating prefix of the) middle key up into the parent page,
 		// and recursively split the parent as needed to accommodate the new entry
-		Tuple newEntryTuple = newLeafPage.getTuple(0);
-		Field newEntryField = newEntryTuple.getField(0);
-		BTreeEntry newEntry = new BTreeEntry(newEntryField, splitPageId, newLeafPageId);
-		BTreeInternalPage parentPage = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
-		newEntry.setLeftChild(splitPageId);
-		newEntry.setRightChild(newLeafPageId);
-
-		// split the parent page if it is full
-		if (parentPage.getNumEmptySlots() == 0) {
-			BTreeInternalPage internalPage = splitInternalPage(tid, dirtypages, parentPage, newEntryField);
-			internalPage.insertEntry(newEntry);
-		} else {
-			parentPage.insertEntry(newEntry);
-		}
+		Field lastLeftKey = page.reverseIterator().next().getField(keyField);
+		Field firstRightKey = newLeafPage.iterator().next().getField(keyField);
+		Field separator = separatorKey(lastLeftKey, firstRightKey);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, parentId, separator);
+		parent.insertEntry(new BTreeEntry(separator, splitPageId, newLeafPageId));
+		updateParentPointers(tid, dirtypages, parent);
 
 		// Return the page into which a tuple with the given key field should be inserted.
-		return field.compare(Op.LESS_THAN, newEntryField) ? page : newLeafPage;
+		return field.compare(Op.LESS_THAN, separator) ? page : newLeafPage;
+	}
+
+	/**
+	 * Choose the key stored in the parent entry between two adjacent pages. Any
+	 * key greater than the last key on the left and no greater than the first key
+	 * on the right works; for string keys this is the shortest prefix of the
+	 * right key that does so ("suffix truncation"), which keeps internal pages
+	 * dense. Other keys, and keys equal on both sides, are used as they are.
+	 *
+	 * @param lastLeftKey - the largest key on the left-hand page
+	 * @param firstRightKey - the smallest key on the right-hand page
+	 * @return the key for the parent entry
+	 */
+	static Field separatorKey(Field lastLeftKey, Field firstRightKey) {
+		if (!(firstRightKey instanceof StringField) || lastLeftKey == null)
+			return firstRightKey;
+		String left = ((StringField) lastLeftKey).getValue();
+		String right = ((StringField) firstRightKey).getValue();
+		int common = 0;
+		while (common < left.length() && common < right.length()
+				&& left.charAt(common) == right.charAt(common))
+			common++;
+		if (common >= right.length() - 1)
+			return firstRightKey;
+		return new StringField(right.substring(0, common + 1), Type.STRING_LEN);
 	}
 	
 	/**
@@ -368,44 +441,36 @@ public class BTreeFile implements DbFile {
 		// should be inserted.
 
 		// Split the internal page by adding a new page on the right of the existing page.
-		BTreePageId pageId = page.getId();
-		BTreePageId parentId = page.getParentId();
-		BTreeInternalPage parentPage = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
-
 		BTreeInternalPage newInternalPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
-		BTreePageId newInternalPageId = newInternalPage.getId();
-
-		// moving half of the entries to the new page.
-		int numOfEntries = page.getNumEntries();
-		Iterator<BTreeEntry> iterator = page.iterator();
-		BTreeEntry middleEntry = null;
-		for (int index = 0 ; index < numOfEntries; index++) {
-			if (index < (numOfEntries >> 1)) {
-				iterator.next();
-				continue;
-			}
-			BTreeEntry entryToMoved = iterator.next();
-			BTreeEntry newEntry = new BTreeEntry(entryToMoved.getKey(), entryToMoved.getLeftChild(), entryToMoved.getRightChild());
-			page.deleteKeyAndRightChild(entryToMoved);
-			if (index == (numOfEntries >> 1)) {
-				middleEntry = newEntry;
-				continue;
-			}
-			newInternalPage.insertEntry(newEntry);
+
+		// move the upper half of the entries to the new page, from the right so that each
+		// entry shares a child with the entries already there
+		int numToMove = page.getNumEntries() >> 1;
+		Iterator<BTreeEntry> iterator = page.reverseIterator();
+		List<BTreeEntry> toMove = new ArrayList<>();
+		while (toMove.size() < numToMove) {
+			toMove.add(iterator.next());
 		}
+		BTreeEntry middleEntry = iterator.next();
+		for (BTreeEntry entryToMove : toMove) {
+			page.deleteKeyAndRightChild(entryToMove);
+			newInternalPage.insertEntry(entryToMove);
+		}
+		page.deleteKeyAndRightChild(middleEntry);
 
 		// The child pointers of the new parent entry should point to the two internal pages resulting
 		// from the split.
-		middleEntry.setLeftChild(pageId);
-		middleEntry.setRightChild(newInternalPageId);
+		middleEntry.setLeftChild(page.getId());
+		middleEntry.setRightChild(newInternalPage.getId());
 
 		// Push (delete and copy) the middle key up into the parent page, and recursively
 		// split the parent as needed to accommodate the new entry.
 		// Update parent pointers as needed.Don't forget to update the parent pointers
 		// of all the children moving to the new page.
-		BTreeInternalPage parentWithEmptySlots = getParentWithEmptySlots(tid, dirtypages, parentId, middleEntry.getKey());
-		parentWithEmptySlots.insertEntry(middleEntry);
-		updateParentPointers(tid, dirtypages, parentWithEmptySlots);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middleEntry.getKey());
+		parent.insertEntry(middleEntry);
+		updateParentPointers(tid, dirtypages, parent);
+		updateParentPointers(tid, dirtypages, newInternalPage);
 
 		return field.compare(Op.LESS_THAN, middleEntry.getKey()) ? page : newInternalPage;
 	}
@@ -475,12 +540,17 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
 			throws DbException, TransactionAbortedException {
 
+		boolean latch = isLatch(tid, dirtypages, child);
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
+		else {
+			// the child only had to be read; its parent pointer cannot change while pid is write-locked
+			releaseLatch(tid, dirtypages, child, latch);
+		}
 
 	}
 	
@@ -557,7 +627,9 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// get a read latch on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean latched = isLatch(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -569,7 +641,8 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, latched, rootId,
+				Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -632,6 +705,8 @@ public class BTreeFile implements DbFile {
 	 * Handle the case when a leaf page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples, redistribute those tuples.
 	 * Otherwise merge with one of the siblings. Update pointers as needed.
+	 * Redistributing replaces the key in the parent entry; if the parent has no room
+	 * for a longer (variable-length) key, the page is left less than half full.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -662,7 +737,7 @@ public class BTreeFile implements DbFile {
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.canUpdateKeys()) {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
 		}
@@ -673,7 +748,7 @@ public class BTreeFile implements DbFile {
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.canUpdateKeys()) {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
@@ -716,7 +791,10 @@ public class BTreeFile implements DbFile {
 			page.insertTuple(tupleToCopy);
 			sibling.deleteTuple(tupleToSteal);
 		}
-		Field key = isRightSibling ? page.iterator().next().getField(0) : sibling.iterator().next().getField(0);
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		Field key = separatorKey(left.reverseIterator().next().getField(keyField),
+				right.iterator().next().getField(keyField));
 		// step 3 : update the corresponding parent entry
 		entry.setKey(key);
 		parent.updateEntry(entry);
@@ -726,6 +804,8 @@ public class BTreeFile implements DbFile {
 	 * Handle the case when an internal page becomes less than half full due to deletions.
 	 * If one of its siblings has extra entries, redistribute those entries.
 	 * Otherwise merge with one of the siblings. Update pointers as needed.
+	 * Redistributing replaces the key in the parent entry; if the parent has no room
+	 * for a longer (variable-length) key, the page is left less than half full.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -757,7 +837,7 @@ public class BTreeFile implements DbFile {
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.canUpdateKeys()) {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
@@ -768,7 +848,7 @@ public class BTreeFile implements DbFile {
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.canUpdateKeys()) {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 		}
@@ -810,7 +890,7 @@ public class BTreeFile implements DbFile {
 		// so the entries are evenly distributed
 		int halfEntries = (page.getNumEntries() + leftSibling.getNumEntries()) >> 1;
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
-		while (page.getNumEntries() < halfEntries) {
+		while (page.getNumEntries() < halfEntries && page.getNumEmptySlots() > 0) {
 			BTreeEntry entry = it.next();
 			BTreeEntry newEntry = new BTreeEntry(entry.getKey(), entry.getLeftChild(), entry.getRightChild());
 			page.insertEntry(newEntry);
@@ -861,7 +941,7 @@ public class BTreeFile implements DbFile {
 		// step 2 : move some of the entries from the right sibling to the page
 		int halfEntries = (page.getNumEntries() + rightSibling.getNumEntries()) >> 1;
 		Iterator<BTreeEntry> it = rightSibling.iterator();
-		while (page.getNumEntries() < halfEntries) {
+		while (page.getNumEntries() < halfEntries && page.getNumEmptySlots() > 0) {
 			BTreeEntry entry = it.next();
 			BTreeEntry newEntry = new BTreeEntry(entry.getKey(), entry.getLeftChild(), entry.getRightChild());
 			page.insertEntry(newEntry);
@@ -1081,6 +1161,18 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private void createIfEmpty() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1093,18 +1185,19 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
-	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Get the page number of an empty page in this BTreeFile. Free pages are
+	 * found through the in-memory cache of the header pages rather than by
+	 * walking the header pages, and are only reused once their slot has been
+	 * checked and marked used on the header page. If no free page can be
+	 * reused, a new page is handed out from the extent the file last grew by.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the page number of the first empty page
+	 * @return the page number of the empty page
+	 * @see BTreeFreePages
 	 * 
 	 * @throws DbException
 	 * @throws IOException
@@ -1112,50 +1205,23 @@ public class BTreeFile implements DbFile {
 	 */
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
-		}
+		createIfEmpty();
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+		int emptyPageNo;
+		while((emptyPageNo = freePages.take(tid)) > 0) {
+			BTreePageId headerId = freePages.headerId(emptyPageNo);
+			if(headerId == null)
+				continue;
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+			int slot = emptyPageNo % BTreeHeaderPage.getNumSlots();
+			// the cache may be out of date; the header page is not
+			if(!headerPage.isSlotUsed(slot)) {
+				headerPage.markSlotUsed(slot, true);
+				return emptyPageNo;
 			}
 		}
 
-		return emptyPageNo; 
+		return freePages.newPage();
 	}
 	
 	/**
@@ -1229,27 +1295,40 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
+		// start from the cached header page containing the slot corresponding to
+		// emptyPageNo, or the last cached one
+		List<BTreePageId> headerIds = freePages.headerIds();
+		BTreePageId headerId;
 		BTreePageId prevId = null;
 		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+		if(!headerIds.isEmpty()) {
+			headerPageCount = Math.min(emptyPageNo / BTreeHeaderPage.getNumSlots(), headerIds.size() - 1);
+			headerId = headerIds.get(headerPageCount);
+			if(headerPageCount > 0)
+				prevId = headerIds.get(headerPageCount - 1);
+		}
+		else {
+			// otherwise, get a read lock on the root pointer page and use it to locate 
+			// the first header page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			headerId = rootPtr.getHeaderId();
+
+			// if there are no header pages, create the first header page and update
+			// the header pointer in the BTreeRootPtrPage
+			if(headerId == null) {
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+				headerId = headerPage.getId();
+				headerPage.init();
+				rootPtr.setHeaderId(headerId);
+				freePages.added(tid, 0, headerId);
+			}
 		}
 
-		// iterate through all the existing header pages to find the one containing the slot
+		// iterate through the following header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1259,8 +1338,9 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+			freePages.writing(tid, prevId);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
 			headerId = headerPage.getId();
@@ -1269,6 +1349,7 @@ public class BTreeFile implements DbFile {
 			prevPage.setNextPageId(headerId);
 			
 			headerPageCount++;
+			freePages.added(tid, headerPageCount, headerId);
 			prevId = headerId;
 		}
 
@@ -1277,6 +1358,7 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		freePages.freed(tid, headerId, emptyPageNo);
 	}
 
 	/**
@@ -1305,6 +1387,52 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for a range scan over this file. Like indexIterator, it
+	 * returns the tuples matching ipred in key order, but it copies the
+	 * matching tuples out of each leaf page in a single pass, and reads up to
+	 * prefetch of the following leaf pages into the buffer pool in the
+	 * background while the copied tuples are consumed.
+	 * <p>
+	 * If releaseLocks is true, the lock on each leaf page is released as soon
+	 * as its tuples have been copied, unless the transaction already held it.
+	 * The scan then keeps no locks however many leaves it reads (those on
+	 * the path down to its first leaf are only latched), at the price of read committed
+	 * isolation: it does not keep other transactions from changing the range
+	 * once it has been read.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate to filter on, or null to read every tuple
+	 * @param prefetch - the number of leaf pages to read ahead, or 0 for none
+	 * @param releaseLocks - whether to release the locks on the pages read
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, IndexPredicate ipred, int prefetch,
+			boolean releaseLocks) {
+		return new BTreeRangeIterator(this, tid, BTreeRange.of(ipred), ipred, false, prefetch, releaseLocks);
+	}
+
+	/**
+	 * Get an iterator for a bounded range scan over this file. An ascending
+	 * scan descends straight to the first leaf that can hold the lower bound
+	 * of the range and follows right sibling pointers until it passes the
+	 * upper bound. A descending scan descends to the last leaf that can hold
+	 * the upper bound, returns the tuples in reverse key order and follows
+	 * left sibling pointers until it passes the lower bound. Otherwise it
+	 * behaves like {@link #rangeIterator(TransactionId, IndexPredicate, int, boolean)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param range - the range of keys to read
+	 * @param descending - whether to return the tuples in reverse key order
+	 * @param prefetch - the number of leaf pages to read ahead, or 0 for none
+	 * @param releaseLocks - whether to release the locks on the pages read
+	 * @return an iterator for the tuples in the range
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, BTreeRange range, boolean descending,
+			int prefetch, boolean releaseLocks) {
+		return new BTreeRangeIterator(this, tid, range, null, descending, prefetch, releaseLocks);
+	}
+
 }
 
 /**
@@ -1332,10 +1460,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1417,17 +1542,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1490,3 +1613,229 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements a batched range scan over a BTreeFile
+ * @see BTreeFile#rangeIterator
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	/** Threads reading leaf pages ahead of range scans; they never keep the JVM alive */
+	private static final ExecutorService PREFETCHER = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "btree-prefetch");
+		t.setDaemon(true);
+		return t;
+	});
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final BTreeRange range;
+	final IndexPredicate filter;
+	final boolean descending;
+	final int prefetch;
+	final boolean releaseLocks;
+
+	Iterator<Tuple> batch = null;
+	BTreePageId nextp = null;
+	/** leaf pages read ahead of the scan that it has not reached yet */
+	final Set<BTreePageId> ahead = ConcurrentHashMap.newKeySet();
+	Future<?> pending = null;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param range - the range of keys to read
+	 * @param filter - a predicate the keys in the range must also match, or null
+	 * @param descending - whether to read the range in reverse key order
+	 * @param prefetch - the number of leaf pages to read ahead
+	 * @param releaseLocks - whether to release the locks on the pages read
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, BTreeRange range, IndexPredicate filter,
+			boolean descending, int prefetch, boolean releaseLocks) {
+		this.f = f;
+		this.tid = tid;
+		this.range = range;
+		this.filter = filter;
+		this.descending = descending;
+		this.prefetch = prefetch;
+		this.releaseLocks = releaseLocks;
+	}
+
+	/**
+	 * Open this iterator by descending to the leaf page the range starts on,
+	 * in the direction of the scan, and copying out its matching tuples
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if (range.isEmpty()) {
+			batch = Collections.emptyIterator();
+			return;
+		}
+		Field start = descending ? range.getHi() : range.getLo();
+
+		// descend with latch coupling, so that no page of the path is split under the descent
+		Map<PageId, Page> none = Collections.emptyMap();
+		PageId above = BTreeRootPtrPage.getId(f.getId());
+		boolean latched = BTreeFile.isLatch(tid, none, above);
+		BTreePageId pid = ((BTreeRootPtrPage) getPage(above)).getRootId();
+		while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			boolean latch = BTreeFile.isLatch(tid, none, pid);
+			BTreeInternalPage internal = (BTreeInternalPage) getPage(pid);
+			BTreeFile.releaseLatch(tid, none, above, latched);
+			BTreePageId child = descending ? internal.findLastChildId(start) : internal.findChildId(start);
+			if (child == null)
+				throw new DbException("internal page " + pid.getPageNumber() + " has no children");
+			above = pid;
+			latched = latch;
+			pid = child;
+		}
+		if (pid == null) {
+			BTreeFile.releaseLatch(tid, none, above, latched);
+			batch = Collections.emptyIterator();
+			return;
+		}
+		boolean release = releasable(pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(pid);
+		BTreeFile.releaseLatch(tid, none, above, latched);
+		Iterator<Tuple> it;
+		if (descending)
+			it = start == null ? leaf.reverseIterator() : leaf.reverseIterator(start);
+		else
+			it = start == null ? leaf.iterator() : leaf.iterator(start);
+		batch = copyLeaf(leaf, it);
+		release(pid, release);
+	}
+
+	private Page getPage(PageId pid) throws DbException, TransactionAbortedException {
+		return Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * @return true if the scan should release its lock on a leaf page once
+	 *   it has been read: if the scan releases locks and the transaction does
+	 *   not hold one on the page already
+	 */
+	private boolean releasable(PageId pid) {
+		return releaseLocks && !Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	private void release(PageId pid, boolean release) {
+		if (release)
+			Database.getBufferPool().unsafeReleasePage(tid, pid);
+	}
+
+	/**
+	 * Copy the tuples in the range out of a leaf page, in one pass starting
+	 * from the given iterator, and start reading the following leaf pages if
+	 * the scan goes on past this one.
+	 * @return an iterator over the copied tuples
+	 */
+	private Iterator<Tuple> copyLeaf(BTreeLeafPage leaf, Iterator<Tuple> it) {
+		ahead.remove(leaf.getId());
+		nextp = descending ? leaf.getLeftSiblingId() : leaf.getRightSiblingId();
+		List<Tuple> tuples = new ArrayList<>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			Field key = t.getField(f.keyField());
+			if (descending ? range.below(key) : range.above(key)) {
+				// past the end of the range
+				nextp = null;
+				break;
+			}
+			if (range.contains(key) && (filter == null || key.compare(filter.getOp(), filter.getField()))) {
+				Tuple copy = new Tuple(t.getTupleDesc());
+				for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+					copy.setField(i, t.getField(i));
+				copy.setRecordId(t.getRecordId());
+				tuples.add(copy);
+			}
+		}
+		if (nextp != null)
+			prefetchAfter(leaf);
+		return tuples.iterator();
+	}
+
+	/**
+	 * Read the leaf pages following the given one in the direction of the
+	 * scan, up to prefetch of them, into the buffer pool in the background.
+	 * They are found through the leaf's parent, so reading ahead stops at the
+	 * parent's first or last child until the scan moves on to the next
+	 * parent. Pages are read without locks, so a change to the tree made
+	 * meanwhile only makes the guess wrong.
+	 */
+	private void prefetchAfter(BTreeLeafPage leaf) {
+		BTreePageId leafId = leaf.getId();
+		BTreePageId parentId = leaf.getParentId();
+		if (prefetch <= 0 || parentId.pgcateg() != BTreePageId.INTERNAL
+				|| ahead.size() > prefetch / 2 || (pending != null && !pending.isDone()))
+			return;
+		BufferPool pool = Database.getBufferPool();
+		pending = PREFETCHER.submit(() -> {
+			try {
+				BTreeInternalPage parent = (BTreeInternalPage) pool.prefetchPage(parentId);
+				List<BTreePageId> siblings = new ArrayList<>();
+				Iterator<BTreeEntry> entries = descending ? parent.reverseIterator() : parent.iterator();
+				while (entries.hasNext()) {
+					BTreeEntry e = entries.next();
+					BTreePageId first = descending ? e.getRightChild() : e.getLeftChild();
+					if (siblings.isEmpty())
+						siblings.add(first);
+					siblings.add(descending ? e.getLeftChild() : e.getRightChild());
+				}
+				List<BTreePageId> children = new ArrayList<>();
+				for (int i = siblings.indexOf(leafId) + 1; i > 0 && i < siblings.size()
+						&& children.size() < prefetch; i++) {
+					if (!ahead.contains(siblings.get(i)))
+						children.add(siblings.get(i));
+				}
+				ahead.addAll(children);
+				for (BTreePageId child : children)
+					pool.prefetchPage(child);
+			} catch (Exception e) {
+				// reading ahead is only an optimization
+			}
+		});
+	}
+
+	/**
+	 * Read the next tuple from the current batch, or copy the matching tuples
+	 * out of the next leaf page by following the right sibling pointer, or
+	 * the left one for a descending scan.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (batch != null) {
+			if (batch.hasNext())
+				return batch.next();
+			if (nextp == null)
+				return null;
+			BTreePageId pid = nextp;
+			boolean release = releasable(pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(pid);
+			batch = copyLeaf(leaf, descending ? leaf.reverseIterator() : leaf.iterator());
+			release(pid, release);
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		batch = null;
+		nextp = null;
+		ahead.clear();
+	}
+}
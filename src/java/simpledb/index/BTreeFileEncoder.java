@@ -234,6 +234,8 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (BTreeInternalPage.hasVariableKeys(keyType))
+			nentries = BTreeInternalPage.getMaxEntries(keyType);
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
@@ -266,7 +268,9 @@ public class BTreeFileEncoder {
 				leftSiblingId = leafPid;
 
 				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
+				Field separator = BTreeFile.separatorKey(page1.get(page1.size() - 1).getField(keyField),
+						page2.get(0).getField(keyField));
+				BTreeEntry copyUpEntry = new BTreeEntry(separator, leafPid, null);
 				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
 						keyType, tableid, keyField);
 
@@ -314,7 +318,9 @@ public class BTreeFileEncoder {
 			bf.writePage(lastPage);
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
+			Field separator = BTreeFile.separatorKey(secondToLastPg.get(secondToLastPg.size() - 1).getField(keyField),
+					lastPg.get(0).getField(keyField));
+			BTreeEntry copyUpEntry = new BTreeEntry(separator, secondToLastPid, lastPid);
 			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
 					keyType, tableid, keyField);
 		}
@@ -621,6 +627,9 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreeInternalPage.hasVariableKeys(keyType))
+			return convertToVarKeyInternalPage(entries, npagebytes, keyType, childPageCategory);
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -694,6 +703,46 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * with variable-length keys
+	 * 
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	private static byte[] convertToVarKeyInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory)
+					throws IOException {
+		int nentries = BTreeInternalPage.getMaxEntries(keyType);
+		int nheaderbytes = BTreeInternalPage.getHeaderSize(keyType);
+		int entrycount = Math.min(entries.size(), nentries);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		// the first entrycount + 1 slots are used
+		byte[] header = new byte[nheaderbytes];
+		for (int i=0; i<entrycount + 1; i++)
+			header[i / 8] |= (1 << (i % 8));
+		dos.write(header);
+
+		entries.sort(new EntryComparator());
+		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		for(int e = 0; e < entrycount; e++) {
+			String key = ((StringField) entries.get(e).getKey()).getValue();
+			dos.writeByte(key.length());
+			dos.writeBytes(key);
+			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+		}
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - dos.size()]);
+
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
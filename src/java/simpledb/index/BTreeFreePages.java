@@ -0,0 +1,257 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeFreePages keeps, in memory, the page numbers that the header pages of
+ * a BTreeFile mark as free, and the ids of the header pages themselves, so
+ * that finding a page to reuse does not walk and lock the chain of header
+ * pages. It is read from the committed header pages on disk when first used.
+ * <p>
+ * The header pages remain the record of which pages are free: a page taken
+ * from this cache is only reused after its slot has been checked and marked
+ * used on the header page, under a write lock. The cache is only a hint.
+ * Pages freed or taken by a transaction are not offered to other
+ * transactions until it completes (its header page lock would make them
+ * abort), after which the cache is read again from disk, so that it reflects
+ * whether the transaction committed or aborted.
+ * <p>
+ * When no free page can be reused, new pages are handed out from an extent
+ * of EXTENT_PAGES pages that the file is grown by at once. The pages of an
+ * extent are filled with 0xFF until they are handed out. No page in use
+ * looks like that, since each starts with a page number, so the pages still
+ * unused when the file is closed are taken back as the current extent when
+ * the file is next used.
+ *
+ * @see BTreeFile#getEmptyPageNo
+ * @see BTreeFile#setEmptyPage
+ */
+class BTreeFreePages {
+
+	/** The number of pages the file is grown by when no page can be reused */
+	static final int EXTENT_PAGES = 16;
+	/** The byte the pages of an extent are filled with until they are handed out */
+	private static final byte UNUSED = (byte) 0xFF;
+
+	private final BTreeFile bf;
+
+	/**
+	 * Ids of the committed header pages, and those added by the current
+	 * writer, in chain order, or null until read
+	 */
+	private List<BTreePageId> headerIds;
+	/** Page numbers whose header slot is free */
+	private final BitSet free = new BitSet();
+	/** Transactions that may have changed header pages, with a header page each has locked */
+	private final Map<TransactionId, BTreePageId> writers = new HashMap<>();
+	private boolean stale = false;
+
+	/** The next page of the current extent to hand out, or 0 if there is none */
+	private int nextNew = 0;
+	/** The first page past the current extent */
+	private int extentEnd = 0;
+	/** True once the unused pages at the end of the file have been taken back */
+	private boolean reclaimed = false;
+
+	BTreeFreePages(BTreeFile bf) {
+		this.bf = bf;
+	}
+
+	/**
+	 * Take a free page that tid may reuse, if there is one. The caller must
+	 * lock the page's header page and check the slot is still free.
+	 * @param tid - the transaction id
+	 * @return the number of a page whose slot was free, or -1 if there is none
+	 */
+	synchronized int take(TransactionId tid) {
+		refresh();
+		if (!writers.isEmpty() && !(writers.size() == 1 && writers.containsKey(tid)))
+			return -1;
+		int pageNo = free.nextSetBit(1);
+		if (pageNo < 0)
+			return -1;
+		free.clear(pageNo);
+		writers.put(tid, headerId(pageNo));
+		return pageNo;
+	}
+
+	/**
+	 * Record that tid marked pageNo free on its header page.
+	 * @param tid - the transaction id
+	 * @param headerId - the header page holding the slot of pageNo
+	 * @param pageNo - the page number
+	 */
+	synchronized void freed(TransactionId tid, BTreePageId headerId, int pageNo) {
+		refresh();
+		writers.put(tid, headerId);
+		if (pageNo / BTreeHeaderPage.getNumSlots() < headerIds.size())
+			free.set(pageNo);
+	}
+
+	/**
+	 * Record that tid will change header pages, such as to link a new one.
+	 * @param tid - the transaction id
+	 * @param headerId - a header page tid has locked
+	 */
+	synchronized void writing(TransactionId tid, BTreePageId headerId) {
+		refresh();
+		writers.put(tid, headerId);
+	}
+
+	/**
+	 * Record that tid added a header page at the end of the chain. Until tid
+	 * completes, only tid is offered the pages it frees there.
+	 * @param tid - the transaction id
+	 * @param index - the position of the new header page in the chain
+	 * @param headerId - the new header page
+	 */
+	synchronized void added(TransactionId tid, int index, BTreePageId headerId) {
+		refresh();
+		writers.put(tid, headerId);
+		if (index == headerIds.size())
+			headerIds.add(headerId);
+	}
+
+	/**
+	 * @param pageNo - a page number
+	 * @return the id of the header page holding the slot of pageNo, or null
+	 *   if that header page does not exist yet
+	 */
+	synchronized BTreePageId headerId(int pageNo) {
+		refresh();
+		int k = pageNo / BTreeHeaderPage.getNumSlots();
+		return k < headerIds.size() ? headerIds.get(k) : null;
+	}
+
+	/**
+	 * @return the ids of the header pages, in chain order
+	 */
+	synchronized List<BTreePageId> headerIds() {
+		refresh();
+		return new ArrayList<>(headerIds);
+	}
+
+	/**
+	 * Hand out a page that has never been used, growing the file by a whole
+	 * extent when the current one is used up.
+	 * @return the number of the new page
+	 */
+	synchronized int newPage() throws IOException {
+		reclaim();
+		if (nextNew == 0 || nextNew >= extentEnd) {
+			int pages = filePages();
+			byte[] extent = new byte[EXTENT_PAGES * BufferPool.getPageSize()];
+			Arrays.fill(extent, UNUSED);
+			try (RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "rw")) {
+				rf.seek(BTreeRootPtrPage.getPageSize() + (long) pages * BufferPool.getPageSize());
+				rf.write(extent);
+			}
+			nextNew = pages + 1;
+			extentEnd = pages + EXTENT_PAGES + 1;
+		}
+		return nextNew++;
+	}
+
+	/**
+	 * @return the number of pages handed out, not counting those of the
+	 *   current extent that are still unused
+	 */
+	synchronized int numPages() {
+		reclaim();
+		return nextNew == 0 ? filePages() : nextNew - 1;
+	}
+
+	private int filePages() {
+		// we only ever write full pages
+		return (int) ((bf.getFile().length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Take back the pages at the end of the file that an extent added but
+	 * that were never handed out, so that they are handed out again and not
+	 * counted by numPages.
+	 */
+	private void reclaim() {
+		if (reclaimed)
+			return;
+		reclaimed = true;
+		int pages = filePages();
+		if (pages <= 0)
+			return;
+		int last = pages;
+		try (RandomAccessFile rf = new RandomAccessFile(bf.getFile(), "r")) {
+			byte[] data = new byte[BufferPool.getPageSize()];
+			while (last > 0) {
+				rf.seek(BTreeRootPtrPage.getPageSize() + (long) (last - 1) * BufferPool.getPageSize());
+				rf.readFully(data);
+				if (!isUnused(data))
+					break;
+				last--;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (last < pages) {
+			nextNew = last + 1;
+			extentEnd = pages + 1;
+		}
+	}
+
+	private static boolean isUnused(byte[] data) {
+		for (byte b : data) {
+			if (b != UNUSED)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Forget writers that have completed, and once none is left, read the
+	 * header pages again if any of them may have changed.
+	 */
+	private void refresh() {
+		BufferPool pool = Database.getBufferPool();
+		Iterator<Map.Entry<TransactionId, BTreePageId>> it = writers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<TransactionId, BTreePageId> w = it.next();
+			if (w.getValue() == null || !pool.holdsLock(w.getKey(), w.getValue())) {
+				it.remove();
+				stale = true;
+			}
+		}
+		if (headerIds == null || (stale && writers.isEmpty()))
+			load();
+	}
+
+	/**
+	 * Read the free slots of the header pages. The pages are read straight
+	 * from disk, which holds what committed transactions wrote, since pages
+	 * are written back when, and only when, their transaction commits.
+	 */
+	private void load() {
+		headerIds = new ArrayList<>();
+		free.clear();
+		stale = false;
+		if (bf.getFile().length() == 0)
+			return;
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		while (headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) bf.readPage(headerId);
+			int base = headerIds.size() * numSlots;
+			for (int i = 0; i < numSlots; i++) {
+				if (!headerPage.isSlotUsed(i))
+					free.set(base + i);
+			}
+			headerIds.add(headerId);
+			headerId = headerPage.getNextPageId();
+		}
+	}
+}
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -27,9 +28,18 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private final boolean varKeys;
 	
 	private int childCategory; // either leaf or internal
 
+	// size of the largest and smallest entry (key length byte, key and child pointer)
+	// on a page with variable-length keys
+	private static final int MAX_VAR_ENTRY_SIZE = 1 + Type.STRING_LEN + INDEX_SIZE;
+	private static final int MIN_VAR_ENTRY_SIZE = 1 + INDEX_SIZE;
+
+	// sorted view of the used slots, rebuilt after any change to slots or keys
+	private volatile BTreeKeyIndex keyIndex = null;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -62,6 +72,15 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages keyed on a string field store their keys with variable length
+	 * instead, since separator keys are truncated to the shortest prefix
+	 * that tells their children apart (see {@link BTreeFile#separatorKey}).
+	 * After the header come the used slots only, in slot order: the first
+	 * child pointer, then for each entry a length byte, the key bytes and
+	 * the right child pointer. Such a page has more slots than it can fill,
+	 * and counts as full when the next entry might not fit in the space left
+	 * for keys; getMaxEntries() is the number of maximum-length keys that fit.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,7 +91,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.varKeys = hasVariableKeys(td.getFieldType(key));
+		this.numSlots = getNumSlots(td.getFieldType(key));
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -92,24 +112,39 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (varKeys) {
+			// read the used slots, each a key (except for slot 0) and a child pointer
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				if (i > 0) {
+					byte[] bs = new byte[dis.readUnsignedByte()];
+					dis.readFully(bs);
+					keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+				}
+				children[i] = dis.readInt();
+			}
 		}
+		else {
+			try{
+				// allocate and read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// allocate and read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -120,7 +155,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Retrieve the maximum number of entries (keys) an internal page keyed on the
+	 * given type can hold. For variable-length keys this is the number of
+	 * maximum-length keys that fit; shorter keys let the page hold more.
+	 * @param keyType - the type of the key field
+	 */
+	public static int getMaxEntries(Type keyType) {
+		if (hasVariableKeys(keyType)) {
+			int keyBytes = BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - getHeaderSize(keyType);
+			return keyBytes / MAX_VAR_ENTRY_SIZE;
+		}
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,17 +178,74 @@ public class BTreeInternalPage extends BTreePage {
 	}
 
 	/**
-	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
+	 * @return true if internal pages keyed on the given type store variable-length keys
+	 */
+	static boolean hasVariableKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Computes the number of slots (including the slot of the first child pointer) of a
+	 * B+ internal page keyed on the given type. A page with variable-length keys has a
+	 * slot for as many minimum-size entries as fit on the page.
+	 */
+	private static int getNumSlots(Type keyType) {
+		if (hasVariableKeys(keyType))
+			return (BufferPool.getPageSize() - 2 * INDEX_SIZE - 1) / MIN_VAR_ENTRY_SIZE + 1;
+		return getMaxEntries(keyType) + 1;
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a B+ internal page keyed on the given type
 	 * @return the number of bytes in the header
 	 */
-	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+	static int getHeaderSize(Type keyType) {
+		int slotsPerPage = getNumSlots(keyType);
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	private int getHeaderSize() {        
+		return getHeaderSize(td.getFieldType(keyField));
+	}
+
+	/**
+	 * @return the number of slots on this page, including the slot of the first child pointer
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes on a page with
+	 * variable-length keys
+	 */
+	private static int getVarEntrySize(Field key) {
+		return MIN_VAR_ENTRY_SIZE + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * @return the number of bytes left for entries on a page with variable-length keys
+	 */
+	private int getFreeKeyBytes() {
+		int free = getMaxEntries() * MAX_VAR_ENTRY_SIZE;
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				free -= getVarEntrySize(keys[i]);
+		return free;
+	}
+
+	/**
+	 * Returns true if the key of any entry on this page can be replaced by
+	 * another key with updateEntry. That always holds for fixed-length keys;
+	 * with variable-length keys the page must have room for a longer key.
+	 */
+	public boolean canUpdateKeys() {
+		return !varKeys || getFreeKeyBytes() >= MAX_VAR_ENTRY_SIZE - MIN_VAR_ENTRY_SIZE;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -266,6 +372,27 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (varKeys) {
+			// write the used slots, each a key (except for slot 0) and a child pointer
+			try {
+				for (int i=0; i<numSlots; i++) {
+					if (!isSlotUsed(i))
+						continue;
+					if (i > 0) {
+						String key = ((StringField) keys[i]).getValue();
+						dos.writeByte(key.length());
+						dos.writeBytes(key);
+					}
+					dos.writeInt(children[i]);
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -413,6 +540,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (varKeys && getVarEntrySize(e.getKey()) - getVarEntrySize(keys[rid.getTupleNumber()]) > getFreeKeyBytes())
+			throw new DbException("no room on page for updated key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -435,6 +564,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		keyIndex = null;
 	}
 
 	/**
@@ -482,6 +612,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
+		if (varKeys && getVarEntrySize(e.getKey()) > getFreeKeyBytes())
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
@@ -566,11 +698,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page with
+	 * variable-length keys this is the number of maximum-length keys that
+	 * still fit.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -579,6 +717,8 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if (varKeys)
+			cnt = Math.min(cnt, getFreeKeyBytes() / MAX_VAR_ENTRY_SIZE);
 		return cnt;
 	}
 
@@ -599,12 +739,68 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		keyIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child page that a search for the given key should descend into:
+	 * the left child of the first entry whose key is greater than or equal to
+	 * f, or the right-most child if every key is less than f. The keys are
+	 * binary searched, so no BTreeEntry is created along the way.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if this page is empty
+	 */
+	public BTreePageId findChildId(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		if (index.size() == 0)
+			return null;
+		int pos = f == null ? 1 : index.lowerBound(f);
+		return new BTreePageId(pid.getTableId(), children[index.slot(pos - 1)], childCategory);
+	}
+
+	/**
+	 * Find the child page that a descending search for the given key should
+	 * start from: the left child of the first entry whose key is strictly
+	 * greater than f, or the right-most child if no key is greater than f.
+	 * Every key less than or equal to f lies in that child or to its left.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page, or null if this page is empty
+	 */
+	public BTreePageId findLastChildId(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		if (index.size() == 0)
+			return null;
+		int pos = f == null ? index.size() : index.upperBound(f);
+		return new BTreePageId(pid.getTableId(), children[index.slot(pos - 1)], childCategory);
+	}
+
+	/**
+	 * Return the sorted view of the used slots on this page, building it if
+	 * the page has changed since it was last built. Position 0 is the slot
+	 * holding the left-most child pointer; its key is not used.
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if (index == null) {
+			int[] slots = new int[numSlots];
+			Field[] sortedKeys = new Field[numSlots];
+			int size = 0;
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[size] = i;
+					sortedKeys[size++] = keys[i];
+				}
+			}
+			index = new BTreeKeyIndex(slots, sortedKeys, size, 1, td.getFieldType(keyField));
+			keyIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -745,7 +941,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -0,0 +1,104 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+/**
+ * A sorted, densely packed view of the keys on one B+ tree page. Pages keep
+ * their entries in header-mapped slots that may have holes, so a search over
+ * the slots themselves has to skip empty ones. BTreeKeyIndex lists the used
+ * slots in key order so that a page can be binary searched. Integer keys are
+ * copied into a primitive array and compared without touching any Field.
+ * <p>
+ * An index is a snapshot: pages drop it whenever a slot or key changes and
+ * rebuild it on the next search.
+ *
+ * @see BTreeInternalPage#findChildId
+ * @see BTreeLeafPage#iterator(Field)
+ */
+final class BTreeKeyIndex {
+
+	private final int[] slots;
+	private final int size;
+	private final int firstKey;
+	private final int[] intKeys;
+	private final Field[] keys;
+
+	/**
+	 * @param slots - the used slots of the page, in key order
+	 * @param keys - the key stored in each of those slots; keys before firstKey are ignored
+	 * @param size - the number of used slots
+	 * @param firstKey - the position of the first slot carrying a key
+	 * @param type - the type of the keys
+	 */
+	BTreeKeyIndex(int[] slots, Field[] keys, int size, int firstKey, Type type) {
+		this.slots = slots;
+		this.size = size;
+		this.firstKey = firstKey;
+		if (type == Type.INT_TYPE) {
+			this.intKeys = new int[size];
+			for (int i = firstKey; i < size; i++)
+				intKeys[i] = ((IntField) keys[i]).getValue();
+			this.keys = null;
+		} else {
+			this.intKeys = null;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * @return the number of used slots
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot at the given position in key order
+	 */
+	int slot(int pos) {
+		return slots[pos];
+	}
+
+	/**
+	 * @return the position of the first key greater than or equal to f, or
+	 *   size() if there is none
+	 */
+	int lowerBound(Field f) {
+		return search(f, false);
+	}
+
+	/**
+	 * @return the position of the first key strictly greater than f, or
+	 *   size() if there is none
+	 */
+	int upperBound(Field f) {
+		return search(f, true);
+	}
+
+	private int search(Field f, boolean strict) {
+		int lo = firstKey, hi = size;
+		if (intKeys != null) {
+			int v = ((IntField) f).getValue();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (intKeys[mid] < v || (strict && intKeys[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		} else {
+			Op op = strict ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid].compare(op, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -27,6 +27,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// sorted view of the used slots, rebuilt after any change to slots
+	private volatile BTreeKeyIndex keyIndex = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -326,16 +329,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		BTreeKeyIndex index = keyIndex();
+		int greaterPos = index.upperBound(t.getField(keyField));
+		int lessOrEqKey = greaterPos == 0 ? -1 : index.slot(greaterPos - 1);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -472,6 +468,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		keyIndex = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -486,6 +483,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose key is greater than or
+	 * equal to f, in key order. The first such tuple is found by binary search.
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		int pos = index.lowerBound(f);
+		return new BTreeLeafPageIterator(this, pos == index.size() ? numSlots : index.slot(pos));
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -494,6 +502,39 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose key is less than or
+	 * equal to f, in reverse key order. The first such tuple is found by binary search.
+	 */
+	public Iterator<Tuple> reverseIterator(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		int pos = index.upperBound(f);
+		return new BTreeLeafPageReverseIterator(this, pos == 0 ? -1 : index.slot(pos - 1));
+	}
+
+	/**
+	 * Return the sorted view of the used slots on this page, building it if
+	 * the page has changed since it was last built.
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if (index == null) {
+			int[] slots = new int[numSlots];
+			Field[] keys = new Field[numSlots];
+			int size = 0;
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i)) {
+					slots[size] = i;
+					keys[size++] = tuples[i].getField(keyField);
+				}
+			}
+			index = new BTreeKeyIndex(slots, keys, size, 0, td.getFieldType(keyField));
+			keyIndex = index;
+		}
+		return index;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -532,6 +573,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -581,6 +627,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -0,0 +1,169 @@
+package simpledb.index;
+
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+
+import java.io.Serializable;
+
+/**
+ * BTreeRange is an interval of keys, such as lo &lt;= k &lt; hi, that a range
+ * scan seeks to and stops at. Either end may be open, and each bound is
+ * inclusive or exclusive on its own. Several predicates on the same key are
+ * combined into one range with intersect, so that a scan seeks straight to
+ * its lower bound instead of filtering from the start of the tree.
+ *
+ * @see BTreeFile#rangeIterator(simpledb.transaction.TransactionId, BTreeRange, boolean, int, boolean)
+ */
+public class BTreeRange implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The range of every key */
+	public static final BTreeRange ALL = new BTreeRange(null, false, null, false);
+
+	private final Field lo;
+	private final boolean loInclusive;
+	private final Field hi;
+	private final boolean hiInclusive;
+
+	/**
+	 * Constructor
+	 * @param lo - the lower bound, or null if the range has none
+	 * @param loInclusive - whether keys equal to lo are in the range
+	 * @param hi - the upper bound, or null if the range has none
+	 * @param hiInclusive - whether keys equal to hi are in the range
+	 */
+	public BTreeRange(Field lo, boolean loInclusive, Field hi, boolean hiInclusive) {
+		this.lo = lo;
+		this.loInclusive = lo != null && loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hi != null && hiInclusive;
+	}
+
+	/**
+	 * @param ipred - an index predicate, or null
+	 * @return the range of keys matching ipred. Predicates that do not
+	 *   describe a range, such as NOT_EQUALS, and null give ALL.
+	 */
+	public static BTreeRange of(IndexPredicate ipred) {
+		if (ipred == null)
+			return ALL;
+		Field v = ipred.getField();
+		switch (ipred.getOp()) {
+		case EQUALS:
+			return new BTreeRange(v, true, v, true);
+		case GREATER_THAN:
+			return new BTreeRange(v, false, null, false);
+		case GREATER_THAN_OR_EQ:
+			return new BTreeRange(v, true, null, false);
+		case LESS_THAN:
+			return new BTreeRange(null, false, v, false);
+		case LESS_THAN_OR_EQ:
+			return new BTreeRange(null, false, v, true);
+		default:
+			return ALL;
+		}
+	}
+
+	/**
+	 * @param other - another range over the same key
+	 * @return the range of keys in both this range and other
+	 */
+	public BTreeRange intersect(BTreeRange other) {
+		Field newLo = lo;
+		boolean newLoInclusive = loInclusive;
+		if (other.lo != null && (lo == null || other.lo.compare(Op.GREATER_THAN, lo)
+				|| (other.lo.equals(lo) && !other.loInclusive))) {
+			newLo = other.lo;
+			newLoInclusive = other.loInclusive;
+		}
+		Field newHi = hi;
+		boolean newHiInclusive = hiInclusive;
+		if (other.hi != null && (hi == null || other.hi.compare(Op.LESS_THAN, hi)
+				|| (other.hi.equals(hi) && !other.hiInclusive))) {
+			newHi = other.hi;
+			newHiInclusive = other.hiInclusive;
+		}
+		return new BTreeRange(newLo, newLoInclusive, newHi, newHiInclusive);
+	}
+
+	/**
+	 * @return true if key lies before the start of this range
+	 */
+	public boolean below(Field key) {
+		return lo != null && (loInclusive ? key.compare(Op.LESS_THAN, lo) : key.compare(Op.LESS_THAN_OR_EQ, lo));
+	}
+
+	/**
+	 * @return true if key lies past the end of this range
+	 */
+	public boolean above(Field key) {
+		return hi != null && (hiInclusive ? key.compare(Op.GREATER_THAN, hi) : key.compare(Op.GREATER_THAN_OR_EQ, hi));
+	}
+
+	/**
+	 * @return true if key lies in this range
+	 */
+	public boolean contains(Field key) {
+		return !below(key) && !above(key);
+	}
+
+	/**
+	 * @return true if no key can lie in this range
+	 */
+	public boolean isEmpty() {
+		if (lo == null || hi == null)
+			return false;
+		return lo.compare(Op.GREATER_THAN, hi) || (lo.equals(hi) && !(loInclusive && hiInclusive));
+	}
+
+	/**
+	 * @return the lower bound, or null if there is none
+	 */
+	public Field getLo() {
+		return lo;
+	}
+
+	/**
+	 * @return whether keys equal to the lower bound are in the range
+	 */
+	public boolean isLoInclusive() {
+		return loInclusive;
+	}
+
+	/**
+	 * @return the upper bound, or null if there is none
+	 */
+	public Field getHi() {
+		return hi;
+	}
+
+	/**
+	 * @return whether keys equal to the upper bound are in the range
+	 */
+	public boolean isHiInclusive() {
+		return hiInclusive;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof BTreeRange))
+			return false;
+		BTreeRange r = (BTreeRange) o;
+		return loInclusive == r.loInclusive && hiInclusive == r.hiInclusive
+				&& (lo == null ? r.lo == null : lo.equals(r.lo))
+				&& (hi == null ? r.hi == null : hi.equals(r.hi));
+	}
+
+	@Override
+	public int hashCode() {
+		return (lo == null ? 0 : lo.hashCode()) * 31 + (hi == null ? 0 : hi.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return (loInclusive ? "[" : "(") + (lo == null ? "-inf" : lo) + ", "
+				+ (hi == null ? "+inf" : hi) + (hiInclusive ? "]" : ")");
+	}
+}
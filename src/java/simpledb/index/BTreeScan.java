@@ -28,6 +28,11 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private boolean rangeScan = false;
+	private int prefetch;
+	private boolean releaseLocks;
+	private BTreeRange range = null;
+	private boolean descending = false;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -54,6 +59,58 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan that reads the matching tuples with a batched
+	 * range scan, reading leaf pages ahead and optionally releasing the lock
+	 * on each leaf once it has been read.
+	 * 
+	 * @param prefetch
+	 *            the number of leaf pages to read ahead, or 0 for none
+	 * @param releaseLocks
+	 *            whether to release the lock on each leaf page once it has
+	 *            been read, for read committed isolation
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 * @see BTreeFile#rangeIterator
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			int prefetch, boolean releaseLocks) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.rangeScan = true;
+		this.prefetch = prefetch;
+		this.releaseLocks = releaseLocks;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * Creates a B+ tree scan that reads the tuples whose keys lie in a range
+	 * with a batched range scan, in key order or in reverse key order.
+	 * 
+	 * @param range
+	 *            the range of keys to read
+	 * @param descending
+	 *            whether to return the tuples in reverse key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate, int, boolean)
+	 * @see BTreeFile#rangeIterator(TransactionId, BTreeRange, boolean, int, boolean)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, BTreeRange range,
+			boolean descending, int prefetch, boolean releaseLocks) {
+		this.tid = tid;
+		this.range = range;
+		this.descending = descending;
+		this.rangeScan = true;
+		this.prefetch = prefetch;
+		this.releaseLocks = releaseLocks;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * @return true if this scan returns tuples in reverse key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -87,7 +144,15 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(range != null) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).rangeIterator(tid, range,
+					descending, prefetch, releaseLocks);
+		}
+		else if(rangeScan) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).rangeIterator(tid, ipred,
+					prefetch, releaseLocks);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
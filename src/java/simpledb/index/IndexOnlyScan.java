@@ -0,0 +1,179 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which answers a query over a HeapFile from one
+ * of its secondary indexes alone, without reading the heap. It returns the
+ * fields of the table stored in the index entries, the key and any included
+ * fields, in the order they have in the table and in key order, or in
+ * reverse key order.
+ * <p>
+ * It can replace a scan of the table whenever the index covers every field of
+ * the table the query reads.
+ *
+ * @see SecondaryIndex#covers
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final BTreeRange range;
+	private final boolean descending;
+	private final int[] fields;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator entries;
+
+	/**
+	 * Creates a scan over the entries of a secondary index.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields named tableAlias.fieldName
+	 * @param range
+	 *            the range of keys to read
+	 * @param descending
+	 *            whether to return the entries in reverse key order
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, BTreeRange range,
+			boolean descending) {
+		this.tid = tid;
+		this.index = index;
+		this.alias = tableAlias;
+		this.range = range;
+		this.descending = descending;
+
+		SortedSet<Integer> stored = new TreeSet<>();
+		stored.add(index.getKeyField());
+		for (int f : index.getIncludedFields())
+			stored.add(f);
+		fields = stored.stream().mapToInt(Integer::intValue).toArray();
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[fields.length];
+		Type[] newTypes = new Type[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(fields[i]);
+			newTypes[i] = td.getFieldType(fields[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * Creates a scan over the entries of a secondary index whose keys satisfy
+	 * ipred, in key order, or over every entry if ipred is null.
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, BTreeRange.of(ipred), false);
+	}
+
+	/**
+	 * @return the index this scan reads
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return true if this scan returns entries in reverse key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * @return the covering index over a table with the fewest pages among
+	 *   those that store all the given fields and, if keyField is not -1,
+	 *   are keyed on keyField; or null if there is none
+	 */
+	public static SecondaryIndex findCoveringIndex(int tableId, Collection<Integer> fields, int keyField) {
+		SecondaryIndex best = null;
+		for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+			if ((keyField != -1 && index.getKeyField() != keyField) || !index.covers(fields))
+				continue;
+			if (best == null || index.getFile().numPages() < best.getFile().numPages())
+				best = index;
+		}
+		return best;
+	}
+
+	/**
+	 * @return the name of the indexed table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the indexed table
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		entries = index.entryIterator(tid, range, descending);
+		entries.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the fields of the indexed table stored in the
+	 * index, with field names prefixed with the tableAlias string from the
+	 * constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return entries.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple entry = entries.next();
+		Tuple t = new Tuple(myTd);
+		for (int i = 0; i < fields.length; i++)
+			t.setField(i, index.getField(entry, fields[i]));
+		t.setRecordId(index.recordId(entry));
+		return t;
+	}
+
+	public void close() {
+		if (entries != null)
+			entries.close();
+		entries = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,246 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexScan is an operator which reads the tuples of a HeapFile through one
+ * of its secondary indexes. Matching index entries are read in batches; each
+ * batch of RecordIds is sorted by page and tuple number before the heap is
+ * read, so every heap page touched by a batch is fetched once and pages are
+ * visited in file order.
+ * <p>
+ * Tuples are returned in key order within a batch only if they happen to be
+ * laid out in key order in the heap; use BTreeScan over a clustered BTreeFile
+ * when sorted output is needed.
+ *
+ * @see SecondaryIndex
+ */
+public class IndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Default number of RecordIds fetched from the heap at a time */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private static final Comparator<RecordId> FILE_ORDER = Comparator
+			.comparingInt((RecordId rid) -> rid.getPageId().getPageNumber())
+			.thenComparingInt(RecordId::getTupleNumber);
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final BTreeRange range;
+	private final int batchSize;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator entries;
+	private transient Iterator<Tuple> batch;
+
+	/**
+	 * Creates a scan over a table through one of its secondary indexes.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan; it determines the table read.
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields named tableAlias.fieldName
+	 * @param range
+	 *            the range of keys to read
+	 * @param batchSize
+	 *            the number of RecordIds to read from the index before
+	 *            fetching the tuples they point to
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, BTreeRange range,
+			int batchSize) {
+		this.tid = tid;
+		this.index = index;
+		this.alias = tableAlias;
+		this.range = range;
+		this.batchSize = Math.max(1, batchSize);
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * Creates a scan over the tuples of a table whose keys satisfy ipred, or
+	 * over every tuple if ipred is null.
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+			int batchSize) {
+		this(tid, index, tableAlias, BTreeRange.of(ipred), batchSize);
+	}
+
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, ipred, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @return true if an index can answer an IndexPredicate with the given
+	 *   operator
+	 */
+	public static boolean supports(Op op) {
+		return op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ
+				|| op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ;
+	}
+
+	/**
+	 * @return the secondary index over the given field of a table, or null
+	 *   if there is none
+	 */
+	public static SecondaryIndex findIndex(int tableId, int field) {
+		for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+			if (index.getKeyField() == field)
+				return index;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the table is a BTreeFile keyed on field or has a
+	 *   secondary index on field
+	 */
+	public static boolean hasIndex(int tableId, int field) {
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field)
+			return true;
+		return findIndex(tableId, field) != null;
+	}
+
+	/**
+	 * Build an operator reading the tuples of a table that satisfy ipred on
+	 * the given field, through the table itself if it is a BTreeFile keyed on
+	 * that field, or else through a secondary index on it.
+	 *
+	 * @return a BTreeScan or an IndexScan, or null if the table has no index
+	 *   on field or the index cannot answer ipred
+	 */
+	public static OpIterator forPredicate(TransactionId tid, int tableId, String tableAlias, int field,
+			IndexPredicate ipred) {
+		if (!supports(ipred.getOp()))
+			return null;
+		return forRange(tid, tableId, tableAlias, field, BTreeRange.of(ipred));
+	}
+
+	/**
+	 * Build an operator reading the tuples of a table whose values of the
+	 * given field lie in range, like forPredicate. The scan seeks straight to
+	 * the start of the range and stops at its end.
+	 *
+	 * @return a BTreeScan or an IndexScan, or null if the table has no index
+	 *   on field
+	 */
+	public static OpIterator forRange(TransactionId tid, int tableId, String tableAlias, int field,
+			BTreeRange range) {
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field)
+			return new BTreeScan(tid, tableId, tableAlias, range, false, BTreeFile.DEFAULT_PREFETCH, false);
+		SecondaryIndex index = findIndex(tableId, field);
+		if (index == null)
+			return null;
+		return new IndexScan(tid, index, tableAlias, range, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @return the name of the indexed table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the indexed table
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		entries = index.entryIterator(tid, range, false);
+		entries.open();
+		batch = Collections.emptyIterator();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		while (!batch.hasNext() && entries.hasNext())
+			batch = nextBatch();
+		return batch.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return batch.next();
+	}
+
+	/**
+	 * Read up to batchSize RecordIds from the index and fetch their tuples,
+	 * one heap page at a time.
+	 */
+	private Iterator<Tuple> nextBatch() throws TransactionAbortedException, DbException {
+		List<RecordId> rids = new ArrayList<>(batchSize);
+		while (rids.size() < batchSize && entries.hasNext())
+			rids.add(index.recordId(entries.next()));
+		rids.sort(FILE_ORDER);
+
+		List<Tuple> tuples = new ArrayList<>(rids.size());
+		HeapPage page = null;
+		for (RecordId rid : rids) {
+			if (page == null || !page.getId().equals(rid.getPageId()))
+				page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if (t == null)
+				throw new DbException("index entry points to an empty slot: " + rid);
+			tuples.add(t);
+		}
+		return tuples.iterator();
+	}
+
+	public void close() {
+		if (entries != null)
+			entries.close();
+		entries = null;
+		batch = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
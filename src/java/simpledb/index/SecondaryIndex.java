@@ -0,0 +1,271 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SecondaryIndex is a non-clustered index over one field of a HeapFile. It is
+ * a BTreeFile whose tuples are index entries of the form (key, included
+ * fields..., page number, tuple number): the key is the value of the indexed
+ * field, and the page and tuple numbers form the RecordId of the heap tuple
+ * holding it.
+ * <p>
+ * An index may be declared with included fields, other fields of the table
+ * whose values are copied into its entries. A query reading only the key and
+ * included fields is covered by the index and can be answered by an
+ * IndexOnlyScan without reading the heap.
+ * <p>
+ * Once registered with {@link simpledb.common.Catalog#addIndex}, the index is
+ * kept up to date by BufferPool.insertTuple and BufferPool.deleteTuple, so its
+ * pages are locked, logged and evicted like those of any other table.
+ *
+ * @see IndexScan
+ * @see IndexOnlyScan
+ */
+public class SecondaryIndex {
+
+	/** Position of the key in an index entry */
+	public static final int KEY_FIELD = 0;
+
+	private final BTreeFile file;
+	private final int tableId;
+	private final int keyField;
+	private final int[] includedFields;
+
+	/**
+	 * Create a secondary index backed by the specified file. The file is
+	 * expected to be empty or to hold entries for the table already.
+	 *
+	 * @param f - the file backing the index
+	 * @param tableId - the id of the HeapFile being indexed
+	 * @param keyField - the field of the table being indexed
+	 * @param includedFields - the fields of the table copied into the entries
+	 */
+	public SecondaryIndex(File f, int tableId, int keyField, int... includedFields) {
+		this(new BTreeFile(f, KEY_FIELD,
+				entryDesc(Database.getCatalog().getTupleDesc(tableId), keyField, includedFields)),
+				tableId, keyField, includedFields);
+	}
+
+	private SecondaryIndex(BTreeFile file, int tableId, int keyField, int[] includedFields) {
+		this.file = file;
+		this.tableId = tableId;
+		this.keyField = keyField;
+		this.includedFields = includedFields.clone();
+	}
+
+	/**
+	 * Build a secondary index over the current contents of a table with
+	 * BTreeBulkLoader, and register it in the catalog under the given name.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableId - the id of the HeapFile being indexed
+	 * @param keyField - the field of the table being indexed
+	 * @param f - the file to back the index; any contents are replaced
+	 * @param name - the name of the index in the catalog
+	 * @param includedFields - the fields of the table copied into the entries
+	 * @return the new index
+	 */
+	public static SecondaryIndex build(TransactionId tid, int tableId, int keyField, File f, String name,
+			int... includedFields) throws DbException, TransactionAbortedException, IOException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+		TupleDesc entryTd = entryDesc(table.getTupleDesc(), keyField, includedFields);
+		DbFileIterator tuples = table.iterator(tid);
+		DbFileIterator entries = new DbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				tuples.open();
+			}
+
+			public boolean hasNext() throws DbException, TransactionAbortedException {
+				return tuples.hasNext();
+			}
+
+			public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+				return entry(tuples.next(), keyField, includedFields, entryTd);
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				tuples.rewind();
+			}
+
+			public void close() {
+				tuples.close();
+			}
+		};
+		BTreeFile bf = new BTreeBulkLoader(KEY_FIELD).load(entries, entryTd, f, name);
+		SecondaryIndex index = new SecondaryIndex(bf, tableId, keyField, includedFields);
+		Database.getCatalog().addIndex(index, name);
+		return index;
+	}
+
+	/**
+	 * @return the tuple descriptor of the entries of an index over the
+	 *   given field of a table with the given tuple descriptor, including
+	 *   the given other fields
+	 */
+	public static TupleDesc entryDesc(TupleDesc tableTd, int keyField, int... includedFields) {
+		int n = includedFields.length;
+		Type[] types = new Type[n + 3];
+		String[] names = new String[n + 3];
+		types[KEY_FIELD] = tableTd.getFieldType(keyField);
+		names[KEY_FIELD] = tableTd.getFieldName(keyField);
+		for (int i = 0; i < n; i++) {
+			types[i + 1] = tableTd.getFieldType(includedFields[i]);
+			names[i + 1] = tableTd.getFieldName(includedFields[i]);
+		}
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "pgno";
+		types[n + 2] = Type.INT_TYPE;
+		names[n + 2] = "tupleno";
+		return new TupleDesc(types, names);
+	}
+
+	private static Tuple entry(Tuple t, int keyField, int[] includedFields, TupleDesc entryTd) {
+		RecordId rid = t.getRecordId();
+		int n = includedFields.length;
+		Tuple e = new Tuple(entryTd);
+		e.setField(KEY_FIELD, t.getField(keyField));
+		for (int i = 0; i < n; i++)
+			e.setField(i + 1, t.getField(includedFields[i]));
+		e.setField(n + 1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(n + 2, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	/**
+	 * @return the RecordId of the heap tuple an index entry points to
+	 */
+	public RecordId recordId(Tuple entry) {
+		int n = includedFields.length;
+		int pgNo = ((IntField) entry.getField(n + 1)).getValue();
+		int tupleNo = ((IntField) entry.getField(n + 2)).getValue();
+		return new RecordId(new HeapPageId(tableId, pgNo), tupleNo);
+	}
+
+	/**
+	 * Read the value of a field of the indexed table from an index entry.
+	 *
+	 * @param entry - the index entry
+	 * @param field - the key field or one of the included fields
+	 * @return the value of field in the heap tuple the entry points to
+	 * @throws IllegalArgumentException if the index does not store field
+	 */
+	public Field getField(Tuple entry, int field) {
+		if (field == keyField)
+			return entry.getField(KEY_FIELD);
+		for (int i = 0; i < includedFields.length; i++) {
+			if (includedFields[i] == field)
+				return entry.getField(i + 1);
+		}
+		throw new IllegalArgumentException("field " + field + " is not stored in the index");
+	}
+
+	/**
+	 * @return the BTreeFile holding the index entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the id of the table being indexed
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the field of the table being indexed
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the fields of the table copied into the index entries
+	 */
+	public int[] getIncludedFields() {
+		return includedFields.clone();
+	}
+
+	/**
+	 * @return true if the index stores every one of the given fields of the
+	 *   table, as its key or as included fields
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for (int field : fields) {
+			if (field != keyField && Arrays.stream(includedFields).noneMatch(f -> f == field))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add the entry for a tuple that has just been inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @return the index pages that were modified
+	 */
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, entry(t, keyField, includedFields, file.getTupleDesc()));
+	}
+
+	/**
+	 * Remove the entry for a tuple that is being deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @return the index pages that were modified
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public List<Page> deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		DbFileIterator it = file.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+		Tuple found = null;
+		it.open();
+		while (found == null && it.hasNext()) {
+			Tuple e = it.next();
+			if (recordId(e).equals(rid))
+				found = e;
+		}
+		it.close();
+		if (found == null)
+			throw new DbException("index has no entry for " + rid);
+		return file.deleteTuple(tid, found);
+	}
+
+	/**
+	 * @return an iterator over the index entries whose keys satisfy ipred, in
+	 *   key order, or over all entries if ipred is null; leaf pages of the
+	 *   index are read ahead of the scan
+	 */
+	public DbFileIterator entryIterator(TransactionId tid, IndexPredicate ipred) {
+		return file.rangeIterator(tid, ipred, BTreeFile.DEFAULT_PREFETCH, false);
+	}
+
+	/**
+	 * @return an iterator over the index entries whose keys lie in range, in
+	 *   key order or in reverse key order; leaf pages of the index are read
+	 *   ahead of the scan
+	 */
+	public DbFileIterator entryIterator(TransactionId tid, BTreeRange range, boolean descending) {
+		return file.rangeIterator(tid, range, descending, BTreeFile.DEFAULT_PREFETCH, false);
+	}
+}
@@ -0,0 +1,227 @@
+package simpledb.optimizer;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * ColumnGroupStats summarizes how the values of a group of columns of a
+ * table, declared with {@link simpledb.common.Catalog#addColumnGroup},
+ * depend on each other, for estimating predicates on several of them at
+ * once without assuming that they are independent:
+ * <ul>
+ * <li>a HyperLogLog sketch of the number of distinct combinations of
+ * values of the columns (the group's NDV);</li>
+ * <li>for each ordered pair of columns a and b, the degree to which a
+ * functionally determines b: the fraction of the rows whose value of a
+ * always occurs with the same value of b. A degree of 1 means that b is
+ * known once a is, as a city is once its zip code is.</li>
+ * </ul>
+ * Like {@link ColumnStats}, it is built from a sample of the table. Inserted
+ * tuples are added to the sketch. Deleted tuples are not removed: the sketch
+ * cannot forget values, so the statistics of a group are only refreshed
+ * when the table is analyzed again, which TableStats does in the background
+ * once enough of the table has changed. The degrees are kept until then too.
+ */
+public class ColumnGroupStats {
+
+    /** The hash a null value of a column is combined into the group's key as */
+    private static final long NULL_KEY = 0x5bd1e9955bd1e995L;
+
+    /** The columns of the group, in ascending order */
+    private final int[] fields;
+
+    private final HyperLogLog sketch;
+    /** The number of distinct combinations of the table per distinct combination of the sample */
+    private final double ndvScale;
+    /** The estimate of the sketch, or -1 if tuples were added since it was made */
+    private double sketched = -1;
+
+    /** degrees[a][b] is the degree to which fields[a] determines fields[b] */
+    private final double[][] degrees;
+
+    private ColumnGroupStats(int[] fields, HyperLogLog sketch, double ndvScale, double[][] degrees) {
+        this.fields = fields;
+        this.sketch = sketch;
+        this.ndvScale = ndvScale;
+        this.degrees = degrees;
+    }
+
+    /**
+     * Build the statistics of a group of columns from a sample of the table.
+     *
+     * @param sample the tuples sampled
+     * @param fields the columns of the group, in ascending order
+     * @param tableRows the estimated number of rows of the table
+     */
+    static ColumnGroupStats build(StatsCollector.Sample sample, int[] fields, int tableRows) {
+        int n = sample.rows;
+        long[][] keys = new long[fields.length][];
+        for (int a = 0; a < fields.length; a++)
+            keys[a] = sample.columns[fields[a]].rowKeys(NULL_KEY);
+        HyperLogLog sketch = new HyperLogLog();
+        long[] combined = new long[n];
+        for (int i = 0; i < n; i++) {
+            long h = 0;
+            for (long[] column : keys)
+                h = combine(h, column[i]);
+            combined[i] = h;
+            sketch.add(h);
+        }
+
+        // scale the distinct combinations of the sample up to the table, as
+        // ColumnStats does for the values of one column
+        long[] sorted = combined.clone();
+        Arrays.sort(sorted);
+        int distinct = 0, singletons = 0;
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j < n && sorted[j] == sorted[i])
+                j++;
+            distinct++;
+            if (j - i == 1)
+                singletons++;
+            i = j;
+        }
+        double ndv = distinct;
+        if (n < tableRows && n > 0) {
+            ndv = (double) n * distinct / (n - singletons + (double) singletons * n / tableRows);
+            ndv = Math.max(distinct, Math.min(tableRows, ndv));
+        }
+        double sketched = sketch.estimate();
+        double ndvScale = sketched > 0 ? ndv / sketched : 1.0;
+
+        double[][] degrees = new double[fields.length][fields.length];
+        for (int a = 0; a < fields.length; a++) {
+            for (int b = 0; b < fields.length; b++) {
+                if (a != b)
+                    degrees[a][b] = degree(keys[a], keys[b]);
+            }
+        }
+        return new ColumnGroupStats(fields, sketch, ndvScale, degrees);
+    }
+
+    /**
+     * @param a the keys of the values of column a in each row
+     * @param b the keys of the values of column b in each row
+     * @return the fraction of the rows whose value of column a is not null
+     *         and always occurs with the same value of column b
+     */
+    private static double degree(long[] a, long[] b) {
+        int n = a.length;
+        long[][] pairs = new long[n][];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (a[i] != NULL_KEY)
+                pairs[size++] = new long[] { a[i], b[i] };
+        }
+        if (size == 0)
+            return 0.0;
+        Arrays.sort(pairs, 0, size, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+        int determined = 0;
+        for (int i = 0; i < size; ) {
+            int j = i;
+            boolean same = true;
+            while (j < size && pairs[j][0] == pairs[i][0]) {
+                same &= pairs[j][1] == pairs[i][1];
+                j++;
+            }
+            if (same)
+                determined += j - i;
+            i = j;
+        }
+        return (double) determined / n;
+    }
+
+    private static long combine(long h, long key) {
+        return HyperLogLog.hash(h * 0x9e3779b97f4a7c15L + key);
+    }
+
+    /** @return the key of a value, as StatsCollector.Column#key gives it */
+    private static long key(Field f) {
+        if (f == null)
+            return NULL_KEY;
+        return f instanceof IntField ? ((IntField) f).getValue() : HyperLogLog.hash(((StringField) f).getValue());
+    }
+
+    /**
+     * @return the columns of the group, in ascending order
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * @return the index of field in the group, or -1 if it is not in it
+     */
+    int indexOf(int field) {
+        int i = Arrays.binarySearch(fields, field);
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * Add a tuple inserted into the table to the sketch of distinct
+     * combinations.
+     */
+    public synchronized void addTuple(Tuple t) {
+        long h = 0;
+        for (int field : fields)
+            h = combine(h, key(t.getField(field)));
+        sketch.add(h);
+        sketched = -1;
+    }
+
+    /**
+     * @return the estimated number of distinct combinations of values of the
+     *         columns of the group in the table
+     */
+    public synchronized double distinctValues() {
+        if (sketched < 0)
+            sketched = sketch.estimate();
+        return sketched == 0 ? 0.0 : Math.max(1.0, sketched * ndvScale);
+    }
+
+    /**
+     * @return the degree, in [0, 1], to which the value of field a determines
+     *         the value of field b; 0 if either is not in the group
+     */
+    public double dependencyDegree(int a, int b) {
+        int ia = indexOf(a), ib = indexOf(b);
+        return ia < 0 || ib < 0 || ia == ib ? 0.0 : degrees[ia][ib];
+    }
+
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(fields.length);
+        for (int field : fields)
+            out.writeInt(field);
+        sketch.write(out);
+        out.writeDouble(ndvScale);
+        for (double[] row : degrees) {
+            for (double d : row)
+                out.writeDouble(d);
+        }
+    }
+
+    static ColumnGroupStats read(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 2 || size > 64)
+            throw new IOException("corrupt column group stats");
+        int[] fields = new int[size];
+        for (int i = 0; i < size; i++)
+            fields[i] = in.readInt();
+        HyperLogLog sketch = HyperLogLog.read(in);
+        double ndvScale = in.readDouble();
+        double[][] degrees = new double[size][size];
+        for (double[] row : degrees) {
+            for (int b = 0; b < size; b++)
+                row[b] = in.readDouble();
+        }
+        return new ColumnGroupStats(fields, sketch, ndvScale, degrees);
+    }
+}
@@ -0,0 +1,427 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * ColumnStats summarizes the values of one column of a table, for
+ * estimating the selectivity of predicates on it and the cardinality of
+ * joins on it:
+ * <ul>
+ * <li>a list of the most common values (MCVs) and how often each occurs;</li>
+ * <li>an equi-depth histogram of the other values, whose buckets each hold
+ * about the same number of values, so that skewed data gets narrow buckets
+ * where it is dense;</li>
+ * <li>a HyperLogLog sketch of the number of distinct values (NDV);</li>
+ * <li>the fraction of values that are null, and the average width of the
+ * others.</li>
+ * </ul>
+ * Values are placed in order by their integer value, or for strings by
+ * {@link TableStats#stringToInt}, so ranges of strings are estimated from
+ * their first characters only; most common strings and distinct strings are
+ * told apart by a hash of the whole string.
+ * <p>
+ * ColumnStats is built from the values of a sample of the table; counts are
+ * in the units of the sample, and only fractions are returned. It is kept
+ * up to date as values are inserted and deleted, and is safe to use from
+ * several threads.
+ */
+public class ColumnStats {
+
+    /** The number of buckets of the histogram */
+    static final int NUM_BUCKETS = TableStats.NUM_HIST_BINS;
+
+    /** The most values kept in the list of most common values */
+    static final int MAX_MCVS = 100;
+
+    /** The fraction of non-null values a LIKE predicate is assumed to match */
+    static final double LIKE_SELECTIVITY = 0.1;
+
+    /** The number of values added, nulls included */
+    private int rows;
+    private int nulls;
+    /** The total width in bytes of the non-null values */
+    private long width;
+
+    private final HyperLogLog sketch;
+    /** The number of distinct values of the table per distinct value of the sample */
+    private final double ndvScale;
+    /** The estimate of the sketch, or -1 if values were added since it was made */
+    private double sketched = -1;
+
+    /** The keys of the most common values, ascending; see StatsCollector.Column#key */
+    private final long[] mcvKeys;
+    /** The order of each of the most common values, as in StatsCollector.Column#value */
+    private final int[] mcvValues;
+    private final int[] mcvCounts;
+
+    /** The bounds of the histogram buckets; bucket i holds values in [bounds[i], bounds[i+1]] */
+    private int[] bounds;
+    /** The number of values in each bucket */
+    private int[] counts;
+
+    private ColumnStats(int rows, int nulls, long width, HyperLogLog sketch, double ndvScale,
+            long[] mcvKeys, int[] mcvValues, int[] mcvCounts, int[] bounds, int[] counts) {
+        this.rows = rows;
+        this.nulls = nulls;
+        this.width = width;
+        this.sketch = sketch;
+        this.ndvScale = ndvScale;
+        this.mcvKeys = mcvKeys;
+        this.mcvValues = mcvValues;
+        this.mcvCounts = mcvCounts;
+        this.bounds = bounds;
+        this.counts = counts;
+    }
+
+    /**
+     * Build the statistics of a column from a sample of its values.
+     *
+     * @param col the values sampled
+     * @param tableRows the estimated number of rows of the table, which is
+     *            more than the number sampled if only part of it was read
+     */
+    static ColumnStats build(StatsCollector.Column col, int tableRows) {
+        int n = col.size();
+        HyperLogLog sketch = col.sketch;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = col.key(i);
+        if (sketch == null) {
+            sketch = new HyperLogLog();
+            for (long key : keys)
+                sketch.add(HyperLogLog.hash(key));
+        }
+        Arrays.sort(keys);
+
+        // the distinct values of the sample, and how often each occurs
+        int distinct = 0, singletons = 0;
+        long[] runKeys = new long[n];
+        int[] runCounts = new int[n];
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j < n && keys[j] == keys[i])
+                j++;
+            runKeys[distinct] = keys[i];
+            runCounts[distinct++] = j - i;
+            if (j - i == 1)
+                singletons++;
+            i = j;
+        }
+
+        // keep every value if they all fit and the whole table was read, else
+        // the values clearly more common than average
+        int rowsRead = n + col.nulls;
+        boolean complete = rowsRead >= tableRows;
+        int minCount = complete && distinct <= MAX_MCVS ? 1
+                : Math.max(2, (int) Math.ceil(1.25 * n / Math.max(1, distinct)));
+        Integer[] order = new Integer[distinct];
+        int candidates = 0;
+        for (int r = 0; r < distinct; r++) {
+            if (runCounts[r] >= minCount)
+                order[candidates++] = r;
+        }
+        Arrays.sort(order, 0, candidates, (a, b) -> Integer.compare(runCounts[b], runCounts[a]));
+        int numMcvs = Math.min(candidates, MAX_MCVS);
+        int[] mcvRuns = new int[numMcvs];
+        for (int m = 0; m < numMcvs; m++)
+            mcvRuns[m] = order[m];
+        Arrays.sort(mcvRuns);
+        long[] mcvKeys = new long[numMcvs];
+        int[] mcvCounts = new int[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            mcvKeys[m] = runKeys[mcvRuns[m]];
+            mcvCounts[m] = runCounts[mcvRuns[m]];
+        }
+
+        // the histogram holds the values that are not among the most common
+        int[] mcvValues = new int[numMcvs];
+        int[] rest = new int[n];
+        int restSize = 0;
+        for (int i = 0; i < n; i++) {
+            int m = Arrays.binarySearch(mcvKeys, col.key(i));
+            if (m >= 0)
+                mcvValues[m] = col.value(i);
+            else
+                rest[restSize++] = col.value(i);
+        }
+        Arrays.sort(rest, 0, restSize);
+        int numBuckets = Math.min(NUM_BUCKETS, restSize);
+        int[] bounds = new int[numBuckets == 0 ? 0 : numBuckets + 1];
+        int[] counts = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            int from = (int) ((long) b * restSize / numBuckets);
+            int to = (int) ((long) (b + 1) * restSize / numBuckets);
+            bounds[b] = rest[from];
+            counts[b] = to - from;
+        }
+        if (numBuckets > 0)
+            bounds[numBuckets] = rest[restSize - 1];
+
+        // if every row was read but only a sample kept, the sketch of every
+        // row counts the distinct values; else scale the distinct values of
+        // a sample up to the table with the Duj1 estimator of Haas et al.:
+        // values seen once are likely to be some of many more that were not seen
+        double ndv = distinct;
+        if (!complete && col.sketch != null && col.sketchedRows >= tableRows) {
+            ndv = Math.max(distinct, sketch.estimate());
+        } else if (!complete && n > 0) {
+            double tableValues = (double) tableRows * n / rowsRead;
+            ndv = (double) n * distinct / (n - singletons + singletons * n / tableValues);
+            ndv = Math.max(distinct, Math.min(tableValues, ndv));
+        }
+        double sketched = sketch.estimate();
+        double ndvScale = sketched > 0 ? ndv / sketched : 1.0;
+
+        return new ColumnStats(rowsRead, col.nulls, col.width, sketch, ndvScale,
+                mcvKeys, mcvValues, mcvCounts, bounds, counts);
+    }
+
+    /**
+     * Add a value inserted into the table. It is counted in the most common
+     * values if it is one, else in the bucket of the histogram it falls in,
+     * which is widened if it lies beyond the ends of the histogram. The
+     * most common values and bucket bounds are otherwise kept as they are.
+     */
+    public synchronized void addValue(Field f) {
+        rows++;
+        if (f == null) {
+            nulls++;
+            return;
+        }
+        width += f.getType() == Type.INT_TYPE ? Type.INT_TYPE.getLen() : ((StringField) f).getValue().length();
+        long key = key(f);
+        int value = value(f);
+        sketch.add(HyperLogLog.hash(key));
+        sketched = -1;
+        int m = Arrays.binarySearch(mcvKeys, key);
+        if (m >= 0) {
+            mcvCounts[m]++;
+            return;
+        }
+        if (counts.length == 0) {
+            bounds = new int[] { value, value };
+            counts = new int[] { 1 };
+            return;
+        }
+        int b = bucket(value);
+        bounds[0] = Math.min(bounds[0], value);
+        bounds[counts.length] = Math.max(bounds[counts.length], value);
+        counts[b]++;
+    }
+
+    /**
+     * Remove a value deleted from the table from the count of the most
+     * common value or histogram bucket it was counted in. The sketch cannot
+     * forget values, so the number of distinct values is not lowered until
+     * the table is analyzed again.
+     */
+    public synchronized void removeValue(Field f) {
+        if (rows == 0)
+            return;
+        rows--;
+        if (f == null) {
+            nulls = Math.max(0, nulls - 1);
+            return;
+        }
+        width = Math.max(0, width - (f.getType() == Type.INT_TYPE ? Type.INT_TYPE.getLen()
+                : ((StringField) f).getValue().length()));
+        int m = Arrays.binarySearch(mcvKeys, key(f));
+        if (m >= 0 && mcvCounts[m] > 0) {
+            mcvCounts[m]--;
+            return;
+        }
+        if (counts.length == 0)
+            return;
+        int b = bucket(value(f));
+        if (counts[b] > 0)
+            counts[b]--;
+    }
+
+    /** @return the bucket value falls in, or the first or last if it lies beyond the histogram */
+    private int bucket(int value) {
+        int b = 0;
+        while (b < counts.length - 1 && value > bounds[b + 1])
+            b++;
+        return b;
+    }
+
+    private long key(Field f) {
+        return f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                : HyperLogLog.hash(((StringField) f).getValue());
+    }
+
+    private int value(Field f) {
+        return f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                : TableStats.stringToInt(((StringField) f).getValue());
+    }
+
+    /**
+     * @return the estimated number of distinct non-null values in the table
+     */
+    public synchronized double distinctValues() {
+        if (rows == nulls)
+            return 0.0;
+        if (sketched < 0)
+            sketched = sketch.estimate();
+        return Math.max(1.0, sketched * ndvScale);
+    }
+
+    /**
+     * @return the fraction of the values that are null
+     */
+    public synchronized double nullFraction() {
+        return rows == 0 ? 0.0 : (double) nulls / rows;
+    }
+
+    /**
+     * @return the average width in bytes of the non-null values; for strings,
+     *         the length of the string, not the width of the column
+     */
+    public synchronized double avgWidth() {
+        return rows == nulls ? 0.0 : (double) width / (rows - nulls);
+    }
+
+    /**
+     * Estimate the selectivity of the predicate <tt>column op constant</tt>.
+     *
+     * @return the estimated fraction of the rows, nulls included, that
+     *         satisfy the predicate
+     */
+    public synchronized double estimateSelectivity(Predicate.Op op, Field constant) {
+        if (rows == 0)
+            return 0.0;
+        double nonNull = 1.0 - nullFraction();
+        long key = key(constant);
+        int value = value(constant);
+        double sel;
+        switch (op) {
+            case EQUALS:
+                sel = equalsFraction(key, value);
+                break;
+            case NOT_EQUALS:
+                sel = nonNull - equalsFraction(key, value);
+                break;
+            case LESS_THAN:
+                sel = lessThanFraction(value);
+                break;
+            case LESS_THAN_OR_EQ:
+                sel = lessThanFraction(value) + equalsFraction(key, value);
+                break;
+            case GREATER_THAN:
+                sel = nonNull - lessThanFraction(value) - equalsFraction(key, value);
+                break;
+            case GREATER_THAN_OR_EQ:
+                sel = nonNull - lessThanFraction(value);
+                break;
+            case LIKE:
+                sel = LIKE_SELECTIVITY * nonNull;
+                break;
+            default:
+                sel = 1.0;
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the fraction of the rows equal to the value with key and value:
+     *         its own count if it is a most common value, else an even share
+     *         of the histogram among the distinct values in it
+     */
+    private double equalsFraction(long key, int value) {
+        int m = Arrays.binarySearch(mcvKeys, key);
+        if (m >= 0)
+            return (double) mcvCounts[m] / rows;
+        if (counts.length == 0 || value < bounds[0] || value > bounds[counts.length])
+            return 0.0;
+        double restDistinct = Math.max(1.0, distinctValues() - mcvKeys.length);
+        return histogramRows() / rows / restDistinct;
+    }
+
+    /**
+     * @return the fraction of the rows less than value, interpolating
+     *         linearly within the bucket value falls in
+     */
+    private double lessThanFraction(int value) {
+        double less = 0.0;
+        for (int m = 0; m < mcvKeys.length; m++) {
+            if (mcvValues[m] < value)
+                less += mcvCounts[m];
+        }
+        for (int b = 0; b < counts.length; b++) {
+            if (bounds[b + 1] < value)
+                less += counts[b];
+            else if (bounds[b] < value)
+                less += counts[b] * ((double) value - bounds[b]) / ((double) bounds[b + 1] - bounds[b]);
+        }
+        return less / rows;
+    }
+
+    private double histogramRows() {
+        double sum = 0;
+        for (int c : counts)
+            sum += c;
+        return sum;
+    }
+
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(rows);
+        out.writeInt(nulls);
+        out.writeLong(width);
+        sketch.write(out);
+        out.writeDouble(ndvScale);
+        out.writeInt(mcvKeys.length);
+        for (int m = 0; m < mcvKeys.length; m++) {
+            out.writeLong(mcvKeys[m]);
+            out.writeInt(mcvValues[m]);
+            out.writeInt(mcvCounts[m]);
+        }
+        out.writeInt(counts.length);
+        for (int b = 0; b < counts.length; b++) {
+            out.writeInt(bounds[b]);
+            out.writeInt(counts[b]);
+        }
+        if (counts.length > 0)
+            out.writeInt(bounds[counts.length]);
+    }
+
+    static ColumnStats read(DataInput in) throws IOException {
+        int rows = in.readInt();
+        int nulls = in.readInt();
+        long width = in.readLong();
+        HyperLogLog sketch = HyperLogLog.read(in);
+        double ndvScale = in.readDouble();
+        int numMcvs = in.readInt();
+        if (numMcvs < 0 || numMcvs > MAX_MCVS)
+            throw new IOException("corrupt column stats");
+        long[] mcvKeys = new long[numMcvs];
+        int[] mcvValues = new int[numMcvs];
+        int[] mcvCounts = new int[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            mcvKeys[m] = in.readLong();
+            mcvValues[m] = in.readInt();
+            mcvCounts[m] = in.readInt();
+        }
+        int numBuckets = in.readInt();
+        if (numBuckets < 0 || numBuckets > NUM_BUCKETS)
+            throw new IOException("corrupt column stats");
+        int[] bounds = new int[numBuckets == 0 ? 0 : numBuckets + 1];
+        int[] counts = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            bounds[b] = in.readInt();
+            counts[b] = in.readInt();
+        }
+        if (numBuckets > 0)
+            bounds[numBuckets] = in.readInt();
+        return new ColumnStats(rows, nulls, width, sketch, ndvScale,
+                mcvKeys, mcvValues, mcvCounts, bounds, counts);
+    }
+}
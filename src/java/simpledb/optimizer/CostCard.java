@@ -14,4 +14,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public List<LogicalJoinNode> plan;
+    /** The join the optimal subplan performs last */
+    public LogicalJoinNode join;
 }
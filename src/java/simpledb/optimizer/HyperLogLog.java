@@ -0,0 +1,96 @@
+package simpledb.optimizer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al.) estimates the number of distinct
+ * values added to it in a fixed 2^PRECISION bytes, whatever the number of
+ * values, with a standard error of about 1.04 / sqrt(2^PRECISION). Small
+ * counts are estimated by linear counting over the empty registers, which
+ * is close to exact. Values are added as 64-bit hashes; see {@link #hash}.
+ */
+public class HyperLogLog {
+
+    /** The number of bits of each hash that pick a register */
+    static final int PRECISION = 12;
+
+    private static final int NUM_REGISTERS = 1 << PRECISION;
+
+    /** For each register, the largest rank of the hashes that picked it */
+    private final byte[] registers = new byte[NUM_REGISTERS];
+
+    /**
+     * Add a value to the sketch.
+     * @param hash a 64-bit hash of the value
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        // the guard bit bounds the rank when the remaining bits are all 0
+        long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index])
+            registers[index] = rank;
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public double estimate() {
+        double sum = 0.0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / NUM_REGISTERS);
+        double estimate = alpha * NUM_REGISTERS * NUM_REGISTERS / sum;
+        if (estimate <= 2.5 * NUM_REGISTERS && zeros > 0)
+            estimate = NUM_REGISTERS * Math.log((double) NUM_REGISTERS / zeros);
+        return estimate;
+    }
+
+    /**
+     * Add the values added to other to this sketch.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < NUM_REGISTERS; i++)
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+    }
+
+    /**
+     * @return a 64-bit hash of v, with its bits well mixed (MurmurHash3's finalizer)
+     */
+    public static long hash(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    /**
+     * @return a 64-bit hash of s (64-bit FNV-1a, mixed with {@link #hash(long)})
+     */
+    public static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return hash(h);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.write(registers);
+    }
+
+    static HyperLogLog read(DataInput in) throws IOException {
+        HyperLogLog sketch = new HyperLogLog();
+        in.readFully(sketch.registers);
+        return sketch;
+    }
+}
@@ -56,6 +56,8 @@ public class IntHistogram {
     /** get index of value v
      * */
     private int getIndex(int v) {
+        // values added after construction may fall outside [min, max]
+        if (v < min) return 0;
         return Math.min((v - this.min) / wb, numOfBuckets - 1);
     }
 
@@ -3,9 +3,11 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.IndexScan;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.swing.*;
@@ -17,6 +19,14 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * The most connected sets of joins orderJoins plans exhaustively; larger
+     * join graphs are ordered heuristically
+     */
+    public static final int MAX_DP_JOIN_SETS = 1 << 16;
+    /** The time, in milliseconds, heuristic join ordering spends on a plan */
+    public static final long HEURISTIC_BUDGET_MILLIS = 100;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -75,18 +85,22 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
+        if (lj.algorithm == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP
+                && plan2 instanceof SeqScan
+                && IndexNestedLoopJoin.canProbe(p, (SeqScan) plan2)) {
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE
+                && SortMergeJoin.supports(lj.p)) {
+            if (lj.sort1)
+                plan1 = new OrderBy(t1id, true, plan1);
+            if (lj.sort2)
+                plan2 = new OrderBy(t2id, true, plan2);
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS
+                && lj.algorithm != LogicalJoinNode.Algorithm.NESTED_LOOP) {
+            HashEquiJoin hj = new HashEquiJoin(p, plan1, plan2);
+            hj.setEstimatedChildCardinalities(lj.card1, lj.card2);
+            j = hj;
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -136,6 +150,108 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Estimate the cost of a join performed with the specified algorithm.
+     * <p>
+     * A nested-loops join scans the right-hand side once for every tuple of
+     * the left-hand side, and costs as much as
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     * A hash join, which only performs equality joins, hashes the left-hand
+     * side in batches of HashEquiJoin.MAP_SIZE tuples and scans the
+     * right-hand side once for each batch, probing with each of its tuples.
+     * A sort-merge join reads each side once, given that both are already
+     * sorted on their join fields; the cost of sorting them is not included
+     * (see {@link TableStats#estimateSortCost}).
+     * Index nested-loops joins depend on the index of the right-hand table
+     * and are estimated by {@link #estimateIndexJoinCost}.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param a
+     *            The algorithm performing the join; NESTED_LOOP, HASH or
+     *            SORT_MERGE
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand side
+     * @return An estimate of the cost of the join, or
+     *         Double.POSITIVE_INFINITY if a cannot perform j
+     */
+    public double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm a,
+            int card1, int card2, double cost1, double cost2) {
+        switch (a) {
+            case NESTED_LOOP:
+                return estimateJoinCost(j, card1, card2, cost1, cost2);
+            case HASH:
+                if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS)
+                    return Double.POSITIVE_INFINITY;
+                double passes = Math.max(1, Math.ceil((double) card1 / HashEquiJoin.MAP_SIZE));
+                return cost1 + passes * cost2 + card1 + passes * card2;
+            case SORT_MERGE:
+                if (j instanceof LogicalSubplanJoinNode || !SortMergeJoin.supports(j.p))
+                    return Double.POSITIVE_INFINITY;
+                return cost1 + cost2 + card1 + card2;
+            default:
+                throw new IllegalArgumentException("Cannot estimate the cost of " + a
+                        + " joins without the right-hand table; see estimateIndexJoinCost");
+        }
+    }
+
+    /**
+     * Estimate the cost of a join that probes an index on the right-hand
+     * table once for every tuple of the left-hand side, instead of scanning
+     * the right-hand table.
+     * <p>
+     * The right-hand side must be an unfiltered base table with an index on
+     * its join field, either because it is a BTreeFile keyed on that field or
+     * through a secondary index; the cost of each probe is the cost of an
+     * index scan whose selectivity is the fraction of the right-hand table
+     * matched by one left-hand tuple.
+     *
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return An estimate of the cost of the join, or
+     *         Double.POSITIVE_INFINITY if it cannot be done with an index
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1,
+            Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null
+                || !IndexScan.supports(j.p) || !p.isPlainScan(j.t2Alias))
+            return Double.POSITIVE_INFINITY;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (s == null || !IndexScan.hasIndex(tableId, field))
+            return Double.POSITIVE_INFINITY;
+
+        int card2 = s.totalTuples();
+        if (card1 == 0 || card2 == 0)
+            return cost1;
+        int card = estimateJoinCardinality(j, card1, card2, false,
+                isPkey(j.t2Alias, j.f2PureName), stats);
+        double selectivity = Math.min(1.0, (double) card / card1 / card2);
+        return cost1 + card1 * s.estimateIndexScanCost(field, selectivity) + card;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -189,7 +305,14 @@ public class JoinOptimizer {
             } else if (t2pkey && !t1pkey) {
                 eqcard = card1;
             } else {
-                eqcard = Math.max(card1, card2);
+                // each value of the side with fewer distinct values is
+                // assumed to match, evenly, values of the other side
+                double ndv1 = distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+                double ndv2 = distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
+                if (ndv1 > 0 && ndv2 > 0)
+                    eqcard = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 / Math.max(ndv1, ndv2));
+                else
+                    eqcard = Math.max(card1, card2);
             }
             return joinOp == Predicate.Op.NOT_EQUALS ? card1 * card2 - eqcard : eqcard;
         } else {
@@ -197,6 +320,31 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Estimate the number of distinct values of a field of a table among
+     * card of its tuples.
+     *
+     * @return the estimated number of distinct values, at most card, or 0 if
+     *         there are no statistics for the field
+     */
+    private static double distinctValues(String tableAlias, String fieldPureName, int card,
+                                         Map<String, TableStats> stats,
+                                         Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return 0.0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0.0;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return 0.0;
+        }
+        return Math.min(card, s.estimateDistinctValues(field));
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -232,6 +380,28 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Sets of joins are bitmasks over the list of joins. Only the connected
+     * sets of joins, in which every join shares a table with another, are
+     * planned, since the others can only be joined with cross products. They
+     * are enumerated like the connected subgraphs of DPccp, over the graph
+     * whose vertices are the joins and whose edges link joins that share a
+     * table. A plan for a set ends with one of its joins, whose two inputs
+     * are either base tables or the plans for the sets of the remaining joins
+     * reading each of its tables, so plans may be bushy. Each join is
+     * performed with the algorithm estimated to be cheapest for its inputs
+     * (see {@link LogicalJoinNode#algorithm}).
+     * <p>
+     * The order of the output of each plan is tracked, since a sort-merge
+     * join need not sort an input that is already in order of its join
+     * field, and the query's result need not be sorted for its ORDER BY if
+     * the joins return it in that order. As well as the cheapest plan for a
+     * set, the cheapest plan sorted on each interesting column is kept: on
+     * each column that a join outside the set or the ORDER BY compares.
+     * <p>
+     * When there are more than MAX_DP_JOIN_SETS connected sets of joins, the
+     * joins are ordered by {@link #orderJoinsHeuristically} instead, so that
+     * the time spent planning stays bounded however many tables are joined.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -243,8 +413,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed; the inputs of each join are
+     *         produced by the joins before it.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -253,50 +424,445 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        resultOrder = 0;
+        if (joins.isEmpty())
+            return new ArrayList<>();
+        long[] joinSets = null;
+        if (joins.size() < Long.SIZE) {
+            indexJoins();
+            joinSets = connectedJoinSets(MAX_DP_JOIN_SETS);
+        }
+        if (joinSets == null)
+            return orderJoinsHeuristically(stats, filterSelectivities, HEURISTIC_BUDGET_MILLIS, explain);
+        PlanCache planCache = new PlanCache(joinSets.length);
+        for (long joinSet : joinSets) {
+            long interesting = interestingColumns(joinSet);
+            for (long rest = joinSet; rest != 0; rest &= rest - 1) {
+                int joinToRemove = Long.numberOfTrailingZeros(rest);
+                computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, joinSet, interesting, planCache);
+            }
+        }
+        long all = -1L >>> (Long.SIZE - joins.size());
+        if (!planCache.contains(all))
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+
+        // a plan in the order of the ORDER BY saves sorting the result
+        int order = PlanCache.ANY_ORDER;
+        if (orderByColumn != 0) {
+            int column = Long.numberOfTrailingZeros(orderByColumn);
+            if (planCache.contains(all, column) && planCache.getCost(all, column)
+                    <= planCache.getCost(all) + TableStats.estimateSortCost(planCache.getCard(all)))
+                order = column;
+        }
+        resultOrder = planCache.getSortedOn(all, order);
+        List<LogicalJoinNode> optJoin = planCache.getOrder(all, order);
+        if (explain)
+            printJoins(optJoin, planCache.getSubplanCosts(all, order),
+                    planCache.getSubplanCards(all, order), stats, filterSelectivities);
+        return optJoin;
+    }
 
-        // some code goes here
-        //Replace the following
-        //1. j = set of join nodes
-        //2. for (i in 1...|j|):
-        //3.     for s in {all length i subsets of j}
-        //4.       bestPlan = {}
-        //5.       for s' in {all length d-1 subsets of s}
-        //6.            subplan = optjoin(s')
-        //7.            plan = best way to join (s-s') to subplan
-        //8.            if (cost(plan) < cost(bestPlan))
-        //9.               bestPlan = plan
-        //10.      optjoin(s) = bestPlan
-        //11. return optjoin(j)
-        PlanCache planCache = new PlanCache();
-        int size = joins.size();
-        for (int i = 1; i <= size; i++) {
-            Set<Set<LogicalJoinNode>> subsets = enumerateSubsets(joins, i);
-            for (Set<LogicalJoinNode> joinSet : subsets) {
-                CostCard bestPlan = new CostCard();
-                bestPlan.cost = Double.MAX_VALUE;
-                for (LogicalJoinNode joinToRemove : joinSet) {
-                    CostCard plan = computeCostAndCardOfSubplan(stats, filterSelectivities, joinToRemove, joinSet, bestPlan.cost, planCache);
-                    if (plan != null && plan.cost < bestPlan.cost) {
-                        bestPlan.plan = plan.plan;
-                        bestPlan.cost = plan.cost;
-                        bestPlan.card = plan.card;
-                    }
-                    planCache.addPlan(joinSet, bestPlan.cost, bestPlan.card, bestPlan.plan);
+    /**
+     * Return true if the joins ordered by the last call to
+     * {@link #orderJoins} return their tuples in ascending order of the
+     * specified field.
+     * 
+     * @param field
+     *            the field, quantified by its table alias
+     */
+    public boolean isOrderedOn(String field) {
+        return (resultOrder & columnBit(field)) != 0;
+    }
+
+    /**
+     * Order the joins without planning every set of joins, for join graphs
+     * too large to plan exhaustively. A greedy left-deep order is built from
+     * each join in turn, appending at every step the connected join that is
+     * cheapest to perform next; then, until the time budget is spent, the
+     * best order is improved by moving single joins to other positions and
+     * keeping the moves that make it cheaper. At least one greedy order is
+     * always built, which takes time quadratic in the number of joins.
+     * 
+     * @param stats
+     *            Statistics for each table involved in the join, referenced by
+     *            base table names, not alias
+     * @param filterSelectivities
+     *            Selectivities of the filter predicates on each table in the
+     *            join, referenced by table alias (if no alias, the base table
+     *            name)
+     * @param budgetMillis
+     *            The time, in milliseconds, to spend looking for a better
+     *            order
+     * @param explain
+     *            Indicates whether your code should explain its query plan or
+     *            simply execute it
+     * @return A List<LogicalJoinNode> that stores joins in the left-deep
+     *         order in which they should be executed.
+     * @throws ParsingException
+     *             when stats or filter selectivities is missing a table in the
+     *             join, or when the joins do not connect all of the tables
+     */
+    public List<LogicalJoinNode> orderJoinsHeuristically(
+            Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, long budgetMillis,
+            boolean explain) throws ParsingException {
+        resultOrder = 0;
+        if (joins.isEmpty())
+            return new ArrayList<>();
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        int n = joins.size();
+
+        List<Integer> best = null;
+        JoinOrder bestPlan = null;
+        for (int first = 0; first < n && (best == null || System.nanoTime() < deadline); first++) {
+            List<Integer> order = greedyOrder(stats, filterSelectivities, first);
+            JoinOrder plan = costOrder(stats, filterSelectivities, order);
+            if (bestPlan == null || plan.cost() < bestPlan.cost()) {
+                best = order;
+                bestPlan = plan;
+            }
+        }
+
+        // seeded, so that the same query gets the same moves
+        Random rand = new Random(n);
+        while (n > 1 && System.nanoTime() < deadline) {
+            int from = rand.nextInt(n);
+            int to = rand.nextInt(n - 1);
+            List<Integer> order = new ArrayList<>(best);
+            order.add(to >= from ? to + 1 : to, order.remove(from));
+            JoinOrder plan = costOrder(stats, filterSelectivities, order);
+            if (plan != null && plan.cost() < bestPlan.cost()) {
+                best = order;
+                bestPlan = plan;
+            }
+        }
+
+        if (explain) printJoins(bestPlan.plan, bestPlan.costs, bestPlan.cards, stats, filterSelectivities);
+        return bestPlan.plan;
+    }
+
+    /** A left-deep join order with the cost and cardinality of each of its prefixes */
+    private static class JoinOrder {
+        final List<LogicalJoinNode> plan = new ArrayList<>();
+        final double[] costs;
+        final int[] cards;
+
+        JoinOrder(int size) {
+            costs = new double[size];
+            cards = new int[size];
+        }
+
+        double cost() {
+            return costs[costs.length - 1];
+        }
+    }
+
+    /**
+     * Build a left-deep order greedily: start with the join first, then
+     * repeatedly append the join that shares a table with the joins so far
+     * and is cheapest to perform next.
+     * 
+     * @return the order, as indexes into the list of joins
+     * @throws ParsingException
+     *             when the joins do not connect all of the tables
+     */
+    private List<Integer> greedyOrder(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, int first) throws ParsingException {
+        List<Integer> order = new ArrayList<>();
+        List<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < joins.size(); i++) {
+            if (i != first)
+                remaining.add(i);
+        }
+        Set<String> joined = new HashSet<>();
+        CostCard prev = costLeftDeepJoin(stats, filterSelectivities, joins.get(first), null,
+                false, false, false, Double.MAX_VALUE);
+        boolean prevPkey = joinsPkey(joins.get(first));
+        order.add(first);
+        joined.add(joins.get(first).t1Alias);
+        joined.add(joins.get(first).t2Alias);
+
+        while (!remaining.isEmpty()) {
+            int bestPos = -1;
+            CostCard bestNext = null;
+            for (int pos = 0; pos < remaining.size(); pos++) {
+                LogicalJoinNode j = joins.get(remaining.get(pos));
+                CostCard next = costLeftDeepJoin(stats, filterSelectivities, j, prev, prevPkey,
+                        joined.contains(j.t1Alias), joined.contains(j.t2Alias),
+                        bestNext == null ? Double.MAX_VALUE : bestNext.cost);
+                if (next != null) {
+                    bestPos = pos;
+                    bestNext = next;
                 }
             }
+            if (bestNext == null)
+                throw new ParsingException("Query does not include join expressions joining all nodes!");
+            int i = remaining.remove(bestPos);
+            order.add(i);
+            joined.add(joins.get(i).t1Alias);
+            joined.add(joins.get(i).t2Alias);
+            prevPkey |= joinsPkey(joins.get(i));
+            prev = bestNext;
         }
-        List<LogicalJoinNode> optJoin = planCache.getOrder(new HashSet<>(joins));
-        if (explain) printJoins(optJoin, planCache, stats, filterSelectivities);
-        return optJoin;
+        return order;
+    }
+
+    /**
+     * Compute the cost and cardinality of each prefix of a left-deep order.
+     * 
+     * @param order
+     *            the order, as indexes into the list of joins
+     * @return the order of the joins, each with its inner and outer as they
+     *         should be performed, or null if the order needs a cross product
+     */
+    private JoinOrder costOrder(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, List<Integer> order) throws ParsingException {
+        JoinOrder plan = new JoinOrder(order.size());
+        Set<String> joined = new HashSet<>();
+        CostCard prev = null;
+        boolean prevPkey = false;
+        for (int k = 0; k < order.size(); k++) {
+            LogicalJoinNode j = joins.get(order.get(k));
+            prev = costLeftDeepJoin(stats, filterSelectivities, j, prev, prevPkey,
+                    joined.contains(j.t1Alias), joined.contains(j.t2Alias), Double.MAX_VALUE);
+            if (prev == null)
+                return null;
+            plan.plan.add(prev.join);
+            plan.costs[k] = prev.cost;
+            plan.cards[k] = prev.card;
+            prevPkey |= joinsPkey(j);
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+        }
+        return plan;
     }
 
     // ===================== Private Methods =================================
 
+    /** For each join, the tables it reads, as a bitmask over the table aliases */
+    private long[] joinTables;
+    /** For each join, the joins sharing a table with it */
+    private long[] joinNeighbors;
+    /** Bit numbers of the table aliases in joinTables */
+    private Map<String, Integer> aliasBits;
+    /**
+     * Bit numbers of the columns, quantified by table alias, that the joins
+     * compare or the query orders by; the first Long.SIZE only
+     */
+    private Map<String, Integer> columnBits = new HashMap<>();
+    /** For each join, the columns it compares */
+    private long[] joinColumns;
+    /** The column the joins should return their tuples in order of, or 0 */
+    private long orderByColumn;
+    /** For each table alias, the columns its scan returns tuples in order of */
+    private final Map<String, Long> scanOrders = new HashMap<>();
+    /** The columns the joins last ordered return their tuples in order of */
+    private long resultOrder;
+
+    /**
+     * Number the tables of the joins and compute the bitmasks of tables read
+     * by each join and of the joins sharing a table with it.
+     */
+    private void indexJoins() throws ParsingException {
+        int n = joins.size();
+        if (n >= Long.SIZE)
+            throw new ParsingException("Cannot order " + n + " joins; at most " + (Long.SIZE - 1) + " are supported");
+        aliasBits = new HashMap<>();
+        joinTables = new long[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            joinTables[i] = aliasBit(j.t1Alias) | aliasBit(j.t2Alias);
+        }
+        joinNeighbors = new long[n];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < n; k++) {
+                if (k != i && (joinTables[i] & joinTables[k]) != 0)
+                    joinNeighbors[i] |= 1L << k;
+            }
+        }
+
+        columnBits = new HashMap<>();
+        scanOrders.clear();
+        joinColumns = new long[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            joinColumns[i] = addColumnBit(j.f1QuantifiedName)
+                    | (j.t2Alias == null ? 0 : addColumnBit(j.f2QuantifiedName));
+        }
+        String orderField = p.joinOrderField();
+        orderByColumn = orderField == null ? 0 : addColumnBit(orderField);
+    }
+
+    private long addColumnBit(String column) {
+        Integer bit = columnBits.get(column);
+        if (bit == null) {
+            // orders on further columns are not tracked
+            if (columnBits.size() == Long.SIZE)
+                return 0;
+            bit = columnBits.size();
+            columnBits.put(column, bit);
+        }
+        return 1L << bit;
+    }
+
+    /** Return the bit of the specified column, or 0 if it has none */
+    private long columnBit(String column) {
+        Integer bit = columnBits.get(column);
+        return bit == null ? 0 : 1L << bit;
+    }
+
+    /**
+     * Return the columns the joins outside joinSet compare, and the column
+     * the query orders by: those a plan for joinSet is worth keeping sorted
+     * on
+     */
+    private long interestingColumns(long joinSet) {
+        long columns = orderByColumn;
+        for (long rest = ~joinSet & (-1L >>> (Long.SIZE - joins.size())); rest != 0; rest &= rest - 1)
+            columns |= joinColumns[Long.numberOfTrailingZeros(rest)];
+        return columns;
+    }
+
+    /** Return the columns the scan of the specified table returns tuples in order of */
+    private long scanOrder(String alias) {
+        Long order = scanOrders.get(alias);
+        if (order == null) {
+            order = 0L;
+            String prefix = alias + ".";
+            for (Map.Entry<String, Integer> e : columnBits.entrySet()) {
+                if (e.getKey().startsWith(prefix)
+                        && p.isOrderedOn(alias, e.getKey().substring(prefix.length())))
+                    order |= 1L << e.getValue();
+            }
+            scanOrders.put(alias, order);
+        }
+        return order;
+    }
+
+    private long aliasBit(String alias) throws ParsingException {
+        if (alias == null)
+            return 0;
+        Integer bit = aliasBits.get(alias);
+        if (bit == null) {
+            if (aliasBits.size() == Long.SIZE)
+                throw new ParsingException("Cannot order joins over more than " + Long.SIZE + " tables");
+            bit = aliasBits.size();
+            aliasBits.put(alias, bit);
+        }
+        return 1L << bit;
+    }
+
+    /** Return the tables read by the joins in joinSet */
+    private long tablesOf(long joinSet) {
+        long tables = 0;
+        for (long rest = joinSet; rest != 0; rest &= rest - 1)
+            tables |= joinTables[Long.numberOfTrailingZeros(rest)];
+        return tables;
+    }
+
+    /** Return true if the joins in joinSet read the specified table */
+    private boolean doesJoin(long joinSet, String table) {
+        Integer bit = table == null ? null : aliasBits.get(table);
+        return bit != null && (tablesOf(joinSet) & (1L << bit)) != 0;
+    }
+
+    /**
+     * Return the joins of joinSet connected to the specified table, through
+     * the tables they share
+     */
+    private long joinsReading(long joinSet, String table) {
+        Integer bit = table == null ? null : aliasBits.get(table);
+        if (bit == null)
+            return 0;
+        long reading = 0;
+        for (long rest = joinSet; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            if ((joinTables[i] & (1L << bit)) != 0)
+                reading |= 1L << i;
+        }
+        for (long more = reading; more != 0; more = neighbors(reading) & joinSet)
+            reading |= more;
+        return reading;
+    }
+
+    /** Return the joins sharing a table with a join in joinSet */
+    private long neighbors(long joinSet) {
+        long n = 0;
+        for (long rest = joinSet; rest != 0; rest &= rest - 1)
+            n |= joinNeighbors[Long.numberOfTrailingZeros(rest)];
+        return n & ~joinSet;
+    }
+
+    /**
+     * Enumerate the connected sets of joins, smallest first, so that the
+     * subsets of each set are planned before it. Each set is produced once,
+     * as in EnumerateCsg of DPccp: from each join i, in decreasing order, the
+     * sets whose lowest join is i are grown through neighbors above i.
+     * 
+     * @param limit
+     *            the most sets to enumerate
+     * @return the connected sets, or null if there are more than limit
+     */
+    private long[] connectedJoinSets(int limit) {
+        int n = joins.size();
+        long[][] bySize = new long[n + 1][];
+        // counts[0] is the number of sets of all sizes
+        int[] counts = new int[n + 1];
+        for (int k = 0; k <= n; k++)
+            bySize[k] = new long[4];
+        for (int i = n - 1; i >= 0; i--) {
+            long start = 1L << i;
+            addJoinSet(bySize, counts, start);
+            if (!growJoinSets(bySize, counts, start, (start << 1) - 1, limit))
+                return null;
+        }
+        long[] sets = new long[counts[0]];
+        int pos = 0;
+        for (int k = 1; k <= n; k++) {
+            System.arraycopy(bySize[k], 0, sets, pos, counts[k]);
+            pos += counts[k];
+        }
+        return sets;
+    }
+
+    /** Return false once more than limit sets have been enumerated */
+    private boolean growJoinSets(long[][] bySize, int[] counts, long joinSet, long excluded, int limit) {
+        long frontier = neighbors(joinSet) & ~excluded;
+        if (frontier == 0)
+            return true;
+        for (long sub = frontier; sub != 0; sub = (sub - 1) & frontier) {
+            addJoinSet(bySize, counts, joinSet | sub);
+            if (counts[0] > limit)
+                return false;
+        }
+        for (long sub = frontier; sub != 0; sub = (sub - 1) & frontier) {
+            if (!growJoinSets(bySize, counts, joinSet | sub, excluded | frontier, limit))
+                return false;
+        }
+        return true;
+    }
+
+    private static void addJoinSet(long[][] bySize, int[] counts, long joinSet) {
+        counts[0]++;
+        int k = Long.bitCount(joinSet);
+        if (counts[k] == bySize[k].length)
+            bySize[k] = Arrays.copyOf(bySize[k], counts[k] * 2);
+        bySize[k][counts[k]++] = joinSet;
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
      * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * all of the connected subsets of joinSet have already been computed
+     * and stored in PlanCache pc, and adds the plans ending with
+     * joinToRemove to pc where they are cheaper than those there.
+     * <p>
+     * The other joins of joinSet fall into those connected to the first
+     * table of joinToRemove and those connected to its second table. Unless
+     * they are the same, because joinToRemove closes a cycle, the two sets
+     * are planned independently and their plans, or the base tables if a
+     * set is empty, are the inputs of joinToRemove. Each input is either the
+     * cheapest plan for its set or one of its plans sorted on a column.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -306,151 +872,294 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the index of the join to remove from joinSet
      * @param joinSet
      *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
+     * @param interesting
+     *            the columns worth keeping plans for joinSet sorted on
      * @param pc
      *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *            connected subsets of joinSet
      * @throws ParsingException
      *             when stats, filterSelectivities, or pc object is missing
      *             tables involved in join
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    private void computeCostAndCardOfSubplan(
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
+            int joinToRemove, long joinSet,
+            long interesting, PlanCache pc) throws ParsingException {
+
+        LogicalJoinNode j = joins.get(joinToRemove);
+        long news = joinSet & ~(1L << joinToRemove);
+        long left = joinsReading(news, j.t1Alias);
+        long right = news & ~left;
+
+        // possible that we have not cached an answer, if subset
+        // includes a cross product
+        if ((left != 0 && !pc.contains(left)) || (right != 0 && !pc.contains(right)))
+            return;
+
+        List<Input> leftInputs = left == 0
+                ? Collections.singletonList(scan(stats, filterSelectivities, j.t1Alias, j.f1PureName))
+                : cachedPlans(pc, left);
+        List<Input> rightInputs = right == 0
+                ? Collections.singletonList(scan(stats, filterSelectivities, j.t2Alias, j.f2PureName))
+                : cachedPlans(pc, right);
+        for (Input l : leftInputs) {
+            for (Input r : rightInputs) {
+                costJoins(stats, j, l, r, doesJoin(left, j.t2Alias), (cost, card, sortedOn, join) -> {
+                    if (!pc.contains(joinSet) || cost < pc.getCost(joinSet))
+                        pc.addPlan(joinSet, PlanCache.ANY_ORDER, cost, card, sortedOn,
+                                joinToRemove, join.get(), left, l.order, r.order);
+                    for (long o = sortedOn & interesting; o != 0; o &= o - 1) {
+                        int column = Long.numberOfTrailingZeros(o);
+                        if (!pc.contains(joinSet, column) || cost < pc.getCost(joinSet, column))
+                            pc.addPlan(joinSet, column, cost, card, sortedOn,
+                                    joinToRemove, join.get(), left, l.order, r.order);
+                    }
+                });
+            }
+        }
+    }
 
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    /** Return the plans for joinSet in pc: the cheapest, and those sorted on a column */
+    private List<Input> cachedPlans(PlanCache pc, long joinSet) {
+        List<Input> inputs = new ArrayList<>();
+        boolean pkey = hasPkey(joinSet);
+        inputs.add(cachedPlan(pc, joinSet, PlanCache.ANY_ORDER, pkey));
+        for (long o = pc.getSortedPlans(joinSet); o != 0; o &= o - 1)
+            inputs.add(cachedPlan(pc, joinSet, Long.numberOfTrailingZeros(o), pkey));
+        return inputs;
+    }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
+    private static Input cachedPlan(PlanCache pc, long joinSet, int order, boolean pkey) {
+        Input in = new Input();
+        in.cost = pc.getCost(joinSet, order);
+        in.card = pc.getCard(joinSet, order);
+        in.pkey = pkey;
+        in.sortedOn = pc.getSortedOn(joinSet, order);
+        in.order = order;
+        return in;
+    }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+    /**
+     * Compute the cost and cardinality of performing join j after a
+     * left-deep subplan, or as the first join if there is no subplan.
+     * 
+     * @param prev
+     *            the cost and cardinality of the subplan, or null if j is the
+     *            first join
+     * @param prevPkey
+     *            whether a join of the subplan is on a primary key
+     * @param t1Joined
+     *            whether the subplan reads j.t1
+     * @param t2Joined
+     *            whether the subplan reads j.t2
+     * @return the plan, as for {@link #costJoin}, or null if it needs a
+     *         cross product
+     */
+    private CostCard costLeftDeepJoin(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, LogicalJoinNode j,
+            CostCard prev, boolean prevPkey, boolean t1Joined, boolean t2Joined,
+            double bestCostSoFar) throws ParsingException {
+        if (prev == null)
+            return costJoin(stats, filterSelectivities, j, null, false, null, false, false, bestCostSoFar);
+        if (t1Joined)
+            return costJoin(stats, filterSelectivities, j, prev, prevPkey, null, false, t2Joined, bestCostSoFar);
+        if (t2Joined)
+            return costJoin(stats, filterSelectivities, j, null, false, prev, prevPkey, false, bestCostSoFar);
+        // don't consider this plan if neither of j.t1 or j.t2
+        // is a table joined in prev (cross product)
+        return null;
+    }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+    /**
+     * Compute the cost and cardinality of performing join j over the
+     * specified inputs, with whichever side as the outer and whichever
+     * algorithm is cheapest. Subplans are taken to be in no particular
+     * order.
+     * 
+     * @param stats
+     *            table stats for all of the tables, referenced by table names
+     *            rather than alias (see {@link #orderJoins})
+     * @param filterSelectivities
+     *            the selectivities of the filters over each of the tables
+     * @param j
+     *            the join to perform
+     * @param left
+     *            the cost and cardinality of the subplan producing j.t1, or
+     *            null to scan j.t1
+     * @param leftPkey
+     *            whether a join of the left subplan is on a primary key
+     * @param right
+     *            the cost and cardinality of the subplan producing j.t2, or
+     *            null to scan j.t2
+     * @param rightPkey
+     *            whether a join of the right subplan is on a primary key
+     * @param closesCycle
+     *            whether the left subplan also reads j.t2, in which case j
+     *            scans j.t2 again rather than probe an index on it
+     * @param bestCostSoFar
+     *            the cost a plan must beat
+     * @return A {@link CostCard} describing the cost, cardinality and the
+     *         join, which may have its inner and outer swapped and has its
+     *         algorithm set, or null if the plan is not cheaper than
+     *         bestCostSoFar
+     * @throws ParsingException
+     *             when stats or filterSelectivities is missing tables
+     *             involved in the join
+     */
+    private CostCard costJoin(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, LogicalJoinNode j,
+            CostCard left, boolean leftPkey, CostCard right, boolean rightPkey,
+            boolean closesCycle, double bestCostSoFar) throws ParsingException {
+        Input l = left == null ? scan(stats, filterSelectivities, j.t1Alias, j.f1PureName)
+                : subplan(left, leftPkey);
+        Input r = right == null ? scan(stats, filterSelectivities, j.t2Alias, j.f2PureName)
+                : subplan(right, rightPkey);
+        CostCard best = new CostCard();
+        best.cost = bestCostSoFar;
+        costJoins(stats, j, l, r, closesCycle, (cost, card, sortedOn, join) -> {
+            if (cost < best.cost) {
+                best.cost = cost;
+                best.card = card;
+                best.join = join.get();
             }
-        }
+        });
+        return best.join == null ? null : best;
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+    /** An input of a join: a scan of a base table or a plan for a set of joins */
+    private static class Input {
+        double cost;
+        int card;
+        /** Whether it is joined on a primary key, or produced by such a join */
+        boolean pkey;
+        /** The columns it returns tuples in ascending order of */
+        long sortedOn;
+        /** Whether it is a scan of a base table, which an index join may probe instead */
+        boolean base;
+        /** The order of the plan in the PlanCache it is the output of */
+        int order = PlanCache.ANY_ORDER;
+    }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
-        }
-        if (cost1 >= bestCostSoFar)
-            return null;
+    /** Receives each way of performing a join found by {@link #costJoins} */
+    private interface JoinPlanConsumer {
+        /**
+         * @param join
+         *            the join, annotated with its algorithm, built on demand
+         *            since most ways are not kept
+         */
+        void accept(double cost, int card, long sortedOn, Supplier<LogicalJoinNode> join);
+    }
 
-        CostCard cc = new CostCard();
+    /**
+     * Return the cost and cardinality of scanning the specified table, as
+     * an input joined on the specified field
+     */
+    private Input scan(Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities, String alias, String field) {
+        Input in = new Input();
+        if (alias == null) // the subplan of a LogicalSubplanJoinNode
+            return in;
+        TableStats s = stats.get(Database.getCatalog().getTableName(p.getTableId(alias)));
+        in.cost = s.estimateScanCost();
+        in.card = s.estimateTableCardinality(filterSelectivities.get(alias));
+        in.pkey = isPkey(alias, field);
+        in.sortedOn = scanOrder(alias);
+        in.base = true;
+        return in;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+    private static Input subplan(CostCard cc, boolean pkey) {
+        Input in = new Input();
+        in.cost = cc.cost;
+        in.card = cc.card;
+        in.pkey = pkey;
+        return in;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Find each way of performing join j over the specified inputs: with
+     * either input as the outer, and each algorithm that can perform it. A
+     * sort-merge join sorts the inputs that are not in order of their join
+     * fields.
+     * 
+     * @param closesCycle
+     *            whether the left input also reads j.t2, in which case j
+     *            scans j.t2 again rather than probe an index on it
+     * @param out
+     *            receives the cost, cardinality, output order and join of
+     *            each way
+     * @throws ParsingException
+     *             when a table of the join is unknown
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private void costJoins(Map<String, TableStats> stats, LogicalJoinNode j,
+            Input left, Input right, boolean closesCycle, JoinPlanConsumer out)
+            throws ParsingException {
+        if (this.p.getTableId(j.t1Alias) == null)
+            throw new ParsingException("Unknown table " + j.t1Alias);
+        if (this.p.getTableId(j.t2Alias) == null)
+            throw new ParsingException("Unknown table " + j.t2Alias);
+
+        for (int swapped = 0; swapped < 2; swapped++) {
+            // first with left as the outer, then with right
+            LogicalJoinNode oj = swapped == 0 ? j : j.swapInnerOuter();
+            Input outer = swapped == 0 ? left : right;
+            Input inner = swapped == 0 ? right : left;
+            int card = estimateJoinCardinality(oj, outer.card, inner.card, outer.pkey,
+                    inner.pkey, stats);
+            if (oj instanceof LogicalSubplanJoinNode) {
+                out.accept(estimateJoinCost(oj, outer.card, inner.card, outer.cost, inner.cost),
+                        card, 0, () -> oj);
+                continue;
+            }
+            for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+                double cost;
+                // joins that scan the inner side for each outer tuple keep the outer order
+                long sortedOn = outer.sortedOn;
+                Supplier<LogicalJoinNode> join = () -> oj.withAlgorithm(a);
+                switch (a) {
+                    case INDEX_NESTED_LOOP:
+                        // an index join needs a base table on the inner side
+                        if (!inner.base || closesCycle)
+                            continue;
+                        cost = estimateIndexJoinCost(oj, outer.card, outer.cost, stats);
+                        break;
+                    case SORT_MERGE: {
+                        long column1 = columnBit(oj.f1QuantifiedName);
+                        long column2 = columnBit(oj.f2QuantifiedName);
+                        boolean sort1 = (outer.sortedOn & column1) == 0;
+                        boolean sort2 = (inner.sortedOn & column2) == 0;
+                        cost = estimateJoinCost(oj, a, outer.card, inner.card, outer.cost, inner.cost)
+                                + (sort1 ? TableStats.estimateSortCost(outer.card) : 0)
+                                + (sort2 ? TableStats.estimateSortCost(inner.card) : 0);
+                        long sorted1 = sort1 ? column1 : outer.sortedOn;
+                        long sorted2 = sort2 ? column2 : inner.sortedOn;
+                        if (oj.p == Predicate.Op.EQUALS)
+                            sortedOn = sorted1 | sorted2;
+                        else if (oj.p == Predicate.Op.GREATER_THAN || oj.p == Predicate.Op.GREATER_THAN_OR_EQ)
+                            sortedOn = sorted1;
+                        else
+                            sortedOn = sorted2;
+                        join = () -> oj.withSortMerge(sort1, sort2);
+                        break;
+                    }
+                    case HASH:
+                        sortedOn = 0;
+                        cost = estimateJoinCost(oj, a, outer.card, inner.card, outer.cost, inner.cost);
+                        break;
+                    default:
+                        cost = estimateJoinCost(oj, a, outer.card, inner.card, outer.cost, inner.cost);
+                }
+                if (cost < Double.POSITIVE_INFINITY) {
+                    Supplier<LogicalJoinNode> chosen = join;
+                    out.accept(cost, card, sortedOn,
+                            () -> chosen.get().withInputCardinalities(outer.card, inner.card));
+                }
+            }
         }
-        return false;
     }
 
     /**
@@ -471,18 +1180,23 @@ public class JoinOptimizer {
 
     /**
      * Return true if a primary key field is joined by one of the joins in
-     * joinlist
+     * joinSet
      */
-    private boolean hasPkey(List<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
+    private boolean hasPkey(long joinSet) {
+        for (long rest = joinSet; rest != 0; rest &= rest - 1) {
+            if (joinsPkey(joins.get(Long.numberOfTrailingZeros(rest))))
                 return true;
         }
         return false;
 
     }
 
+    /** Return true if a primary key field is joined by j */
+    private boolean joinsPkey(LogicalJoinNode j) {
+        return isPkey(j.t1Alias, j.f1PureName)
+                || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName));
+    }
+
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -490,8 +1204,10 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
+     * @param costs
+     *            the cost of the subplan ending with each join of js
+     * @param cards
+     *            the cardinality of the subplan ending with each join of js
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -499,7 +1215,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(List<LogicalJoinNode> js, double[] costs, int[] cards,
             Map<String, TableStats> stats,
             Map<String, Double> selectivities) {
 
@@ -519,25 +1235,20 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
-        boolean neither;
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+        for (int i = 0; i < js.size(); i++) {
+            LogicalJoinNode j = js.get(i);
+            System.out.println("PATH SO FAR = " + js.subList(0, i + 1));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + costs[i] + ", card = "
+                    + cards[i] + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -550,9 +1261,8 @@ public class JoinOptimizer {
             } else {
                 // make left child root n
                 root.add(n);
-                neither = false;
             }
-            m.put(j.t1Alias, root);
+            DefaultMutableTreeNode left = n;
 
             n = m.get(j.t2Alias);
             if (n == null) { // never seen this table before
@@ -572,17 +1282,17 @@ public class JoinOptimizer {
             } else {
                 // make right child root n
                 root.add(n);
-                neither = false;
             }
-            m.put(j.t2Alias, root);
+            DefaultMutableTreeNode right = n;
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
+            // the tables of both children are now accessed from root
+            for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                if (e.getValue() == left || e.getValue() == right)
+                    e.setValue(root);
             }
+            m.put(j.t1Alias, root);
+            if (j.t2Alias != null)
+                m.put(j.t2Alias, root);
 
             treetop = root;
         }
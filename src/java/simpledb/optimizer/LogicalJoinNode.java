@@ -6,6 +6,22 @@ import simpledb.execution.Predicate;
  * tables in a LogicalQueryPlan */
 public class LogicalJoinNode {
 
+    /** The physical join algorithms the JoinOptimizer chooses between */
+    public enum Algorithm {
+        /** {@link simpledb.execution.Join}: scan t2 once for every tuple of t1 */
+        NESTED_LOOP,
+        /** {@link simpledb.execution.HashEquiJoin}: hash t1 in batches and
+         * scan t2 once per batch; equality joins only */
+        HASH,
+        /** {@link simpledb.execution.IndexNestedLoopJoin}: probe an index on
+         * t2.f2 for every tuple of t1; t2 must be a base table */
+        INDEX_NESTED_LOOP,
+        /** {@link simpledb.execution.SortMergeJoin}: merge t1 and t2 in
+         * order of f1 and f2, sorting them first unless they already are
+         * (see {@link #sort1} and {@link #sort2}); no LIKE or NOT_EQUALS */
+        SORT_MERGE
+    }
+
     /** The first table to join (may be null). It's the alias of the table (if no alias, the true table name) */
     public String t1Alias;
 
@@ -25,6 +41,24 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The algorithm the join should be performed with, as chosen by the
+     * JoinOptimizer, or null to leave the choice to
+     * {@link JoinOptimizer#instantiateJoin}. */
+    public Algorithm algorithm;
+
+    /** True if a SORT_MERGE join must sort t1 on f1, which it is not
+     * already in order of */
+    public boolean sort1;
+
+    /** True if a SORT_MERGE join must sort t2 on f2, which it is not
+     * already in order of */
+    public boolean sort2;
+
+    /** The cardinalities of t1 and t2 the JoinOptimizer estimated when it
+     * chose the algorithm, or 0 if unknown; the join compares them with
+     * what it reads (see {@link simpledb.execution.HashEquiJoin}). */
+    public int card1, card2;
+
     public LogicalJoinNode() {
     }
 
@@ -46,6 +80,36 @@ public class LogicalJoinNode {
         this.f2QuantifiedName = t2Alias+"."+this.f2PureName;
     }
     
+    /** Return a new LogicalJoinNode for the same join performed with the
+     * specified algorithm (see {@link #algorithm}). */
+    public LogicalJoinNode withAlgorithm(Algorithm a) {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.algorithm = a;
+        return j;
+    }
+
+    /** Return a new LogicalJoinNode for the same join performed by merging
+     * its inputs, sorting them first as specified (see {@link #sort1} and
+     * {@link #sort2}). */
+    public LogicalJoinNode withSortMerge(boolean sort1, boolean sort2) {
+        LogicalJoinNode j = withAlgorithm(Algorithm.SORT_MERGE);
+        j.sort1 = sort1;
+        j.sort2 = sort2;
+        return j;
+    }
+
+    /** Return a new LogicalJoinNode for the same join, performed the same
+     * way, annotated with the estimated cardinalities of its inputs (see
+     * {@link #card1} and {@link #card2}). */
+    public LogicalJoinNode withInputCardinalities(int card1, int card2) {
+        LogicalJoinNode j = withAlgorithm(algorithm);
+        j.sort1 = sort1;
+        j.sort2 = sort2;
+        j.card1 = card1;
+        j.card2 = card2;
+        return j;
+    }
+
     /** Return a new LogicalJoinNode with the inner and outer (t1.f1
      * and t2.f2) tables swapped. */
     public LogicalJoinNode swapInnerOuter() {
@@ -5,11 +5,18 @@ import simpledb.ParsingException;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRange;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
+import java.util.function.UnaryOperator;
 import java.io.File;
 
 /**
@@ -40,7 +47,9 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
+    private JoinPlan joinPlan;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -55,6 +64,77 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /** The order of the joins of a plan chosen by the {@link JoinOptimizer},
+     *  for a plan of the same query with other constants to reuse instead of
+     *  ordering its joins again (see {@link #setJoinPlan}). The order holds as
+     *  long as the base tables are read with the same kinds of scans, since
+     *  the joins chosen depend on which inputs are base table scans and which
+     *  are already sorted.
+     */
+    public static final class JoinPlan {
+        private final List<LogicalJoinNode> joins;
+        /** True if the joins return their tuples in the order the query asks for */
+        private final boolean ordered;
+        /** The scans the base tables were read with; see {@link #accessPaths} */
+        private final String accessPaths;
+
+        private JoinPlan(List<LogicalJoinNode> joins, boolean ordered, String accessPaths) {
+            this.joins = Collections.unmodifiableList(new ArrayList<>(joins));
+            this.ordered = ordered;
+            this.accessPaths = accessPaths;
+        }
+    }
+
+    /** Return a copy of this plan with the constant of each filter c
+     *  replaced by constants.apply(c): the plan of the same query with other
+     *  constants, which can be converted to a physical plan while this one
+     *  is kept to be copied again. This plan must not have been converted
+     *  to a physical plan itself.
+     *  @throws ParsingException if the plan joins with a subquery, whose
+     *    physical plan cannot be copied
+     */
+    public LogicalPlan bind(UnaryOperator<String> constants) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.query = query;
+        for (LogicalScanNode table : tables) {
+            lp.tables.add(table);
+            lp.tableMap.put(table.alias, table.t);
+        }
+        for (LogicalFilterNode lf : filters)
+            lp.filters.add(new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, constants.apply(lf.c)));
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                throw new ParsingException("Cannot copy a plan that joins with a subquery");
+            lp.joins.add(new LogicalJoinNode(lj.t1Alias, lj.t2Alias, lj.f1PureName, lj.f2PureName, lj.p));
+        }
+        lp.selectList.addAll(selectList);
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.limit = limit;
+        return lp;
+    }
+
+    /** Return the order {@link #physicalPlan} gave the joins of this plan,
+     *  or null if it has not been converted to a physical plan.
+     */
+    public JoinPlan getJoinPlan() {
+        return joinPlan;
+    }
+
+    /** Have {@link #physicalPlan} perform the joins in the order it gave
+     *  those of another plan of the same query, rather than ordering them
+     *  again, if the base tables are read with the same kinds of scans.
+     *  @param joinPlan the order of the joins, or null to order them
+     */
+    public void setJoinPlan(JoinPlan joinPlan) {
+        this.joinPlan = joinPlan;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -86,6 +166,51 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** Return true if the table with the given alias is read by a plain
+     *  SeqScan, with no filter or index applied to it. */
+    boolean isPlainScan(String alias) {
+        OpIterator subplan = subplanMap.get(alias);
+        if (subplan != null)
+            return subplan instanceof SeqScan;
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return false;
+        }
+        return true;
+    }
+
+    /** Return true if the subplan for the table with the given alias
+     *  returns its tuples in ascending order of the given field: if its scan
+     *  provides that order, since filters over the scan keep it. Before
+     *  physicalPlan chooses the scan, the table is taken to be read by a
+     *  plain SeqScan. */
+    boolean isOrderedOn(String alias, String fieldPureName) {
+        Integer tableId = getTableId(alias);
+        if (tableId == null)
+            return false;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        OpIterator subplan = subplanMap.get(alias);
+        while (subplan instanceof Filter)
+            subplan = ((Filter) subplan).getChildren()[0];
+        return providesOrder(subplan, tableId, field, true);
+    }
+
+    /** Return the field, quantified by its table alias, that the query
+     *  orders its result by, if the joins could return their tuples in that
+     *  order: if the order is ascending and the query does not aggregate.
+     *  @return the field, or null
+     */
+    String joinOrderField() {
+        if (!hasOrderBy || hasAgg || !oByAsc || joins.isEmpty())
+            return null;
+        return oByField;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -221,6 +346,13 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Return at most n tuples from the query, after any ORDER BY has been applied.
+        @param n the largest number of tuples to return
+    */
+    public void addLimit(int n) {
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -276,6 +408,261 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Parse the constant of a filter as a value of the filtered field's type.
+     *  @param td the tuple descriptor of the filtered table, with quantified field names
+     *  @throws ParsingException if the filtered field is not in td
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Choose how to read a base table: with the full scan already in the
+     *  subplan map, with an index scan over the range of keys allowed by the
+     *  table's filters on one field, or with an index-only scan of a secondary
+     *  index storing every field of the table the query reads, whichever the
+     *  table's statistics estimate to be cheapest.
+     *  An index scan may read the table itself, if it is a B+ tree keyed on
+     *  the filtered field, or go through a secondary index on that field.
+     *  <p>
+     *  If the query reads this table alone and orders by one of its fields, a
+     *  scan that does not return the tuples in that order is charged for the
+     *  sort that follows it. A scan that does, such as a B+ tree scan on the
+     *  ordering field read backwards for a descending order, is only charged
+     *  for the part of the range a LIMIT lets it read.
+     *  @param t the transaction the scan will run as a part of
+     *  @param table the table to read
+     *  @param s the statistics of the table, or null if there are none
+     *  @param orderField the field of the table the query orders by, or -1
+     *  @return the filters the scan now in the subplan map applies
+     */
+    private Set<LogicalFilterNode> chooseAccessPath(TransactionId t, LogicalScanNode table, TableStats s,
+            int orderField) throws ParsingException {
+        if (s == null)
+            return Collections.emptySet();
+        TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+        Set<Integer> used = referencedFields(table);
+
+        // combine the filters on each field into the range of values they allow
+        Map<Integer, BTreeRange> ranges = new HashMap<>();
+        Map<Integer, Set<LogicalFilterNode>> rangeFilters = new HashMap<>();
+        List<Predicate> predicates = new ArrayList<>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filters are applied
+            }
+            Field c = filterConstant(lf, td);
+            predicates.add(new Predicate(field, lf.p, c));
+            if (!IndexScan.supports(lf.p))
+                continue;
+            ranges.merge(field, BTreeRange.of(new IndexPredicate(lf.p, c)), BTreeRange::intersect);
+            rangeFilters.computeIfAbsent(field, k -> new HashSet<>()).add(lf);
+        }
+        if (orderField != -1)
+            ranges.putIfAbsent(orderField, BTreeRange.ALL);
+
+        int card = s.estimateTableCardinality(s.estimateSelectivity(predicates));
+        double sortCost = orderField == -1 ? 0.0 : TableStats.estimateSortCost(card);
+        double limitFraction = 1.0;
+        if (limit >= 0 && joins.isEmpty() && tables.size() == 1 && !hasAgg)
+            limitFraction = Math.min(1.0, (double) limit / Math.max(1, card));
+
+        OpIterator bestScan = subplanMap.get(table.alias);
+        Set<LogicalFilterNode> best = Collections.emptySet();
+        double bestCost = s.estimateScanCost() * readFraction(bestScan, table.t, orderField, limitFraction)
+                + sortCost(bestScan, table.t, orderField, sortCost);
+
+        SecondaryIndex covering = IndexOnlyScan.findCoveringIndex(table.t, used, -1);
+        if (covering != null) {
+            OpIterator scan = new IndexOnlyScan(t, covering, table.alias, BTreeRange.ALL,
+                    covering.getKeyField() == orderField && !oByAsc);
+            double cost = s.estimateIndexOnlyScanCost(covering,
+                    readFraction(scan, table.t, orderField, limitFraction))
+                    + sortCost(scan, table.t, orderField, sortCost);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestScan = scan;
+            }
+        }
+
+        for (Map.Entry<Integer, BTreeRange> e : ranges.entrySet()) {
+            int field = e.getKey();
+            BTreeRange range = e.getValue();
+            Set<LogicalFilterNode> applied = rangeFilters.getOrDefault(field, Collections.emptySet());
+            double sel = s.estimateRangeSelectivity(field, range);
+            boolean descending = field == orderField && !oByAsc;
+
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            OpIterator scan;
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field)
+                scan = new BTreeScan(t, table.t, table.alias, range, descending, BTreeFile.DEFAULT_PREFETCH, false);
+            else
+                scan = IndexScan.forRange(t, table.t, table.alias, field, range);
+            if (scan != null) {
+                double cost = s.estimateIndexScanCost(field,
+                        sel * readFraction(scan, table.t, orderField, limitFraction))
+                        + sortCost(scan, table.t, orderField, sortCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestScan = scan;
+                    best = applied;
+                }
+            }
+
+            covering = IndexOnlyScan.findCoveringIndex(table.t, used, field);
+            if (covering != null) {
+                scan = new IndexOnlyScan(t, covering, table.alias, range, descending);
+                double cost = s.estimateIndexOnlyScanCost(covering,
+                        sel * readFraction(scan, table.t, orderField, limitFraction))
+                        + sortCost(scan, table.t, orderField, sortCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestScan = scan;
+                    best = applied;
+                }
+            }
+        }
+        subplanMap.put(table.alias, bestScan);
+        return best;
+    }
+
+    /** Return the fraction of the tuples it would otherwise read that a scan
+     *  reads before the query's LIMIT stops it: limitFraction if the query
+     *  does not order its result or the scan returns it in order, else all.
+     */
+    private double readFraction(OpIterator scan, int tableId, int orderField, double limitFraction) {
+        if (!hasOrderBy || providesOrder(scan, tableId, orderField, oByAsc))
+            return limitFraction;
+        return 1.0;
+    }
+
+    /** Return the cost of sorting the output of a scan into the order the
+     *  query asks for: nothing if the scan already returns it in that order.
+     */
+    private double sortCost(OpIterator scan, int tableId, int orderField, double sortCost) {
+        if (orderField == -1 || providesOrder(scan, tableId, orderField, oByAsc))
+            return 0.0;
+        return sortCost;
+    }
+
+    /** Return the field of a table that the query orders its result by, if
+     *  the order of the table's scan can carry through to the result: if the
+     *  query reads that table alone and does not aggregate.
+     *  @return the index of the field in the table, or -1
+     */
+    private int orderField(LogicalScanNode table) {
+        if (!hasOrderBy || hasAgg || !joins.isEmpty() || tables.size() != 1)
+            return -1;
+        String[] parts = oByField.split("[.]");
+        if (!parts[0].equals(table.alias))
+            return -1;
+        try {
+            return Database.getCatalog().getTupleDesc(table.t).fieldNameToIndex(parts[1]);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /** Return true if a scan of a table returns its tuples ordered by the
+     *  given field: a scan of a B+ tree keyed on the field in the same
+     *  direction, or an index-only scan of an index keyed on it.
+     *  @param scan the scan, or null for a plain SeqScan
+     *  @param field the field, or -1 for none
+     *  @param asc true for ascending order, false for descending
+     */
+    private static boolean providesOrder(OpIterator scan, int tableId, int field, boolean asc) {
+        if (field == -1)
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        boolean keyed = file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+        if (scan == null || scan instanceof SeqScan)
+            return keyed && asc;
+        if (scan instanceof BTreeScan)
+            return keyed && ((BTreeScan) scan).isDescending() != asc;
+        if (scan instanceof IndexOnlyScan) {
+            IndexOnlyScan ios = (IndexOnlyScan) scan;
+            return ios.getIndex().getKeyField() == field && ios.isDescending() != asc;
+        }
+        return false;
+    }
+
+    /** Describe the kind of scan each base table is read with, after
+     *  filters: the class of the scan, and for those returning their tuples
+     *  in order, the key they are ordered on and in which direction.
+     */
+    private String accessPaths() {
+        StringBuilder paths = new StringBuilder();
+        for (LogicalScanNode table : tables) {
+            OpIterator scan = subplanMap.get(table.alias);
+            while (scan instanceof Filter)
+                scan = ((Filter) scan).getChildren()[0];
+            paths.append(table.alias).append('=').append(scan.getClass().getSimpleName());
+            if (scan instanceof BTreeScan && ((BTreeScan) scan).isDescending())
+                paths.append(" desc");
+            if (scan instanceof IndexOnlyScan) {
+                IndexOnlyScan ios = (IndexOnlyScan) scan;
+                paths.append(' ').append(ios.getIndex().getKeyField()).append(ios.isDescending() ? " desc" : "");
+            }
+            paths.append(';');
+        }
+        return paths.toString();
+    }
+
+    /** Return the fields of a base table the query reads: those it selects,
+     *  filters, joins, groups, aggregates or orders on. Every field is read
+     *  if the query selects *.
+     */
+    private Set<Integer> referencedFields(LogicalScanNode table) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(table.alias))
+                names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            String[] parts = name.split("[.]");
+            String alias = parts.length > 1 ? parts[0] : null;
+            String pureName = parts[parts.length - 1];
+            if (pureName.equals("*") && (alias == null || alias.equals("null") || alias.equals(table.alias))) {
+                for (int i = 0; i < td.numFields(); i++)
+                    fields.add(i);
+            } else if (table.alias.equals(alias)) {
+                try {
+                    fields.add(td.fieldNameToIndex(pureName));
+                } catch (NoSuchElementException e) {
+                    // reported when the plan is built
+                }
+            }
+        }
+        return fields;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -293,6 +680,7 @@ public class LogicalPlan {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
+        Map<String,List<Predicate>> filterPredicates = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
 
         while (tableIt.hasNext()) {
@@ -308,7 +696,18 @@ public class LogicalPlan {
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            filterPredicates.put(table.alias, new ArrayList<>());
+
+        }
 
+        Set<LogicalFilterNode> indexFilters = new HashSet<>();
+        boolean ordered = false;
+        for (LogicalScanNode table : tables) {
+            int orderField = orderField(table);
+            indexFilters.addAll(chooseAccessPath(t, table,
+                    statsMap.get(Database.getCatalog().getTableName(table.t)), orderField));
+            // the scan returns the tuples in the order asked for, so they need no sort
+            ordered |= providesOrder(subplanMap.get(table.alias), table.t, orderField, oByAsc);
         }
 
         for (LogicalFilterNode lf : filters) {
@@ -317,39 +716,49 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            // the index scan chosen for the table already applies this filter, as part of its range
+            if (!indexFilters.contains(lf)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            // the subplan may not read every field of the table; find the field in the table itself
+            int field = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            filterPredicates.get(lf.tableAlias).add(new Predicate(field, lf.p, f));
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
-        
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        // the filters on each table are estimated together, so that those on
+        // correlated columns are not taken to be independent
+        for (Map.Entry<String,List<Predicate>> e : filterPredicates.entrySet()) {
+            if (e.getValue().isEmpty())
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            filterSelectivities.put(e.getKey(), s.estimateSelectivity(e.getValue()));
+        }
+        
+        String accessPaths = accessPaths();
+        if (joinPlan != null && joinPlan.accessPaths.equals(accessPaths)) {
+            // the joins were ordered for a plan of the same query with other constants
+            joins = joinPlan.joins;
+            ordered |= joinPlan.ordered;
+        } else {
+            JoinOptimizer jo = new JoinOptimizer(this,joins);
+
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            // the joins may return their tuples in the order asked for
+            boolean joinsOrdered = joinOrderField() != null && jo.isOrderedOn(joinOrderField());
+            ordered |= joinsOrdered;
+            joinPlan = new JoinPlan(joins, joinsOrdered, accessPaths);
+        }
 
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
@@ -477,10 +886,14 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !ordered) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
+        if (limit >= 0) {
+            node = new Limit(limit, node);
+        }
+
         return new Project(outFields, outTypes, node);
     }
 
@@ -0,0 +1,344 @@
+package simpledb.optimizer;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * StatsCollector reads the values of every column of a table in a single
+ * pass, for TableStats to build the statistics of each column from.
+ * <p>
+ * A HeapFile is read a page at a time straight from disk, so collecting
+ * statistics takes no locks and does not fill the buffer pool; it sees what
+ * committed transactions wrote. With a sample rate below 1, only that
+ * fraction of the pages, picked at random, is read (block sampling), and the
+ * number of tuples is scaled up by the fraction of pages read. The pages to
+ * read are split into ranges of PAGES_PER_TASK pages that are read in
+ * parallel.
+ * <p>
+ * A BTreeFile, whose leaf pages can only be found from the root, is read in
+ * full with a range scan that releases the lock on each leaf as soon as it
+ * has been read, so that it never holds locks that writers wait on. Other
+ * files are read in full through their iterator.
+ * <p>
+ * However much of a table is read, only a uniform random sample of at most
+ * MAX_SAMPLE_ROWS of the tuples read is kept (see {@link Reservoir}), so that
+ * analyzing a large table does not hold all of its values in memory.
+ */
+class StatsCollector {
+
+    /** The number of pages each task reads */
+    static final int PAGES_PER_TASK = 32;
+
+    /** The most tuples a sample keeps, however many are read */
+    static final int MAX_SAMPLE_ROWS = 30000;
+
+    /** Threads reading page ranges; they never keep the JVM alive */
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "stats-reader");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * The values of one column of the tuples read. Each value is kept as an
+     * integer in the order of the column's values: ints as they are, strings
+     * mapped by {@link TableStats#stringToInt}, which keeps only their first
+     * characters. Strings also keep a hash of the whole string, which tells
+     * them apart.
+     */
+    static class Column {
+        private int[] values = new int[16];
+        private long[] hashes;
+        private int size = 0;
+        /** The number of null values, which are not kept */
+        int nulls = 0;
+        /** The rows, counting nulls, whose value is null */
+        private final BitSet nullRows = new BitSet();
+        /** The total width in bytes of the values */
+        long width = 0;
+        /**
+         * A sketch of the values of every row read, whether kept or not, or
+         * null if no more rows were read than were kept
+         */
+        HyperLogLog sketch;
+        /** The number of rows the sketch has seen */
+        long sketchedRows;
+
+        Column(Type type) {
+            if (type == Type.STRING_TYPE)
+                hashes = new long[values.length];
+        }
+
+        /** @return the number of values kept */
+        int size() {
+            return size;
+        }
+
+        /** @return the i-th value, as an integer in the order of the column's values */
+        int value(int i) {
+            return values[i];
+        }
+
+        /** @return a key telling the i-th value apart from all others: an int itself, or a string's hash */
+        long key(int i) {
+            return hashes == null ? values[i] : hashes[i];
+        }
+
+        /**
+         * @param nullKey the key to give null values
+         * @return the key of the value of each row read, nulls included; see {@link #key}
+         */
+        long[] rowKeys(long nullKey) {
+            long[] keys = new long[size + nulls];
+            for (int row = 0, i = 0; row < keys.length; row++)
+                keys[row] = nullRows.get(row) ? nullKey : key(i++);
+            return keys;
+        }
+
+        void add(Field f) {
+            if (f == null) {
+                nullRows.set(size + nulls);
+                nulls++;
+                return;
+            }
+            reserve(1);
+            if (f.getType() == Type.INT_TYPE) {
+                values[size] = ((IntField) f).getValue();
+                width += Type.INT_TYPE.getLen();
+            } else {
+                String s = ((StringField) f).getValue();
+                values[size] = TableStats.stringToInt(s);
+                hashes[size] = HyperLogLog.hash(s);
+                width += s.length();
+            }
+            size++;
+        }
+
+        private void reserve(int n) {
+            if (size + n <= values.length)
+                return;
+            int capacity = Math.max(size + n, values.length * 2);
+            values = Arrays.copyOf(values, capacity);
+            if (hashes != null)
+                hashes = Arrays.copyOf(hashes, capacity);
+        }
+    }
+
+    /**
+     * The values of each column of the tuples sampled.
+     */
+    static class Sample {
+        final Column[] columns;
+        /** The number of tuples sampled */
+        int rows = 0;
+        /** The estimated number of tuples in the table */
+        int numTuples;
+
+        Sample(TupleDesc td) {
+            columns = new Column[td.numFields()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new Column(td.getFieldType(i));
+        }
+
+        void add(Tuple t) {
+            for (int i = 0; i < columns.length; i++)
+                columns[i].add(t.getField(i));
+            rows++;
+        }
+    }
+
+    /**
+     * A uniform random sample of at most a given number of the tuples read.
+     * Each tuple read is given a random priority and those with the lowest
+     * priorities are kept, so reservoirs filled in parallel merge into a
+     * uniform sample of all the tuples they read. The distinct values of
+     * each column of every tuple read are counted in a HyperLogLog sketch,
+     * which merges the same way.
+     */
+    static class Reservoir {
+        private static final class Entry {
+            final double priority;
+            final Tuple tuple;
+
+            Entry(double priority, Tuple tuple) {
+                this.priority = priority;
+                this.tuple = tuple;
+            }
+        }
+
+        private final TupleDesc td;
+        private final int capacity;
+        /** The tuples kept, the one with the highest priority at the head */
+        private final PriorityQueue<Entry> kept;
+        /** The distinct values of each column of the tuples read */
+        private final HyperLogLog[] sketches;
+        /** The number of tuples read */
+        long read = 0;
+
+        Reservoir(TupleDesc td, int capacity) {
+            this.td = td;
+            this.capacity = capacity;
+            this.kept = new PriorityQueue<>(
+                    (a, b) -> Double.compare(b.priority, a.priority));
+            this.sketches = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i] = new HyperLogLog();
+        }
+
+        void add(Tuple t) {
+            read++;
+            for (int i = 0; i < sketches.length; i++) {
+                Field f = t.getField(i);
+                if (f == null)
+                    continue;
+                // the same key as Column#key
+                long key = f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                        : HyperLogLog.hash(((StringField) f).getValue());
+                sketches[i].add(HyperLogLog.hash(key));
+            }
+            offer(ThreadLocalRandom.current().nextDouble(), t);
+        }
+
+        void addAll(Reservoir other) {
+            read += other.read;
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i].merge(other.sketches[i]);
+            for (Entry e : other.kept)
+                offer(e.priority, e.tuple);
+        }
+
+        private void offer(double priority, Tuple t) {
+            if (kept.size() < capacity) {
+                kept.add(new Entry(priority, t));
+            } else if (priority < kept.peek().priority) {
+                kept.poll();
+                kept.add(new Entry(priority, t));
+            }
+        }
+
+        /** @return the values of the tuples kept, with the sketches of every tuple read */
+        Sample toSample() {
+            Sample sample = new Sample(td);
+            for (Entry e : kept)
+                sample.add(e.tuple);
+            if (read > kept.size()) {
+                for (int i = 0; i < sketches.length; i++) {
+                    sample.columns[i].sketch = sketches[i];
+                    sample.columns[i].sketchedRows = read;
+                }
+            }
+            return sample;
+        }
+    }
+
+    /**
+     * Read the values of the tuples of file.
+     *
+     * @param file the file to read
+     * @param sampleRate the fraction of the pages of a HeapFile to read, in (0, 1]
+     * @return a sample of at most MAX_SAMPLE_ROWS of the tuples read
+     */
+    static Sample collect(DbFile file, double sampleRate) throws DbException, TransactionAbortedException {
+        if (!(file instanceof HeapFile))
+            return scan(file);
+        HeapFile hf = (HeapFile) file;
+        int numPages = hf.numPages();
+        int[] pages = choosePages(numPages, sampleRate);
+
+        Reservoir reservoir;
+        if (pages.length <= PAGES_PER_TASK) {
+            reservoir = read(hf, pages, 0, pages.length);
+        } else {
+            List<Future<Reservoir>> parts = new ArrayList<>();
+            for (int from = 0; from < pages.length; from += PAGES_PER_TASK) {
+                int start = from, end = Math.min(pages.length, from + PAGES_PER_TASK);
+                parts.add(READERS.submit(() -> read(hf, pages, start, end)));
+            }
+            reservoir = new Reservoir(hf.getTupleDesc(), MAX_SAMPLE_ROWS);
+            try {
+                for (Future<Reservoir> part : parts)
+                    reservoir.addAll(part.get());
+            } catch (InterruptedException | ExecutionException e) {
+                for (Future<Reservoir> part : parts)
+                    part.cancel(true);
+                throw new DbException("could not read " + hf.getFile() + ": " + e);
+            }
+        }
+        Sample sample = reservoir.toSample();
+        sample.numTuples = pages.length == 0 ? 0
+                : (int) Math.round((double) reservoir.read * numPages / pages.length);
+        return sample;
+    }
+
+    /**
+     * Pick the pages to read, in ascending order.
+     *
+     * @return all of the numPages pages if sampleRate is at least 1, else a
+     *         random ceil(sampleRate * numPages) of them, but at least one
+     */
+    static int[] choosePages(int numPages, double sampleRate) {
+        int[] pages = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = i;
+        if (sampleRate >= 1.0 || numPages == 0)
+            return pages;
+        int k = Math.min(numPages, Math.max(1, (int) Math.ceil(sampleRate * numPages)));
+        Random rand = new Random();
+        for (int i = 0; i < k; i++) {
+            int j = i + rand.nextInt(numPages - i);
+            int tmp = pages[i];
+            pages[i] = pages[j];
+            pages[j] = tmp;
+        }
+        int[] chosen = Arrays.copyOf(pages, k);
+        Arrays.sort(chosen);
+        return chosen;
+    }
+
+    private static Reservoir read(HeapFile hf, int[] pages, int from, int to) {
+        Reservoir reservoir = new Reservoir(hf.getTupleDesc(), MAX_SAMPLE_ROWS);
+        for (int i = from; i < to; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pages[i]));
+            if (page == null)
+                continue;
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                reservoir.add(it.next());
+        }
+        return reservoir;
+    }
+
+    private static Sample scan(DbFile file) throws DbException, TransactionAbortedException {
+        Reservoir reservoir = new Reservoir(file.getTupleDesc(), MAX_SAMPLE_ROWS);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file instanceof BTreeFile
+                ? ((BTreeFile) file).rangeIterator(tid, (IndexPredicate) null, 0, true)
+                : file.iterator(tid);
+        try {
+            it.open();
+            while (it.hasNext())
+                reservoir.add(it.next());
+            it.close();
+        } finally {
+            // release the read locks taken by the scan
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        Sample sample = reservoir.toSample();
+        sample.numTuples = (int) reservoir.read;
+        return sample;
+    }
+}
@@ -6,14 +6,22 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeRange;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -27,6 +35,9 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** Pages read to go from the root of a B+ tree down to the first matching leaf */
+    static final int INDEX_DESCENT_PAGES = 2;
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -52,17 +63,111 @@ public class TableStats {
     }
 
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        computeStatistics(null, DEFAULT_SAMPLE_RATE);
+    }
 
-        System.out.println("Computing table stats.");
+    /**
+     * Compute statistics for every table in the catalog, reusing those saved
+     * in statsFile for tables whose files have not changed since, and save
+     * them all to statsFile. Tables are read in parallel.
+     *
+     * @param statsFile
+     *            The file statistics are saved in, or null to compute them
+     *            all without saving them
+     * @param sampleRate
+     *            The fraction of the pages of each table to read
+     */
+    public static void computeStatistics(File statsFile, double sampleRate) {
+        Map<String, TableStats> saved = new HashMap<>();
+        if (statsFile != null && statsFile.exists()) {
+            try {
+                saved = loadStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable table stats in " + statsFile + ": " + e.getMessage());
+            }
+        }
+
+        List<Integer> stale = new ArrayList<>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved.get(name);
+            if (s != null && s.tableId == tableid && s.isCurrent() && s.hasColumnGroups())
+                setTableStats(name, s);
+            else
+                stale.add(tableid);
+        }
+
+        System.out.println("Computing table stats.");
+        if (!stale.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(stale.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int tableid : stale) {
+                    done.add(pool.submit(() -> setTableStats(Database.getCatalog().getTableName(tableid),
+                            new TableStats(tableid, IOCOSTPERPAGE, sampleRate))));
+                }
+                for (Future<?> f : done)
+                    f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        if (statsFile != null && !stale.isEmpty()) {
+            try {
+                saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save table stats to " + statsFile + ": " + e.getMessage());
+            }
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Save the statistics of every table in the stats map to f, replacing
+     * its contents.
+     */
+    public static void saveStatistics(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            List<Map.Entry<String, TableStats>> entries = new ArrayList<>(statsMap.entrySet());
+            out.writeInt(STATS_FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, TableStats> e : entries) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the statistics saved in f with {@link #saveStatistics}, keeping
+     * those of tables in the catalog whose columns have not changed. They
+     * may be out of date; see {@link #isCurrent}.
+     *
+     * @return the statistics read, by table name
+     */
+    public static Map<String, TableStats> loadStatistics(File f) throws IOException {
+        Map<String, TableStats> loaded = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != STATS_FILE_VERSION)
+                throw new IOException("unknown stats file version");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                TableStats s = read(in, name);
+                if (s != null)
+                    loaded.put(name, s);
+            }
+        }
+        return loaded;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -70,14 +175,50 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** The fraction of each table's pages read to compute its statistics, unless told otherwise */
+    public static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    private static final int STATS_FILE_VERSION = 4;
+
+    /**
+     * A table is analyzed again once it has had more than REANALYZE_MIN_CHANGES
+     * plus REANALYZE_FRACTION of its tuples inserted or deleted
+     */
+    static final int REANALYZE_MIN_CHANGES = 500;
+    static final double REANALYZE_FRACTION = 0.2;
+
+    /** The thread analyzing tables again in the background; it never keeps the JVM alive */
+    private static final ExecutorService ANALYZER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "stats-analyzer");
+        t.setDaemon(true);
+        return t;
+    });
+
     private int tableId;
     private int ioCostPerPage;
     private Catalog.Table table;
     private String tableName;
-    private HeapFile heapFile;
-
-    private Map<Integer, IntHistogram> intHistogramMap;
-    private Map<Integer, StringHistogram> stringHistogramMap;
+    private DbFile dbFile;
+    private int numTuples;
+    private double sampleRate;
+    /** The fraction of the table's tuples the statistics were built from */
+    private double rowRate;
+    /** The length and modification time of the table's file when it was read */
+    private long fileLength;
+    private long fileModified;
+
+    /** The statistics of each column, or nulls if the table had no tuples */
+    private ColumnStats[] columns;
+    /** The statistics of each column group declared on the table, if it had tuples */
+    private ColumnGroupStats[] groups = new ColumnGroupStats[0];
+
+    /** The number of tuples when the table was analyzed */
+    private int analyzedTuples;
+    /** The number of tuples inserted or deleted since the table was analyzed */
+    private final AtomicLong modifications = new AtomicLong();
+    private final AtomicBoolean reanalyzing = new AtomicBoolean();
+    /** The statistics that replaced these once the table was analyzed again, which later changes go to */
+    private TableStats replacement;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -90,87 +231,438 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table,
+     * read in a single pass.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     * @param sampleRate
+     *            The fraction of the table's pages to read, in (0, 1]; the
+     *            number of tuples is scaled up to match. At most
+     *            StatsCollector.MAX_SAMPLE_ROWS of the tuples read are kept.
+     * @see StatsCollector
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
+        if (!(sampleRate > 0 && sampleRate <= 1))
+            throw new IllegalArgumentException("sample rate must be in (0, 1]");
+        init(tableid, ioCostPerPage, sampleRate);
+        File f = backingFile(dbFile);
+        if (f != null) {
+            fileLength = f.length();
+            fileModified = f.lastModified();
+        }
+
+        try {
+            StatsCollector.Sample sample = StatsCollector.collect(dbFile, sampleRate);
+            numTuples = sample.numTuples;
+            analyzedTuples = numTuples;
+            rowRate = numTuples == 0 ? sampleRate : Math.min(1.0, (double) sample.rows / numTuples);
+            if (sample.rows > 0)
+                build(sample, numTuples);
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private TableStats() {
+    }
+
+    /**
+     * Build the statistics of each column, and of each column group declared
+     * on the table, from a sample of its tuples.
+     */
+    private void build(StatsCollector.Sample sample, int tableRows) {
+        for (int index = 0; index < columns.length; index++)
+            columns[index] = ColumnStats.build(sample.columns[index], tableRows);
+        List<ColumnGroupStats> built = new ArrayList<>();
+        for (int[] fields : Database.getCatalog().getColumnGroups(tableId))
+            built.add(ColumnGroupStats.build(sample, fields, tableRows));
+        groups = built.toArray(new ColumnGroupStats[0]);
+    }
+
+    /**
+     * @return true if these statistics include every column group declared
+     *         on the table, or the table had no tuples to build them from
+     */
+    private boolean hasColumnGroups() {
+        if (columns.length == 0 || columns[0] == null)
+            return true;
+        for (int[] fields : Database.getCatalog().getColumnGroups(tableId)) {
+            if (columnGroup(fields) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the statistics of the column group with exactly these fields, in ascending order, or null */
+    private ColumnGroupStats columnGroup(int[] fields) {
+        for (ColumnGroupStats g : groups) {
+            if (Arrays.equals(g.getFields(), fields))
+                return g;
+        }
+        return null;
+    }
+
+    private void init(int tableid, int ioCostPerPage, double sampleRate) {
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
+        this.sampleRate = sampleRate;
         this.table = Database.getCatalog().getTable(tableid);
         this.tableName = table.getName();
-        this.heapFile = (HeapFile) table.getFile();
-        TupleDesc heapFileTupleDesc = heapFile.getTupleDesc();
-        int numFields = heapFileTupleDesc.numFields();
+        this.dbFile = table.getFile();
+        this.columns = new ColumnStats[dbFile.getTupleDesc().numFields()];
+    }
 
-        int[] minVal = new int[numFields];
-        int[] maxVal = new int[numFields];
-        Arrays.fill(minVal, Integer.MAX_VALUE);
-        Arrays.fill(maxVal, Integer.MIN_VALUE);
+    private static File backingFile(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getFile();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getFile();
+        return null;
+    }
 
-        this.intHistogramMap = new ConcurrentHashMap<>();
-        this.stringHistogramMap = new ConcurrentHashMap<>();
+    /**
+     * @return true if the table's file has kept the length and modification
+     *         time it had when these statistics were computed
+     */
+    public boolean isCurrent() {
+        File f = backingFile(dbFile);
+        return f != null && f.length() == fileLength && f.lastModified() == fileModified;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        TupleDesc td = dbFile.getTupleDesc();
+        out.writeLong(fileLength);
+        out.writeLong(fileModified);
+        out.writeDouble(sampleRate);
+        out.writeDouble(rowRate);
+        out.writeInt(numTuples);
+        out.writeInt(td.numFields());
+        for (int index = 0; index < td.numFields(); index++) {
+            out.writeUTF(td.getFieldType(index).name());
+            out.writeBoolean(columns[index] != null);
+            if (columns[index] != null)
+                columns[index].write(out);
+        }
+        out.writeInt(groups.length);
+        for (ColumnGroupStats g : groups)
+            g.write(out);
+    }
 
-        DbFileIterator dbFileIterator = heapFile.iterator(new TransactionId());
+    /**
+     * Read the statistics of table name written by write.
+     *
+     * @return the statistics, or null if there is no such table in the
+     *         catalog or its columns no longer have the types they were saved with
+     */
+    private static TableStats read(DataInputStream in, String name) throws IOException {
+        TableStats s = new TableStats();
+        s.fileLength = in.readLong();
+        s.fileModified = in.readLong();
+        s.sampleRate = in.readDouble();
+        s.rowRate = in.readDouble();
+        s.numTuples = in.readInt();
+        int numFields = in.readInt();
+        ColumnStats[] columns = new ColumnStats[numFields];
+        List<Type> types = new ArrayList<>();
+        for (int index = 0; index < numFields; index++) {
+            types.add(Type.valueOf(in.readUTF()));
+            if (in.readBoolean())
+                columns[index] = ColumnStats.read(in);
+        }
+        int numGroups = in.readInt();
+        if (numGroups < 0)
+            throw new IOException("corrupt table stats");
+        ColumnGroupStats[] groups = new ColumnGroupStats[numGroups];
+        for (int g = 0; g < numGroups; g++) {
+            groups[g] = ColumnGroupStats.read(in);
+            for (int field : groups[g].getFields()) {
+                if (field < 0 || field >= numFields)
+                    throw new IOException("corrupt table stats");
+            }
+        }
 
+        int tableid;
         try {
-            dbFileIterator.open();
-            //get the minVal and maxVal for each field
-            while (dbFileIterator.hasNext()) {
-                Tuple tuple = dbFileIterator.next();
-                Iterator<Field> fieldIterator = tuple.fields();
-                int index = 0;
-                while (fieldIterator.hasNext()) {
-                    Field field = fieldIterator.next();
-                    if (field.getType().equals(Type.INT_TYPE)) {
-                        IntField intField = (IntField) field;
-                        minVal[index] = Math.min(minVal[index], intField.getValue());
-                        maxVal[index] = Math.max(maxVal[index], intField.getValue());
-                    } else {
-                        StringField stringField = (StringField) field;
-                        minVal[index] = Math.min(minVal[index], stringToInt(stringField.getValue()));
-                        maxVal[index] = Math.max(maxVal[index], stringToInt(stringField.getValue()));
-                    }
-                    index++;
-                }
+            tableid = Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        if (td.numFields() != numFields)
+            return null;
+        for (int index = 0; index < numFields; index++) {
+            if (!td.getFieldType(index).equals(types.get(index)))
+                return null;
+        }
+        s.init(tableid, IOCOSTPERPAGE, s.sampleRate);
+        s.columns = columns;
+        s.groups = groups;
+        s.analyzedTuples = s.numTuples;
+        return s;
+    }
+
+    /**
+     * The inserts and deletes a running transaction made in one table that
+     * are not yet in its statistics: how many there were, and the tuples
+     * sampled from them at the rate of the statistics.
+     */
+    private static final class PendingChanges {
+        int inserted = 0;
+        int deleted = 0;
+        final List<Tuple> insertedSample = new ArrayList<>();
+        final List<Tuple> deletedSample = new ArrayList<>();
+    }
+
+    /** The changes of each running transaction, by table id */
+    private static final ConcurrentMap<TransactionId, Map<Integer, PendingChanges>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Record that a transaction inserted a tuple into a table; it is added to
+     * the statistics of the table, if it has any, when the transaction
+     * commits. Called by {@link BufferPool#insertTuple}.
+     *
+     * @param tid the transaction that inserted the tuple
+     * @param tableId the table the tuple was inserted into
+     * @param t the tuple inserted
+     */
+    public static void tupleInserted(TransactionId tid, int tableId, Tuple t) {
+        tuplesInserted(tid, tableId, Collections.singletonList(t));
+    }
+
+    /**
+     * Record that a transaction inserted tuples into a table, such as by a
+     * bulk load; see {@link #tupleInserted}.
+     */
+    public static void tuplesInserted(TransactionId tid, int tableId, List<Tuple> tuples) {
+        TableStats s = statsOf(tableId);
+        if (s == null || tuples.isEmpty())
+            return;
+        PendingChanges p = pendingChanges(tid, tableId);
+        synchronized (p) {
+            p.inserted += tuples.size();
+            for (Tuple t : tuples) {
+                if (s.inSample())
+                    p.insertedSample.add(t);
             }
-            dbFileIterator.rewind();
-            // add val to histogram
-            while (dbFileIterator.hasNext()) {
-                Tuple tuple = dbFileIterator.next();
-                Iterator<Field> iterator = tuple.fields();
-                int index = 0;
-                while (iterator.hasNext()) {
-                    Field field = iterator.next();
-                    if (field.getType().equals(Type.INT_TYPE)) {
-                        IntField intField = (IntField) field;
-                        IntHistogram intHistogram = intHistogramMap.get(index);
-                        if (intHistogram == null) {
-                            intHistogram = new IntHistogram(NUM_HIST_BINS, minVal[index], maxVal[index]);
-                        }
-                        intHistogram.addValue(intField.getValue());
-                        intHistogramMap.put(index, intHistogram);
-                    } else {
-                        StringField stringField = (StringField) field;
-                        StringHistogram stringHistogram = stringHistogramMap.get(index);
-                        if (stringHistogram == null) {
-                            stringHistogram = new StringHistogram(NUM_HIST_BINS);
-                        }
-                        stringHistogram.addValue(stringField.getValue());
-                        stringHistogramMap.put(index, stringHistogram);
-                    }
-                    index++;
-                }
+        }
+    }
+
+    /**
+     * Record that a transaction deleted a tuple from a table; it is removed
+     * from the statistics of the table, if it has any, when the transaction
+     * commits. Called by {@link BufferPool#deleteTuple}.
+     *
+     * @param tid the transaction that deleted the tuple
+     * @param tableId the table the tuple was deleted from
+     * @param t the tuple deleted
+     */
+    public static void tupleDeleted(TransactionId tid, int tableId, Tuple t) {
+        TableStats s = statsOf(tableId);
+        if (s == null)
+            return;
+        PendingChanges p = pendingChanges(tid, tableId);
+        synchronized (p) {
+            p.deleted++;
+            if (s.inSample())
+                p.deletedSample.add(t);
+        }
+    }
+
+    private static PendingChanges pendingChanges(TransactionId tid, int tableId) {
+        return pending.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tableId, k -> new PendingChanges());
+    }
+
+    /**
+     * Apply the inserts and deletes of a transaction to the statistics of
+     * their tables if it committed, or forget them if it aborted. Called by
+     * {@link BufferPool#transactionComplete}.
+     *
+     * @param tid the transaction that completed
+     * @param commit whether it committed
+     */
+    public static void transactionComplete(TransactionId tid, boolean commit) {
+        Map<Integer, PendingChanges> changes = pending.remove(tid);
+        if (changes == null || !commit)
+            return;
+        for (Map.Entry<Integer, PendingChanges> e : changes.entrySet()) {
+            TableStats s = statsOf(e.getKey());
+            if (s != null)
+                s.apply(e.getValue());
+        }
+    }
+
+    private static TableStats statsOf(int tableId) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats s = statsMap.get(name);
+        return s != null && s.tableId == tableId ? s : null;
+    }
+
+    /**
+     * Fold newly inserted tuples into this table's column statistics, so
+     * that a bulk load does not leave them stale; see
+     * {@link ColumnStats#addValue} and {@link ColumnGroupStats#addTuple}. If the statistics were computed from a
+     * sample, only a sample of the tuples, at the same rate, is added.
+     * Changes made by a transaction are instead recorded with
+     * {@link #tuplesInserted}, and added once it commits.
+     *
+     * @param tuples the tuples added to the table
+     */
+    public synchronized void addTuples(List<Tuple> tuples) {
+        if (replacement != null) {
+            replacement.addTuples(tuples);
+            return;
+        }
+        if (tuples.isEmpty()) return;
+        int added = tuples.size();
+        numTuples += added;
+        noteModifications(added);
+        if (rowRate < 1.0) {
+            List<Tuple> sampled = new ArrayList<>();
+            for (Tuple tuple : tuples) {
+                if (inSample())
+                    sampled.add(tuple);
             }
-            dbFileIterator.close();
+            tuples = sampled;
+        }
+        addSampled(tuples, added);
+    }
 
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
+    /**
+     * Add the values of tuples sampled from those inserted.
+     *
+     * @param added the number of tuples inserted
+     */
+    private void addSampled(List<Tuple> tuples, int added) {
+        if (tuples.isEmpty()) return;
+        if (columns[0] == null) {
+            // the table had no tuples: build the statistics from these
+            StatsCollector.Sample sample = new StatsCollector.Sample(dbFile.getTupleDesc());
+            for (Tuple tuple : tuples)
+                sample.add(tuple);
+            build(sample, added);
+            return;
+        }
+        for (Tuple tuple : tuples) {
+            for (int index = 0; index < columns.length; index++)
+                columns[index].addValue(tuple.getField(index));
+            for (ColumnGroupStats g : groups)
+                g.addTuple(tuple);
+        }
+    }
+
+    /**
+     * Fold a newly inserted tuple into this table's column statistics.
+     *
+     * @see #addTuples
+     */
+    public void addTuple(Tuple t) {
+        addTuples(Collections.singletonList(t));
+    }
+
+    /**
+     * Remove a deleted tuple from this table's column statistics; see
+     * {@link ColumnStats#removeValue}. If the statistics were computed from
+     * a sample, the tuple is only removed from them as often as it would
+     * have been sampled. Changes made by a transaction are instead recorded
+     * with {@link #tupleDeleted}, and removed once it commits.
+     *
+     * @param t the tuple deleted from the table
+     */
+    public synchronized void removeTuple(Tuple t) {
+        if (replacement != null) {
+            replacement.removeTuple(t);
+            return;
+        }
+        numTuples = Math.max(0, numTuples - 1);
+        noteModifications(1);
+        if (inSample())
+            removeSampled(t);
+    }
+
+    /**
+     * Remove the values of a tuple sampled from those deleted. Column groups
+     * keep them until the table is analyzed again; see {@link ColumnGroupStats}.
+     */
+    private void removeSampled(Tuple t) {
+        if (columns[0] == null)
+            return;
+        for (int index = 0; index < columns.length; index++)
+            columns[index].removeValue(t.getField(index));
+    }
+
+    /** Apply the changes of a committed transaction */
+    private synchronized void apply(PendingChanges p) {
+        if (replacement != null) {
+            replacement.apply(p);
+            return;
+        }
+        numTuples = Math.max(0, numTuples + p.inserted - p.deleted);
+        noteModifications(p.inserted + p.deleted);
+        addSampled(p.insertedSample, p.inserted);
+        for (Tuple t : p.deletedSample)
+            removeSampled(t);
+    }
+
+    private boolean inSample() {
+        return rowRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rowRate;
+    }
+
+    /**
+     * @return the number of tuples inserted into or deleted from the table
+     *         since these statistics were computed
+     */
+    public long modificationsSinceAnalyze() {
+        return modifications.get();
+    }
+
+    /**
+     * Count n more modifications, and once there are too many for the
+     * statistics kept up to date incrementally to be trusted, such as when
+     * most of the table has been replaced, analyze the table again in the
+     * background. The new statistics replace these in the stats map, if
+     * they are still there, when they are ready, and changes made to these
+     * afterwards are passed on to them. The analyze reads the table's file,
+     * so it may see pages that transactions still running have written;
+     * those of a transaction that then aborts are counted until the table
+     * is analyzed again. Changes committed while the analyze runs may or
+     * may not be in what it read, so rather than being applied again they
+     * are counted as modifications of the new statistics, bringing the next
+     * analyze forward.
+     */
+    private void noteModifications(int n) {
+        long m = modifications.addAndGet(n);
+        if (m > REANALYZE_MIN_CHANGES + REANALYZE_FRACTION * analyzedTuples
+                && reanalyzing.compareAndSet(false, true)) {
+            ANALYZER.submit(() -> {
+                try {
+                    long before = modifications.get();
+                    TableStats fresh = new TableStats(tableId, ioCostPerPage, sampleRate);
+                    synchronized (this) {
+                        fresh.modifications.set(modifications.get() - before);
+                        if (statsMap.replace(tableName, this, fresh))
+                            replacement = fresh;
+                    }
+                } catch (RuntimeException e) {
+                    // the table may have been dropped since
+                    e.printStackTrace();
+                }
+            });
         }
     }
 
@@ -178,7 +670,7 @@ public class TableStats {
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
      */
-    private int stringToInt(String s) {
+    static int stringToInt(String s) {
         int i;
         int v = 0;
         for (i = 3; i >= 0; i--) {
@@ -204,12 +696,12 @@ public class TableStats {
     }
 
     /** @return the maximum value indexed by the histogram */
-    int maxVal() {
+    static int maxVal() {
         return stringToInt("zzzz");
     }
 
     /** @return the minimum value indexed by the histogram */
-    int minVal() {
+    static int minVal() {
         return stringToInt("");
     }
 
@@ -227,7 +719,69 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return ioCostPerPage * heapFile.numPages();
+        return ioCostPerPage * numPages();
+    }
+
+    private int numPages() {
+        if (dbFile instanceof BTreeFile)
+            return ((BTreeFile) dbFile).numPages();
+        return ((HeapFile) dbFile).numPages();
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy <tt>field op
+     * constant</tt> through an index on field, in the same units as
+     * {@link #estimateScanCost}.
+     *
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if there is no
+     *         index on field that can answer op
+     * @see #estimateIndexScanCost(int, double)
+     */
+    public double estimateIndexScanCost(int field, Predicate.Op op, Field constant) {
+        if (!IndexScan.supports(op))
+            return Double.POSITIVE_INFINITY;
+        return estimateIndexScanCost(field, estimateSelectivity(field, op, constant));
+    }
+
+    /**
+     * Estimates the cost of reading a fraction of the tuples of this table
+     * through an index on field. A B+ tree file keyed on field reads that
+     * fraction of its pages after descending the tree. A secondary index
+     * reads that fraction of its own pages, then one heap page per matching
+     * tuple, but never more than the whole heap since IndexScan fetches each
+     * page of a batch once.
+     *
+     * @param field
+     *            The indexed field
+     * @param selectivity
+     *            The fraction of the table's tuples read
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if there is no
+     *         index on field
+     */
+    public double estimateIndexScanCost(int field, double selectivity) {
+        if (dbFile instanceof BTreeFile && ((BTreeFile) dbFile).keyField() == field)
+            return ioCostPerPage * (INDEX_DESCENT_PAGES + Math.ceil(selectivity * numPages()));
+        SecondaryIndex index = IndexScan.findIndex(tableId, field);
+        if (index == null)
+            return Double.POSITIVE_INFINITY;
+        double indexPages = Math.ceil(selectivity * index.getFile().numPages());
+        double heapPages = Math.min(numPages(), Math.ceil(selectivity * numTuples));
+        return ioCostPerPage * (INDEX_DESCENT_PAGES + indexPages + heapPages);
+    }
+
+    /**
+     * Estimates the cost of reading a fraction of the entries of a secondary
+     * index on this table with an IndexOnlyScan, which never reads the heap.
+     *
+     * @param index
+     *            A secondary index on this table
+     * @param selectivity
+     *            The fraction of the index entries read
+     * @return the estimated cost, in the same units as
+     *         {@link #estimateScanCost}
+     */
+    public double estimateIndexOnlyScanCost(SecondaryIndex index, double selectivity) {
+        return ioCostPerPage * (INDEX_DESCENT_PAGES + Math.ceil(selectivity * index.getFile().numPages()));
     }
 
     /**
@@ -274,39 +828,174 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        if (constant.getType().equals(Type.INT_TYPE)) {
-            IntHistogram intHistogram = intHistogramMap.get(field);
-            IntField intConstant = (IntField) constant;
-            return intHistogram.estimateSelectivity(op, intConstant.getValue());
-        } else {
-            StringHistogram stringHistogram = stringHistogramMap.get(field);
-            StringField stringField = (StringField) constant;
-            return stringHistogram.estimateSelectivity(op, stringField.getValue());
+        ColumnStats column = columns[field];
+        return column == null ? 1.0 : column.estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates on the table,
+     * such as the filters of a query on it.
+     * <p>
+     * Predicates are assumed to be independent, so that their selectivities
+     * multiply, except for equality predicates on columns of a column group
+     * declared on the table (see {@link Catalog#addColumnGroup}), which are
+     * combined with the degrees to which the columns determine each other:
+     * if a determines b with degree d, then
+     * P(a = x and b = y) = P(a = x) * (d + (1 - d) * P(b = y)). The strongest
+     * dependencies are applied first, each column implied by at most one
+     * other and no column both implied and used to imply another, so that
+     * perfectly correlated columns count once rather than not at all.
+     *
+     * @param predicates
+     *            The predicates, on fields of this table
+     * @return The estimated fraction of tuples that satisfy every predicate
+     */
+    public double estimateSelectivity(List<Predicate> predicates) {
+        double sel = 1.0;
+        Map<Integer, Double> equalities = new LinkedHashMap<>();
+        for (Predicate p : predicates) {
+            double s = estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+            if (p.getOp() == Predicate.Op.EQUALS && inColumnGroup(p.getField())
+                    && !equalities.containsKey(p.getField()))
+                equalities.put(p.getField(), s);
+            else
+                sel *= s;
         }
+
+        Set<Integer> implied = new HashSet<>();
+        Set<Integer> determinants = new HashSet<>();
+        while (true) {
+            double best = 0.0;
+            int bestA = -1, bestB = -1;
+            for (ColumnGroupStats g : groups) {
+                for (int a : equalities.keySet()) {
+                    for (int b : equalities.keySet()) {
+                        if (a == b || implied.contains(a) || implied.contains(b) || determinants.contains(b))
+                            continue;
+                        double d = g.dependencyDegree(a, b);
+                        if (d > best) {
+                            best = d;
+                            bestA = a;
+                            bestB = b;
+                        }
+                    }
+                }
+            }
+            if (bestA == -1)
+                break;
+            equalities.put(bestB, best + (1 - best) * equalities.get(bestB));
+            implied.add(bestB);
+            determinants.add(bestA);
+        }
+        for (double s : equalities.values())
+            sel *= s;
+        return sel;
+    }
+
+    private boolean inColumnGroup(int field) {
+        for (ColumnGroupStats g : groups) {
+            if (g.indexOf(field) >= 0)
+                return true;
+        }
+        return false;
     }
 
     /**
-     * return the total number of tuples in this table
+     * Estimate the number of distinct combinations of the values of several
+     * fields: the product of the numbers of distinct values of each, as if
+     * they were independent, but no more than the number of combinations of
+     * a column group declared on them or on more fields.
+     *
+     * @param fields
+     *            The fields
+     * @return The estimated number of distinct combinations, at most the
+     *         number of tuples in the table
+     */
+    public double estimateDistinctValues(int[] fields) {
+        double ndv = 1.0;
+        for (int field : fields)
+            ndv *= estimateDistinctValues(field);
+        for (ColumnGroupStats g : groups) {
+            boolean covers = true;
+            for (int field : fields)
+                covers &= g.indexOf(field) >= 0;
+            if (covers)
+                ndv = Math.min(ndv, g.distinctValues());
+        }
+        return Math.min(totalTuples(), ndv);
+    }
+
+    /**
+     * Estimate the number of distinct non-null values of a field.
+     *
+     * @param field
+     *            The field
+     * @return The estimated number of distinct values, at most the number of
+     *         tuples in the table
+     */
+    public double estimateDistinctValues(int field) {
+        ColumnStats column = columns[field];
+        return column == null ? 0.0 : Math.min(totalTuples(), column.distinctValues());
+    }
+
+    /**
+     * @return the estimated fraction of the values of field that are null
+     */
+    public double nullFraction(int field) {
+        ColumnStats column = columns[field];
+        return column == null ? 0.0 : column.nullFraction();
+    }
+
+    /**
+     * @return the estimated average width in bytes of the non-null values of
+     *         field; for strings, the length of the string
+     */
+    public double avgWidth(int field) {
+        ColumnStats column = columns[field];
+        return column == null ? 0.0 : column.avgWidth();
+    }
+
+    /**
+     * Estimate the selectivity of a range of values of field, such as the
+     * range a scan reads when several predicates on the same field are
+     * combined. A bounded range is estimated as the overlap of its two
+     * one-sided ranges.
+     * 
+     * @param field
+     *            The field over which the range ranges
+     * @param range
+     *            The range of values of field
+     * @return The estimated fraction of tuples whose value of field lies in
+     *         range
+     */
+    public double estimateRangeSelectivity(int field, BTreeRange range) {
+        if (range.isEmpty())
+            return 0.0;
+        Field lo = range.getLo(), hi = range.getHi();
+        if (lo != null && lo.equals(hi))
+            return estimateSelectivity(field, Predicate.Op.EQUALS, lo);
+        double loSel = lo == null ? 1.0 : estimateSelectivity(field,
+                range.isLoInclusive() ? Predicate.Op.GREATER_THAN_OR_EQ : Predicate.Op.GREATER_THAN, lo);
+        double hiSel = hi == null ? 1.0 : estimateSelectivity(field,
+                range.isHiInclusive() ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN, hi);
+        return Math.max(0.0, loSel + hiSel - 1.0);
+    }
+
+    /**
+     * Estimates the cost of sorting card tuples in memory, as OrderBy does,
+     * in the same units as join costs: one unit per comparison.
+     */
+    public static double estimateSortCost(int card) {
+        return card <= 1 ? 0.0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * return the total number of tuples in this table, as counted when the
+     * statistics were computed plus any added with addTuples
      * */
     public int totalTuples() {
         // some code goes here
-        HeapFile heapFile = (HeapFile) table.getFile();
-        int numOfTuples = 0;
-        DbFileIterator iterator = heapFile.iterator(new TransactionId());
-        try {
-            iterator.open();
-            while (iterator.hasNext()) {
-                Tuple tuple = iterator.next();
-                numOfTuples++;
-            }
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
-        } catch (DbException e) {
-            e.printStackTrace();
-        } finally {
-            iterator.close();
-        }
-        return numOfTuples;
+        return numTuples;
     }
 
 }
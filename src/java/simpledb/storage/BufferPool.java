@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import org.omg.CORBA.PUBLIC_MEMBER;
 import simpledb.common.*;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -42,6 +44,13 @@ public class BufferPool {
     private final lruManager bufferPoolManager;
     private final LockManager lockManager;
     private final int numPages;
+    // before images of pages each transaction wrote to disk without caching them
+    private final ConcurrentHashMap<TransactionId, List<Page>> uncachedWrites = new ConcurrentHashMap<>();
+    // the number of prefetches reading a page, and while there are any, the
+    // write sequence number at which each page was last written or discarded
+    private int activePrefetches = 0;
+    private long writeSeq = 0;
+    private final HashMap<PageId, Long> lastWritten = new HashMap<>();
 
     private final class lruNode {
         Page page;
@@ -158,23 +167,101 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         // some code goes here
         lockManager.acquireLock(tid, pid, perm);
-        if (pageBuffer.containsKey(pid)) {
-            lruNode lruNode = bufferPoolManager.pageIdlruNodeMap.get(pid);
-            bufferPoolManager.addToHead(lruNode);
-            return pageBuffer.get(pid);
-        } else {
+        Page cached = cachedPage(pid);
+        if (cached != null)
+            return cached;
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return cachePage(dbFile.readPage(pid));
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, if it is not cached
+     * already, without locking it. Scans call this, from another thread, for
+     * pages they are about to request, so that reading them overlaps with
+     * the work on the current page. The page must still be fetched with
+     * getPage before its contents are relied on.
+     * <p>
+     * Since no lock keeps the page from changing while it is read, the copy
+     * read is not cached if the page was flushed or discarded in the
+     * meantime: it may be older than what is now on disk. Code that writes
+     * a page to disk without going through the pool must discard it after.
+     *
+     * @param pid the ID of the page to read
+     * @return the cached page, or the copy read if it could not be cached;
+     *   since it is not locked, its contents are only a hint
+     */
+    public Page prefetchPage(PageId pid) throws DbException {
+        long readFrom;
+        synchronized (this) {
+            Page cached = cachedPage(pid);
+            if (cached != null)
+                return cached;
+            activePrefetches++;
+            readFrom = writeSeq;
+        }
+        try {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             Page page = dbFile.readPage(pid);
-            if (bufferPoolManager.getSize() == numPages) {
-                try {
-                    evictPage();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            synchronized (this) {
+                if (lastWritten.getOrDefault(pid, -1L) >= readFrom)
+                    return page;
+                return cachePage(page);
+            }
+        } finally {
+            synchronized (this) {
+                if (--activePrefetches == 0)
+                    lastWritten.clear();
+            }
+        }
+    }
+
+    /** Record that a page was written to disk or dropped from the cache, for prefetches under way */
+    private synchronized void noteWritten(PageId pid) {
+        if (activePrefetches > 0)
+            lastWritten.put(pid, writeSeq++);
+    }
+
+    /** Return the cached version of a page, moving it to the head of the LRU list, or null. */
+    private synchronized Page cachedPage(PageId pid) {
+        lruNode node = bufferPoolManager.pageIdlruNodeMap.get(pid);
+        if (node == null)
+            return null;
+        bufferPoolManager.moveToHead(node);
+        return node.page;
+    }
+
+    /**
+     * Add a page just read from disk to the cache, unless another thread
+     * cached it while it was being read.
+     * @return the cached version of the page
+     */
+    private synchronized Page cachePage(Page page) throws DbException {
+        Page cached = cachedPage(page.getId());
+        if (cached != null)
+            return cached;
+        if (bufferPoolManager.getSize() == numPages) {
+            try {
+                evictPage();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            bufferPoolManager.put(new lruNode(page));
-            return page;
         }
+        bufferPoolManager.put(new lruNode(page));
+        return page;
+    }
+
+    /**
+     * Acquire a lock on a page without reading it into the buffer pool.
+     * Used for pages that are written straight to disk, such as the pages
+     * appended by a bulk load.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireLock(tid, pid, perm);
     }
 
     /**
@@ -207,7 +294,8 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockManager.isHoldLock(tid, p, Permissions.READ_ONLY);
+        return lockManager.isHoldLock(tid, p, Permissions.READ_ONLY)
+                || lockManager.isHoldLock(tid, p, Permissions.READ_WRITE);
     }
 
     /**
@@ -221,6 +309,15 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         List<LockManager.pair<PageId, lockType>> lockPages = lockManager.getLockPages(tid);
+        Set<HeapFile> heapFiles = new HashSet<>();
+        for (LockManager.pair<PageId, lockType> pair : lockPages) {
+            HeapFile hf = heapFileOf(pair.getFirst());
+            if (hf == null) continue;
+            heapFiles.add(hf);
+            // the free space map may have learned of changes that are discarded
+            if (!commit && pair.getSecond() == lockType.exclusive)
+                hf.pageAborted(pair.getFirst().getPageNumber());
+        }
         if (commit) {
             for (LockManager.pair<PageId, lockType> pair : lockPages) {
                 try {
@@ -228,7 +325,9 @@ public class BufferPool {
 
                     // use current page contents as the before-image
                     // for the next transaction that modifies this page.
-                    pageBuffer.get(pair.getFirst()).setBeforeImage();
+                    // locked pages need not be cached (evicted, or bulk loaded)
+                    Page page = pageBuffer.get(pair.getFirst());
+                    if (page != null) page.setBeforeImage();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -237,10 +336,34 @@ public class BufferPool {
             for (LockManager.pair<PageId, lockType> pair : lockPages) {
                 discardPage(pair.getFirst());
             }
+            // undo the writes that went straight to disk
+            for (Page beforeImage : uncachedWrites.getOrDefault(tid, Collections.emptyList())) {
+                try {
+                    Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
+                    noteWritten(beforeImage.getId());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
+        uncachedWrites.remove(tid);
+        TableStats.transactionComplete(tid, commit);
+        for (HeapFile hf : heapFiles)
+            hf.flushFreeSpaceMap();
         lockManager.releaseAllLock(tid);
     }
 
+    /** Return the HeapFile a page belongs to, or null if it is not a page of a HeapFile in the catalog */
+    private static HeapFile heapFileOf(PageId pid) {
+        if (!(pid instanceof HeapPageId)) return null;
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            return f instanceof HeapFile ? (HeapFile) f : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -252,6 +375,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The insert is also counted in the table's statistics once the
+     * transaction commits; see {@link TableStats#tupleInserted}.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -262,7 +388,57 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> dirtyPages = dbFile.insertTuple(tid, t);
-        PageId pid = t.getRecordId().getPageId();
+        cacheDirtyPages(tid, dirtyPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.insertEntry(tid, t));
+        }
+        TableStats.tupleInserted(tid, tableId, t);
+    }
+
+    /**
+     * Bulk load tuples into the specified table on behalf of a transaction
+     * (see HeapFile#bulkInsert). The new pages bypass the pool, but like
+     * insertTuple the tuples are added to the table's secondary indexes and
+     * counted in its statistics once the transaction commits.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to, which must be a HeapFile
+     * @param tuples the tuples to add
+     */
+    public void bulkInsertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof HeapFile)) {
+            throw new DbException("table " + tableId + " does not support bulk inserts");
+        }
+        ((HeapFile) dbFile).bulkInsert(tid, tuples);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Tuple t : tuples) {
+                cacheDirtyPages(tid, index.insertEntry(tid, t));
+            }
+        }
+        TableStats.tuplesInserted(tid, tableId, tuples);
+    }
+
+    /**
+     * Record that a transaction wrote pages to disk before committing,
+     * without caching them (see HeapFile#bulkInsert). If the transaction
+     * aborts, their before images are written back; recovery after a crash
+     * relies on the write having been logged first.
+     *
+     * @param tid the transaction that wrote the pages
+     * @param pages the pages as written, whose before images are kept
+     */
+    public void noteUncachedWrites(TransactionId tid, List<Page> pages) {
+        List<Page> beforeImages = uncachedWrites.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>()));
+        for (Page p : pages)
+            beforeImages.add(p.getBeforeImage());
+    }
+
+    /**
+     * Mark pages dirtied by tid as dirty and make them the cached versions.
+     */
+    private synchronized void cacheDirtyPages(TransactionId tid, List<Page> dirtyPages) throws DbException, IOException {
         for (Page dirtyPage : dirtyPages) {
             if (pageBuffer.containsKey(dirtyPage.getId())) {
                 dirtyPage.markDirty(true, tid);
@@ -286,6 +462,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The delete is also counted in the table's statistics once the
+     * transaction commits; see {@link TableStats#tupleDeleted}.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -293,20 +472,14 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         if (dbFile == null) return;
-        List<Page> dirtyPages = dbFile.deleteTuple(tid, t);
-        for (Page dirtyPage : dirtyPages) {
-            if (pageBuffer.containsKey(dirtyPage.getId())) {
-                dirtyPage.markDirty(true, tid);
-                lruNode dirtyNode = bufferPoolManager.pageIdlruNodeMap.get(dirtyPage.getId());
-                bufferPoolManager.moveToHead(dirtyNode);
-            } else {
-                dirtyPage.markDirty(true, tid);
-                if (bufferPoolManager.getSize() == numPages) { evictPage(); }
-                bufferPoolManager.put(new lruNode(dirtyPage));
-            }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.deleteEntry(tid, t));
         }
+        cacheDirtyPages(tid, dbFile.deleteTuple(tid, t));
+        TableStats.tupleDeleted(tid, tableId, t);
     }
 
     /**
@@ -317,10 +490,15 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
+        Set<HeapFile> heapFiles = new HashSet<>();
         for (Map.Entry<PageId, Page> entry : pageBuffer.entrySet()) {
             Page page = entry.getValue();
             flushPage(page.getId());
+            HeapFile hf = heapFileOf(page.getId());
+            if (hf != null) heapFiles.add(hf);
         }
+        for (HeapFile hf : heapFiles)
+            hf.flushFreeSpaceMap();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -338,6 +516,20 @@ public class BufferPool {
             lruNode deleteNode = bufferPoolManager.pageIdlruNodeMap.get(pid);
             bufferPoolManager.delete(deleteNode);
         }
+        noteWritten(pid);
+    }
+
+    /**
+     * Remove every cached page of a table from the buffer pool, such as when
+     * its file has been replaced on disk.
+     *
+     * @param tableId the table whose pages to discard
+     */
+    public synchronized void discardPages(int tableId) {
+        for (PageId pid : new ArrayList<>(pageBuffer.keySet())) {
+            if (pid.getTableId() == tableId)
+                discardPage(pid);
+        }
     }
 
     /**
@@ -362,6 +554,7 @@ public class BufferPool {
 
         dbFile.writePage(page);
         page.markDirty(false, null);
+        noteWritten(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
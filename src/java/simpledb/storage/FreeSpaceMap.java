@@ -0,0 +1,189 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap tracks which pages of a HeapFile may have an empty slot, so
+ * that an insert can go straight to such a page instead of scanning (and
+ * locking) every page of the file.
+ * <p>
+ * The map is a bitmap with one bit per page, kept in a side file next to the
+ * heap file (the heap file's name with a ".fsm" suffix). The side file holds
+ * an integer page count followed by the bitmap bytes. If the page count does
+ * not match the heap file, the map is rebuilt with every page marked as
+ * possibly having room.
+ * <p>
+ * A set bit is only a hint: callers must still check the page, and clear the
+ * bit when it turns out to be full. A clear bit means the page was full the
+ * last time it was looked at; it is set again when a tuple is deleted from
+ * the page or the page is read or written with an empty slot.
+ * <p>
+ * Updates only change the map in memory; the bytes they changed are written
+ * to the side file by {@link #flush}, which the BufferPool calls once per
+ * table when a transaction commits or aborts, rather than on every insert
+ * or delete. A map left unflushed by a crash is still a valid hint.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private final File file;
+    private final BitSet hasRoom;
+    private int numPages;
+    // no bit below this page number is set
+    private int searchFrom = 0;
+    // the pages whose bits changed since the last flush, inclusive; empty if dirtyTo < dirtyFrom
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    /**
+     * Load the free space map of a heap file, or build a new one if it is
+     * missing or out of date.
+     *
+     * @param heapFile the file backing the heap file
+     * @param numPages the current number of pages in the heap file
+     */
+    public FreeSpaceMap(File heapFile, int numPages) {
+        this.file = sideFile(heapFile);
+        this.numPages = numPages;
+        BitSet loaded = load(numPages);
+        if (loaded == null) {
+            loaded = new BitSet(numPages);
+            loaded.set(0, numPages);
+            hasRoom = loaded;
+            persistAll();
+        } else {
+            hasRoom = loaded;
+        }
+    }
+
+    /** Return the side file holding the free space map of a heap file */
+    public static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Throw away the free space map of a heap file; used when the heap file
+     * is rewritten from scratch.
+     */
+    public static void discard(File heapFile) {
+        sideFile(heapFile).delete();
+    }
+
+    private BitSet load(int expectedPages) {
+        if (!file.exists())
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 4 || raf.readInt() != expectedPages)
+                return null;
+            byte[] bits = new byte[(expectedPages + 7) / 8];
+            raf.readFully(bits);
+            BitSet loaded = BitSet.valueOf(bits);
+            loaded.clear(expectedPages, bits.length * 8);
+            return loaded;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of a page that may have an empty slot, or -1 if
+     *   every page is full
+     */
+    public synchronized int findPageWithRoom() {
+        int pgNo = hasRoom.nextSetBit(searchFrom);
+        searchFrom = pgNo == -1 ? numPages : pgNo;
+        return pgNo;
+    }
+
+    /**
+     * Record whether a page has an empty slot. Pages past the end of the map
+     * extend it.
+     *
+     * @param pgNo the page number
+     * @param room true if the page has at least one empty slot
+     */
+    public synchronized void update(int pgNo, boolean room) {
+        if (pgNo < numPages && hasRoom.get(pgNo) == room)
+            return;
+        hasRoom.set(pgNo, room);
+        if (room)
+            searchFrom = Math.min(searchFrom, pgNo);
+        if (pgNo >= numPages) {
+            // pages between the old end and pgNo are unknown; let inserts check them
+            hasRoom.set(numPages, pgNo);
+            searchFrom = Math.min(searchFrom, numPages);
+            numPages = pgNo + 1;
+        }
+        markDirty(pgNo, pgNo);
+    }
+
+    /**
+     * Record whether each page in a range has an empty slot.
+     *
+     * @param fromPgNo the first page number of the range
+     * @param toPgNo one past the last page number of the range
+     * @param room true if the pages have at least one empty slot
+     */
+    public synchronized void update(int fromPgNo, int toPgNo, boolean room) {
+        if (fromPgNo >= toPgNo)
+            return;
+        if (toPgNo > numPages) {
+            hasRoom.set(numPages, fromPgNo);
+            searchFrom = Math.min(searchFrom, numPages);
+            numPages = toPgNo;
+        }
+        hasRoom.set(fromPgNo, toPgNo, room);
+        if (room)
+            searchFrom = Math.min(searchFrom, fromPgNo);
+        markDirty(fromPgNo, toPgNo - 1);
+    }
+
+    private void markDirty(int fromPgNo, int toPgNo) {
+        dirtyFrom = Math.min(dirtyFrom, fromPgNo);
+        dirtyTo = Math.max(dirtyTo, toPgNo);
+    }
+
+    /**
+     * Write the bits changed since the last flush, and the page count, to
+     * the side file.
+     */
+    public synchronized void flush() {
+        if (dirtyTo < dirtyFrom)
+            return;
+        persist(dirtyFrom, dirtyTo);
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+    }
+
+    /** Write the page count and the bitmap bytes holding the bits of
+        pages fromPgNo to toPgNo inclusive */
+    private void persist(int fromPgNo, int toPgNo) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(numPages);
+            int fromByte = fromPgNo / 8;
+            int toByte = toPgNo / 8;
+            byte[] bits = Arrays.copyOf(hasRoom.get(fromByte * 8, toByte * 8 + 8).toByteArray(),
+                    toByte - fromByte + 1);
+            raf.seek(4 + fromByte);
+            raf.write(bits);
+        } catch (IOException e) {
+            // the map is only a hint; it is rebuilt if it cannot be read back
+            e.printStackTrace();
+        }
+    }
+
+    private void persistAll() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] bits = hasRoom.toByteArray();
+            raf.setLength(0);
+            raf.writeInt(numPages);
+            raf.write(bits);
+            raf.write(new byte[(numPages + 7) / 8 - bits.length]);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
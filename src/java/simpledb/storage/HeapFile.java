@@ -8,6 +8,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -28,6 +30,7 @@ public class HeapFile implements DbFile {
     final private int fileId;
     final private Lock deleteLock = new ReentrantLock(false);
     final private Lock insertLock = new ReentrantLock(false);
+    private FreeSpaceMap freeSpaceMap; // loaded on first insert or delete
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -87,6 +90,7 @@ public class HeapFile implements DbFile {
             randomAccessFile.readFully(data);
             HeapPage heapPage = new HeapPage((HeapPageId) pid, data);
             randomAccessFile.close();
+            noteFreeSpace(heapPage);
             return heapPage;
         } catch (FileNotFoundException exception) {
             exception.printStackTrace();
@@ -106,6 +110,55 @@ public class HeapFile implements DbFile {
         randomAccessFile.seek(offset);
         randomAccessFile.write(pageData);
         randomAccessFile.close();
+        noteFreeSpace((HeapPage) page);
+    }
+
+    /**
+     * Returns the free space map of this file, loading it on first use.
+     */
+    synchronized FreeSpaceMap freeSpaceMap() {
+        if (freeSpaceMap == null)
+            freeSpaceMap = new FreeSpaceMap(file, numPages());
+        return freeSpaceMap;
+    }
+
+    /**
+     * Write the changes to the free space map, if it is in use, to its side
+     * file. Called by the BufferPool when a transaction that locked pages of
+     * this file completes.
+     */
+    public void flushFreeSpaceMap() {
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = freeSpaceMap;
+        }
+        if (fsm != null)
+            fsm.flush();
+    }
+
+    /**
+     * Forget what the free space map learned from an aborted transaction's
+     * changes to a page, which are discarded: mark the page as possibly
+     * having room, for the next insert to check.
+     */
+    public void pageAborted(int pgNo) {
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = freeSpaceMap;
+        }
+        if (fsm != null)
+            fsm.update(pgNo, true);
+    }
+
+    // keep the free space map, if it is in use, in line with a page
+    // read from or written to disk
+    private void noteFreeSpace(HeapPage page) {
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = freeSpaceMap;
+        }
+        if (fsm != null)
+            fsm.update(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
     }
 
     /**
@@ -121,17 +174,94 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        for (int i = 0; i < this.numPages(); i++) {
-            PageId pid = new HeapPageId(getId(), i);
+        // go straight to a page the free space map says has room, and lock
+        // only that page; release pages that turn out to be full unless
+        // this transaction already held them
+        FreeSpaceMap fsm = freeSpaceMap();
+        for (int pgNo = fsm.findPageWithRoom(); pgNo != -1; pgNo = fsm.findPageWithRoom()) {
+            PageId pid = new HeapPageId(getId(), pgNo);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
             HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (heapPage.getNumEmptySlots() == 0) continue;
+            if (heapPage.getNumEmptySlots() > 0) {
+                heapPage.insertTuple(t);
+                fsm.update(pgNo, heapPage.getNumEmptySlots() > 0);
+                return new ArrayList<Page>(){{add(heapPage);}};
+            }
+            fsm.update(pgNo, false);
+            if (!held) Database.getBufferPool().unsafeReleasePage(tid, pid);
+        }
+        insertLock.lock();
+        try {
+            HeapPage heapPage = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
             heapPage.insertTuple(t);
+            writePage(heapPage);
             return new ArrayList<Page>(){{add(heapPage);}};
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * Bulk load tuples into fresh pages appended to the end of this file.
+     * The pages are packed full in memory, logged as full-page UPDATE
+     * records whose before image is an empty page (so the load can be rolled
+     * back), and then written with a single contiguous write. They bypass the
+     * buffer pool, so unlike other changes they reach disk before the
+     * transaction commits: the transaction holds an exclusive lock on each of
+     * them, the BufferPool writes the empty pages back if it aborts, and
+     * recovery undoes the logged writes after a crash.
+     *
+     * @param tid the transaction doing the load
+     * @param tuples the tuples to add
+     * @return the pages that were appended
+     */
+    public List<Page> bulkInsert(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> pages = new ArrayList<>();
+        if (tuples.isEmpty()) return pages;
+        insertLock.lock();
+        try {
+            int firstPgNo = numPages();
+            HeapPage page = null;
+            int emptySlots = 0;
+            for (Tuple t : tuples) {
+                if (emptySlots == 0) {
+                    HeapPageId pid = new HeapPageId(getId(), firstPgNo + pages.size());
+                    Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+                    page = new HeapPage(pid, HeapPage.createEmptyPageData());
+                    emptySlots = page.getNumEmptySlots();
+                    pages.add(page);
+                }
+                page.insertTuple(t);
+                emptySlots--;
+            }
+
+            int pageSize = BufferPool.getPageSize();
+            ByteBuffer data = ByteBuffer.allocate(pages.size() * pageSize);
+            for (Page p : pages) {
+                // the before image of a fresh page is the empty page
+                Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                data.put(p.getPageData());
+            }
+            Database.getLogFile().force();
+            data.flip();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = raf.getChannel();
+                long offset = (long) firstPgNo * pageSize;
+                while (data.hasRemaining()) {
+                    offset += channel.write(data, offset);
+                }
+            }
+
+            Database.getBufferPool().noteUncachedWrites(tid, pages);
+
+            int lastPgNo = firstPgNo + pages.size() - 1;
+            freeSpaceMap().update(firstPgNo, lastPgNo, false);
+            freeSpaceMap().update(lastPgNo, emptySlots > 0);
+            return pages;
+        } finally {
+            insertLock.unlock();
         }
-        HeapPage heapPage = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
-        heapPage.insertTuple(t);
-        writePage(heapPage);
-        return new ArrayList<Page>(){{add(heapPage);}};
     }
 
     // see DbFile.java for javadocs
@@ -143,6 +273,7 @@ public class HeapFile implements DbFile {
         if (heapPageId.getTableId() != getId()) throw new DbException("the tuple cannot be deleted or is not a member of the file");
         HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
         heapPage.deleteTuple(t);
+        freeSpaceMap().update(heapPageId.getPageNumber(), true);
         return new ArrayList<Page>(){{add(heapPage);}};
     }
 
@@ -157,7 +288,7 @@ public class HeapFile implements DbFile {
             private Iterator<Tuple> fetchPage(int pgNo) throws TransactionAbortedException, DbException {
                 int tableId = getId();
                 PageId heapPageId = new HeapPageId(tableId, pgNo);
-                Page page = Database.getBufferPool().getPage(new TransactionId(), heapPageId, Permissions.READ_ONLY);
+                Page page = Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
                 return ((HeapPage) page).iterator();
             }
 
@@ -1,11 +1,17 @@
 package simpledb.storage;
 
+import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -17,6 +23,9 @@ import java.util.List;
 
 public class HeapFileEncoder {
 
+  /** Number of tuples handed to BufferPool.bulkInsertTuples at a time by load(). */
+  static final int LOAD_BATCH_SIZE = 8192;
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -108,6 +117,7 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    FreeSpaceMap.discard(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char[] buf = new char[1024];
@@ -224,4 +234,64 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Load the specified delimited text file into a live table on behalf of
+   * a transaction. <br>
+   * Rows have the same format as for convert(), with one field per column of
+   * the table. Rather than writing a new file, the parsed tuples are appended
+   * to the table in batches with BufferPool.bulkInsertTuples(), so the load is logged
+   * and locked like any other write and is undone if the transaction aborts.
+   * The table's secondary indexes are updated with the new tuples, and its
+   * statistics, if any, once the transaction commits.
+   *
+   * @see BufferPool#bulkInsertTuples
+   * @param tid The transaction doing the load
+   * @param inFile The input file to read data from
+   * @param hf The table to load the data into
+   * @param fieldSeparator The character separating fields on a line
+   * @return the number of tuples loaded
+   * @throws IOException if the input file can't be read or a malformed
+   *   input line is encountered
+   */
+  public static int load(TransactionId tid, File inFile, HeapFile hf, char fieldSeparator)
+      throws IOException, DbException, TransactionAbortedException {
+      TupleDesc td = hf.getTupleDesc();
+      int count = 0;
+      List<Tuple> batch = new ArrayList<>();
+      try (BufferedReader br = new BufferedReader(new FileReader(inFile))) {
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.trim().isEmpty())
+                  continue;
+              String[] values = line.split(Pattern.quote(String.valueOf(fieldSeparator)), -1);
+              if (values.length != td.numFields())
+                  throw new IOException("BAD LINE : " + line);
+              Tuple t = new Tuple(td);
+              for (int i = 0; i < values.length; i++) {
+                  String v = values[i].trim();
+                  if (td.getFieldType(i) == Type.INT_TYPE) {
+                      try {
+                          t.setField(i, new IntField(Integer.parseInt(v)));
+                      } catch (NumberFormatException e) {
+                          throw new IOException("BAD LINE : " + line);
+                      }
+                  } else {
+                      t.setField(i, new StringField(v, Type.STRING_LEN));
+                  }
+              }
+              batch.add(t);
+              if (batch.size() == LOAD_BATCH_SIZE) {
+                  count += loadBatch(tid, hf, batch);
+                  batch = new ArrayList<>();
+              }
+          }
+      }
+      return count + loadBatch(tid, hf, batch);
+  }
+
+  private static int loadBatch(TransactionId tid, HeapFile hf, List<Tuple> batch)
+      throws IOException, DbException, TransactionAbortedException {
+      Database.getBufferPool().bulkInsertTuples(tid, hf.getId(), batch);
+      return batch.size();
+  }
 }
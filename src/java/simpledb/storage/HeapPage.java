@@ -275,7 +275,9 @@ public class HeapPage implements Page {
         TupleDesc tupleDesc = t.getTupleDesc();
         if (getNumEmptySlots() == 0) throw new DbException("This page is full");
         if (!td.equals(tupleDesc)) throw new DbException("TupleDesc is mismatch");
-        int index = numSlots - getNumEmptySlots();
+        int byteIndex = 0;
+        while (header[byteIndex] == (byte) 0xFF) byteIndex++;
+        int index = byteIndex * 8 + Integer.numberOfTrailingZeros(~header[byteIndex]);
         this.tuples[index] = t;
         t.setRecordId(new RecordId(this.pid, index));
         markSlotUsed(index, true);
@@ -306,11 +308,12 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int res = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) res++;
+        // bits past numSlots in the last header byte are never set
+        int used = 0;
+        for (byte b : header) {
+            used += Integer.bitCount(b & 0xFF);
         }
-        return res;
+        return numSlots - used;
     }
 
     /**;
@@ -339,6 +342,13 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        return i < numSlots && isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
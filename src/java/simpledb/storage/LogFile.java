@@ -1,4 +1,3 @@
-
 package simpledb.storage;
 
 import simpledb.common.Database;
@@ -6,9 +5,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
-import java.nio.file.Path;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -40,21 +37,33 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is split into fixed-size segment files named after the
+log file with a numeric suffix (log.00000000, log.00000001, ...).  A
+log sequence number (LSN) is a position in the logical log: segment
+number * segment size + offset within the segment.  LSNs are never
+reused, so offsets recorded in the log stay valid after truncation.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Segments are preallocated (zero filled) when they are created.
+A log record never spans two segments; if a record does not fit in the
+space left in the current segment, the rest of the segment is left
+zeroed and the record is written at the start of the next one.  A zero
+record type therefore marks the end of the data in a segment.
+
+<li> The log file itself only holds a long integer: the LSN of the
+last written checkpoint, or -1 if there are no checkpoints
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer LSN of the previous record written
+by the same transaction, or -1 if there is none.  Following these
+pointers from a transaction's last record visits only its own records,
+newest first, which is how rollback and recovery undo a transaction.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
@@ -62,22 +71,32 @@ CHECKPOINT
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is a page-type byte (see PageCodecs), an
+integer table id, an integer page number, and the length-prefixed page
+data.  Images can be accessed with the LogFile.readPageData() and
+LogFile.writePageData() methods.  See LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
+as a long integer transaction id and a long integer first record LSN
 for each active transaction.
 
 </ul>
+
+<p> Truncation never rewrites records: every segment that lies entirely
+before the oldest LSN still needed for recovery is simply deleted.
 */
 public class LogFile {
 
+    /** Default size in bytes of a log segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile raf; // holds the checkpoint LSN
+    private final int segmentSize;
+    // open segment files, keyed by segment number; protected by this
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<>();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,15 +105,18 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = INT_SIZE + LONG_SIZE + LONG_SIZE; // type, tid, prev LSN
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by this; LSN of the next record
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,7 +130,16 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name; segments are stored next to it
+        @param segmentSize The size in bytes of each log segment
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
+        this.segmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
@@ -130,18 +161,166 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
+            for (Long segNo : listSegments()) {
+                closeSegment(segNo);
+                segmentFile(segNo).delete();
+            }
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            currentOffset = 0;
+            openSegment(0L, true);
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Return the file backing the given segment number */
+    File segmentFile(long segNo) {
+        return new File(logFile.getAbsoluteFile().getParentFile(),
+                logFile.getName() + "." + String.format("%08d", segNo));
+    }
+
+    /** Return the numbers of all segment files on disk, in ascending order */
+    private List<Long> listSegments() {
+        List<Long> segNos = new ArrayList<>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null)
+            return segNos;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix))
+                continue;
+            String suffix = name.substring(prefix.length());
+            if (suffix.isEmpty() || !suffix.chars().allMatch(Character::isDigit))
+                continue;
+            segNos.add(Long.parseLong(suffix));
+        }
+        Collections.sort(segNos);
+        return segNos;
+    }
+
+    /** Open the given segment.  When create is set and the segment does
+        not exist yet, it is created and preallocated, as is the segment
+        following it so that rolling over to it does not stall the writer.
+        @return the segment's file, or null if it does not exist
+    */
+    private RandomAccessFile openSegment(long segNo, boolean create) throws IOException {
+        RandomAccessFile seg = segments.get(segNo);
+        if (seg != null)
+            return seg;
+        File f = segmentFile(segNo);
+        if (!f.exists() && !create)
+            return null;
+        boolean fresh = !f.exists();
+        seg = new RandomAccessFile(f, "rw");
+        segments.put(segNo, seg);
+        if (fresh)
+            preallocate(seg);
+        File next = segmentFile(segNo + 1);
+        if (create && !next.exists()) {
+            RandomAccessFile nextSeg = new RandomAccessFile(next, "rw");
+            segments.put(segNo + 1, nextSeg);
+            preallocate(nextSeg);
+        }
+        return seg;
+    }
+
+    private void preallocate(RandomAccessFile seg) throws IOException {
+        byte[] zeros = new byte[Math.min(segmentSize, 1 << 16)];
+        seg.seek(0);
+        for (int written = 0; written < segmentSize; written += zeros.length) {
+            seg.write(zeros, 0, Math.min(zeros.length, segmentSize - written));
+        }
+    }
+
+    private void closeSegment(long segNo) throws IOException {
+        RandomAccessFile seg = segments.remove(segNo);
+        if (seg != null)
+            seg.close();
+    }
+
+    /** Position the segment holding the given LSN at that LSN.
+        @return the segment's file, or null if the segment does not exist
+    */
+    private RandomAccessFile seek(long lsn) throws IOException {
+        RandomAccessFile seg = openSegment(lsn / segmentSize, false);
+        if (seg != null)
+            seg.seek(lsn % segmentSize);
+        return seg;
+    }
+
+    /** Return the LSN matching the file pointer of a segment
+        previously positioned with seek(lsn) */
+    private long lsnOf(long lsn, RandomAccessFile seg) throws IOException {
+        return (lsn / segmentSize) * segmentSize + seg.getFilePointer();
+    }
+
+    /** Return true if no record starts at the given LSN, because the
+        remainder of its segment is unused */
+    private boolean atSegmentTail(long lsn) throws IOException {
+        if (segmentSize - lsn % segmentSize < INT_SIZE)
+            return true;
+        RandomAccessFile seg = seek(lsn);
+        return seg == null || seg.readInt() == 0;
+    }
+
+    private long nextSegmentStart(long lsn) {
+        return (lsn / segmentSize + 1) * segmentSize;
+    }
+
+    /** Append a log record at the end of the log, rolling over to the next
+        segment if the record does not fit in the current one.  The LSN
+        of the record is written after the body.
+        @return the LSN of the record
+    */
+    private long append(ByteArrayOutputStream body) throws IOException {
+        int size = body.size() + LONG_SIZE;
+        if (size > segmentSize)
+            throw new IOException("log record of " + size + " bytes does not fit in a log segment");
+        if (currentOffset % segmentSize + size > segmentSize) {
+            openSegment(currentOffset / segmentSize, true).getChannel().force(true);
+            currentOffset = nextSegmentStart(currentOffset);
+        }
+        long lsn = currentOffset;
+        RandomAccessFile seg = openSegment(lsn / segmentSize, true);
+        seg.seek(lsn % segmentSize);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(lsn);
+        out.flush();
+        seg.write(body.toByteArray());
+        currentOffset = lsn + size;
+        return lsn;
+    }
+
+    /** Write the header of a record for the given transaction: its type,
+        tid and the LSN of the transaction's previous record */
+    private DataOutputStream startRecord(ByteArrayOutputStream body, int type, long tid) throws IOException {
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(type);
+        out.writeLong(tid);
+        out.writeLong(tidToLastLogRecord.getOrDefault(tid, NO_PREV_LSN));
+        return out;
+    }
+
+    /** Append a transaction's record and make it the head of the
+        transaction's undo chain */
+    private long appendForTransaction(long tid, ByteArrayOutputStream body) throws IOException {
+        long lsn = append(body);
+        tidToLastLogRecord.put(tid, lsn);
+        return lsn;
+    }
+
+    /** Append a record that has no data beyond its header */
+    private long appendSimple(int type, long tid) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(HEADER_SIZE + LONG_SIZE);
+        startRecord(body, type, tid);
+        return appendForTransaction(tid, body);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,15 +337,13 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendSimple(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -181,12 +358,10 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendSimple(COMMIT_RECORD, tid.getId());
         force();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -200,93 +375,64 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           previous LSN of this transaction
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = startRecord(body, UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        appendForTransaction(tid.getId(), body);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
+        // page type (see PageCodecs)
+        // table id
+        // page number
+        // page data length
+        // page data
+
+        raf.writeByte(PageCodecs.typeOf(p));
+        raf.writeInt(pid.getTableId());
+        raf.writeInt(pid.getPageNumber());
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        //        Debug.log ("WROTE PAGE DATA, TYPE = " + PageCodecs.typeOf(p) + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        byte pageType = raf.readByte();
+        int tableId = raf.readInt();
+        int pgNo = raf.readInt();
+        int pageSize = raf.readInt();
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+        //            Debug.log("READ PAGE OF TYPE " + pageType + ", table = " + tableId + ", page = " + pgNo);
+        return PageCodecs.decode(pageType, tableId, pgNo, pageData);
+    }
 
+    /** Skip over page data written by writePageData without decoding it */
+    void skipPageData(RandomAccessFile raf) throws IOException {
+        raf.skipBytes(1 + INT_SIZE + INT_SIZE);
+        int pageSize = raf.readInt();
+        raf.skipBytes(pageSize);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -301,11 +447,8 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendSimple(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -315,35 +458,36 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(body);
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
+                out.writeLong(NO_PREV_LSN);
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
+                long startCpOffset = append(body);
+                force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                //once the CP is written, make sure the CP location in
+                // the log file is updated
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                raf.getChannel().force(true);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -351,99 +495,62 @@ public class LogFile {
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
+    /** Return the oldest LSN needed for recovery: the last checkpoint or
+        the first record of a transaction active at that checkpoint,
+        whichever comes first.  Returns -1 if there is no checkpoint. */
+    private long recoveryHorizon() throws IOException {
         raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = raf.length() < LONG_SIZE ? NO_CHECKPOINT_ID : raf.readLong();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            RandomAccessFile seg = seek(cpLoc);
+            if (seg == null)
+                throw new IOException("Checkpoint pointer points to a missing log segment");
+            int cpType = seg.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = seg.readLong();
+            seg.readLong(); // prev LSN
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = seg.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = seg.readLong();
+                long firstLogRecord = seg.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
         }
+        return minLogRecord;
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Whole segments older than the recovery horizon are
+        deleted; surviving records are left in place. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        long minLogRecord = recoveryHorizon();
+        if (minLogRecord == NO_CHECKPOINT_ID)
+            return;
+
+        // we can drop every segment that ends at or before minLogRecord
+        long tailSegment = currentOffset / segmentSize;
+        long firstKept = Math.min(minLogRecord / segmentSize, tailSegment);
+        for (Long segNo : listSegments()) {
+            if (segNo >= firstKept)
                 break;
-            }
+            closeSegment(segNo);
+            segmentFile(segNo).delete();
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        Debug.log("TRUNCATING LOG; NEW START : " + firstKept * segmentSize + " END: " + currentOffset);
         //print();
     }
 
@@ -462,28 +569,70 @@ public class LogFile {
                 preAppend();
                 // some code goes here
 
-                // step 1 : read the log file, find all update
-                // records associated with the aborting transaction
-                // Use raf.seek() to move around in the log file, and raf.readInt()
-                Long offset = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(offset);
-
-                // step 2 : discard any page from the buffer pool
-                // whose before-image you write back to the table file.
-                while (raf.getFilePointer() < raf.length()) {
-                    int type = raf.readInt();
+                // walk the transaction's undo chain from its last record,
+                // writing back the before image of each update and
+                // discarding any page from the buffer pool whose
+                // before-image you write back to the table file.
+                Long lsn = tidToLastLogRecord.get(tid.getId());
+                if (lsn == null)
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                while (lsn != NO_PREV_LSN) {
+                    RandomAccessFile seg = seek(lsn);
+                    int type = seg.readInt();
+                    seg.readLong();
+                    long prev = seg.readLong();
                     if (type == UPDATE_RECORD) {
-                        long txId = raf.readLong();
-                        Page before = this.readPageData(raf);
+                        Page before = this.readPageData(seg);
                         Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
                         Database.getBufferPool().discardPage(before.getId());
-                        tidToFirstLogRecord.remove(tid.getId());
                     }
+                    lsn = prev;
                 }
+            }
+        }
+    }
+
+    /** Skip the remainder of a record whose header has just been
+        read from seg, which was positioned at lsn.
+        @return the LSN following the record
+    */
+    private long skipRecord(long lsn, int type, RandomAccessFile seg) throws IOException {
+        switch (type) {
+            case UPDATE_RECORD:
+                skipPageData(seg);
+                skipPageData(seg);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = seg.readInt();
+                seg.skipBytes(numXactions * 2 * LONG_SIZE);
+                break;
+            case ABORT_RECORD: case COMMIT_RECORD: case BEGIN_RECORD:
+                break;
+            default:
+                throw new IOException("unknown log record type " + type + " at " + lsn);
+        }
+        seg.readLong();
+        return lsnOf(lsn, seg);
+    }
 
-                raf.seek(currentOffset);
+    /** Return the LSN following the last record in the log, found by
+        scanning the newest segment that holds any data. */
+    private long findLogEnd() throws IOException {
+        List<Long> segNos = listSegments();
+        for (int i = segNos.size() - 1; i >= 0; i--) {
+            long lsn = segNos.get(i) * segmentSize;
+            if (atSegmentTail(lsn) && i > 0)
+                continue;
+            while (!atSegmentTail(lsn)) {
+                RandomAccessFile seg = seek(lsn);
+                int type = seg.readInt();
+                seg.readLong();
+                seg.readLong();
+                lsn = skipRecord(lsn, type, seg);
             }
+            return lsn;
         }
+        return 0;
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -493,6 +642,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            for (Long segNo : new ArrayList<>(segments.keySet()))
+                closeSegment(segNo);
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -510,139 +661,156 @@ public class LogFile {
                 recoveryUndecided = false;
                 // some code goes here
 
-                // The first long integer of the file represents the offset of the
-                // last written checkpoint, or -1 if there are no checkpoints
-                raf.seek(0);
-                long offsetOfCheckpoint = raf.readLong();
-                if (offsetOfCheckpoint != NO_CHECKPOINT_ID) {
-                    raf.seek(offsetOfCheckpoint);
-                    // Each log record begins with an integer type and a long integer
-                    // transaction id.
-                    int type = raf.readInt();
-                    if (type != CHECKPOINT_RECORD) {
-                        throw new IOException("record type mismatch");
-                    }
-                    raf.readLong();
-                    // CHECKPOINT records consist of active transactions at the time
-                    // the checkpoint was taken and their first log record on disk.  The format
-                    // of the record is an integer count of the number of transactions, as well
-                    // as a long integer transaction id and a long integer first record offset
-                    // for each active transaction.
-                    int numberOfTrx = raf.readInt();
-                    for (int i = 0; i < numberOfTrx; i++) {
-                        Long trxId = raf.readLong();
-                        Long offset = raf.readLong();
-                        tidToFirstLogRecord.put(trxId, offset);
-                    }
-                    raf.readLong();
+                List<Long> segNos = listSegments();
+                if (segNos.isEmpty()) {
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = 0;
+                    openSegment(0L, true);
+                    return;
                 }
-                raf.seek(logFile.length());
-                Set<Long> completedTransactions = new HashSet<Long>();
-                for (Long offset = raf.length(); offset > LONG_SIZE; ) {
-                    raf.seek(offset - LONG_SIZE);
-                    offset = raf.readLong();
-                    raf.seek(offset);
-                    int recordType = raf.readInt();
-                    Long trxId = raf.readLong();
+                currentOffset = findLogEnd();
+
+                // analysis: scan forward from the recovery horizon, noting
+                // the last record of every transaction that did not finish
+                long start = recoveryHorizon();
+                if (start == NO_CHECKPOINT_ID)
+                    start = segNos.get(0) * segmentSize;
+                Map<Long, Long> lastRecord = new HashMap<>();
+                for (long lsn = start; lsn < currentOffset; ) {
+                    if (atSegmentTail(lsn)) {
+                        lsn = nextSegmentStart(lsn);
+                        continue;
+                    }
+                    RandomAccessFile seg = seek(lsn);
+                    int recordType = seg.readInt();
+                    long trxId = seg.readLong();
+                    seg.readLong();
                     switch (recordType) {
                         case COMMIT_RECORD: case ABORT_RECORD:
-                            completedTransactions.add(trxId);
+                            lastRecord.remove(trxId);
                             break;
-                        case BEGIN_RECORD: case CHECKPOINT_RECORD: break;
-                        case UPDATE_RECORD:
-                            if (!completedTransactions.contains(trxId)) {
-                                Page before = readPageData(raf);
-                                Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                            }
+                        case BEGIN_RECORD: case UPDATE_RECORD:
+                            lastRecord.put(trxId, lsn);
                             break;
-                        default:
-                            throw new IOException();
                     }
-                    raf.seek(raf.length());
-                    currentOffset = raf.length();
+                    lsn = skipRecord(lsn, recordType, seg);
+                }
+
+                // undo: follow the undo chains of the unfinished
+                // transactions, restoring before images newest first
+                TreeMap<Long, Long> toUndo = new TreeMap<>();
+                for (Map.Entry<Long, Long> e : lastRecord.entrySet())
+                    toUndo.put(e.getValue(), e.getKey());
+                while (!toUndo.isEmpty()) {
+                    Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+                    RandomAccessFile seg = seek(next.getKey());
+                    int recordType = seg.readInt();
+                    seg.readLong();
+                    long prev = seg.readLong();
+                    if (recordType == UPDATE_RECORD) {
+                        Page before = readPageData(seg);
+                        Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                    }
+                    if (prev != NO_PREV_LSN)
+                        toUndo.put(prev, next.getValue());
                 }
+
+                // log an abort for each rolled back transaction so a later
+                // recovery does not undo it again
+                tidToLastLogRecord.clear();
+                tidToLastLogRecord.putAll(lastRecord);
+                for (Long trxId : lastRecord.keySet())
+                    appendSimple(ABORT_RECORD, trxId);
+                tidToLastLogRecord.clear();
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
+    public synchronized void print() throws IOException {
         raf.seek(0);
 
         System.out.println("0: checkpoint record at offset " + raf.readLong());
 
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+        List<Long> segNos = listSegments();
+        long end = recoveryUndecided ? findLogEnd() : currentOffset;
+        for (long lsn = segNos.isEmpty() ? end : segNos.get(0) * segmentSize; lsn < end; ) {
+            if (atSegmentTail(lsn)) {
+                lsn = nextSegmentStart(lsn);
+                System.out.println(lsn + ": SEGMENT " + (lsn / segmentSize));
+                continue;
+            }
+            RandomAccessFile seg = seek(lsn);
+            int cpType = seg.readInt();
+            long cpTid = seg.readLong();
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+            long prevLsn = seg.readLong();
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+            System.out.println(lsn + ": RECORD TYPE " + cpType);
+            System.out.println((lsn + INT_SIZE) + ": TID " + cpTid);
+            System.out.println((lsn + INT_SIZE + LONG_SIZE) + ": PREVIOUS RECORD OF TID " + prevLsn);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+            switch (cpType) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
+
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                int numTransactions = seg.readInt();
+                System.out.println((lsnOf(lsn, seg) - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                while (numTransactions-- > 0) {
+                    long tid = seg.readLong();
+                    long firstRecord = seg.readLong();
+                    System.out.println((lsnOf(lsn, seg) - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                    System.out.println((lsnOf(lsn, seg) - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                }
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                long start = lsnOf(lsn, seg);
+                Page before = readPageData(seg);
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                long middle = lsnOf(lsn, seg);
+                Page after = readPageData(seg);
 
-                    break;
-                }
+                System.out.println(start + ": before image type " + PageCodecs.typeOf(before));
+                System.out.println((start + 1) + ": before image table id " + before.getId().getTableId());
+                System.out.println((start + 1 + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
+                System.out.println((start + 1 + 3 * INT_SIZE) + " TO " + middle + ": page data");
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
+                System.out.println(middle + ": after image type " + PageCodecs.typeOf(after));
+                System.out.println((middle + 1) + ": after image table id " + after.getId().getTableId());
+                System.out.println((middle + 1 + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
+                System.out.println((middle + 1 + 3 * INT_SIZE) + " TO " + lsnOf(lsn, seg) + ": page data");
                 break;
+            default:
+                throw new IOException("unknown log record type " + cpType + " at " + lsn);
             }
+            System.out.println(lsnOf(lsn, seg) + ": RECORD START OFFSET: " + seg.readLong());
+            lsn = lsnOf(lsn, seg);
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (currentOffset <= 0)
+            return;
+        // the last record ends in the segment holding currentOffset - 1
+        RandomAccessFile seg = segments.get((currentOffset - 1) / segmentSize);
+        if (seg != null)
+            seg.getChannel().force(true);
     }
 
 }
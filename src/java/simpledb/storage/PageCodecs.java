@@ -0,0 +1,96 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageCodecs maps each kind of Page to a small page-type byte and knows how
+ * to rebuild a page of that kind from its table id, page number and page
+ * data. The log stores the page-type byte in place of class names, so
+ * decoding a logged page is a table lookup and a direct constructor call.
+ *
+ * @see LogFile
+ */
+public class PageCodecs {
+
+    public static final byte HEAP_PAGE = 1;
+    public static final byte BTREE_LEAF_PAGE = 2;
+    public static final byte BTREE_INTERNAL_PAGE = 3;
+    public static final byte BTREE_HEADER_PAGE = 4;
+    public static final byte BTREE_ROOT_PTR_PAGE = 5;
+
+    /** Rebuilds a page of one kind from its serialized form. */
+    public interface PageCodec {
+        Page decode(int tableId, int pgNo, byte[] data) throws IOException;
+    }
+
+    private static final PageCodec[] codecs = new PageCodec[Byte.MAX_VALUE + 1];
+    private static final Map<Class<? extends Page>, Byte> types = new HashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class,
+                (tableId, pgNo, data) -> new HeapPage(new HeapPageId(tableId, pgNo), data));
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (tableId, pgNo, data) -> new BTreeLeafPage(
+                        new BTreePageId(tableId, pgNo, BTreePageId.LEAF), data, keyField(tableId)));
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (tableId, pgNo, data) -> new BTreeInternalPage(
+                        new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL), data, keyField(tableId)));
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (tableId, pgNo, data) -> new BTreeHeaderPage(
+                        new BTreePageId(tableId, pgNo, BTreePageId.HEADER), data));
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (tableId, pgNo, data) -> new BTreeRootPtrPage(
+                        new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR), data));
+    }
+
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    /**
+     * Register the codec for a kind of page.
+     *
+     * @param type the page-type byte written to the log; must be positive and unused
+     * @param pageClass the page class encoded with this type
+     * @param codec rebuilds pages of this type
+     */
+    public static synchronized void register(byte type, Class<? extends Page> pageClass, PageCodec codec) {
+        if (type <= 0 || codecs[type] != null)
+            throw new IllegalArgumentException("page type " + type + " is invalid or already registered");
+        codecs[type] = codec;
+        types.put(pageClass, type);
+    }
+
+    /**
+     * @return the page-type byte of the given page
+     * @throws IllegalArgumentException if the page's class has no codec
+     */
+    public static byte typeOf(Page p) {
+        Byte type = types.get(p.getClass());
+        if (type == null)
+            throw new IllegalArgumentException("no page codec registered for " + p.getClass().getName());
+        return type;
+    }
+
+    /**
+     * Rebuild a page from its page-type byte, id and data.
+     *
+     * @throws IOException if the type is unknown or the data is malformed
+     */
+    public static Page decode(byte type, int tableId, int pgNo, byte[] data) throws IOException {
+        PageCodec codec = type > 0 ? codecs[type] : null;
+        if (codec == null)
+            throw new IOException("unknown page type " + type);
+        return codec.decode(tableId, pgNo, data);
+    }
+}
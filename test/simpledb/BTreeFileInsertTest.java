@@ -176,6 +176,45 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testDescentReleasesStructureLatches() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrId, simpledb.common.Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.getBufferPool().transactionComplete(tid);
+
+		// a reader keeps its lock on the leaf it read, but none on the way down
+		int smallest = Integer.MAX_VALUE;
+		for (List<Integer> t : tuples)
+			smallest = Math.min(smallest, t.get(0));
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.indexIterator(reader,
+				new simpledb.execution.IndexPredicate(Op.EQUALS, new IntField(smallest)));
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple found = it.next();
+		it.close();
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(reader, found.getRecordId().getPageId()));
+
+		// so a writer at the other end of the tree can split leaves, changing the
+		// root the reader went through, while the reader is still running
+		TransactionId writer = new TransactionId();
+		for (int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(writer, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] { BTreeUtility.MAX_RAND_VALUE + i, i }));
+		}
+		assertTrue(Database.getBufferPool().holdsLock(writer, rootId));
+		BTreeChecker.checkRep(bf, writer, new HashMap<>(), false);
+		Database.getBufferPool().transactionComplete(writer);
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
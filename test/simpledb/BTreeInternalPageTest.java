@@ -174,6 +174,27 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		assertEquals(first.getLeftChild(), page.findChildId(null));
+
+		BTreeEntry e = first;
+		while (true) {
+			int key = ((IntField) e.getKey()).getValue();
+			assertEquals(e.getLeftChild(), page.findChildId(new IntField(key - 1)));
+			assertEquals(e.getLeftChild(), page.findChildId(new IntField(key)));
+			if (!it.hasNext())
+				break;
+			e = it.next();
+		}
+		assertEquals(e.getRightChild(), page.findChildId(new IntField(Integer.MAX_VALUE)));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
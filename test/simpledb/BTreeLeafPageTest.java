@@ -196,6 +196,33 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		List<Integer> keys = new ArrayList<>();
+		for (int[] tuple : EXAMPLE_VALUES)
+			keys.add(tuple[0]);
+		Collections.sort(keys);
+
+		for (int key : keys) {
+			for (int probe = key - 1; probe <= key + 1; probe++) {
+				List<Integer> expected = new ArrayList<>();
+				for (int k : keys)
+					if (k >= probe)
+						expected.add(k);
+
+				List<Integer> actual = new ArrayList<>();
+				Iterator<Tuple> it = page.iterator(new IntField(probe));
+				while (it.hasNext())
+					actual.add(((IntField) it.next().getField(0)).getValue());
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -80,6 +80,27 @@ public class CatalogTest extends SimpleDbTestBase {
     /**
      * Check that duplicate names are handled correctly
      */
+    /**
+     * Unit test for Catalog.addColumnGroup() and Catalog.getColumnGroups()
+     */
+    @Test public void columnGroups() {
+        assertEquals(0, Database.getCatalog().getColumnGroups(id1).size());
+        Database.getCatalog().addColumnGroup(id1, 1, 0);
+        Database.getCatalog().addColumnGroup(id1, 0, 1);
+        assertEquals(1, Database.getCatalog().getColumnGroups(id1).size());
+        Assert.assertArrayEquals(new int[] { 0, 1 }, Database.getCatalog().getColumnGroups(id1).get(0));
+        assertEquals(0, Database.getCatalog().getColumnGroups(id2).size());
+
+        for (int[] fields : new int[][] { { 0 }, { 0, 0 }, { 0, 2 } }) {
+            try {
+                Database.getCatalog().addColumnGroup(id1, fields);
+                Assert.fail("Should not accept column group " + java.util.Arrays.toString(fields));
+            } catch (IllegalArgumentException e) {
+                // Expected to get here
+            }
+        }
+    }
+
     @Test public void handleDuplicateNames() {
     	int id3 = r.nextInt();
     	Database.getCatalog().addTable(new SkeletonFile(id3, Utility.getTupleDesc(2)), name);
@@ -12,7 +12,9 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +52,86 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.addTuple() reusing a slot freed by deleteTuple()
+     */
+    @Test public void addTupleReusesFreedSlot() throws Exception {
+        // fill two pages
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 1008; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+
+        // the slot freed on the first page should be reused
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(first.getRecordId(), t.getRecordId());
+
+        // and once committed, the persisted free space map knows both pages are full
+        Database.getBufferPool().transactionComplete(tid);
+        FreeSpaceMap fsm = new FreeSpaceMap(empty.getFile(), empty.numPages());
+        assertEquals(-1, fsm.findPageWithRoom());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkInsert()
+     */
+    @Test public void bulkInsert() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 1100; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+
+        // 1100 tuples need three fresh pages after the existing empty one
+        List<Page> pages = empty.bulkInsert(tid, tuples);
+        assertEquals(3, pages.size());
+        assertEquals(4, empty.numPages());
+        assertEquals(new HeapPageId(empty.getId(), 1), tuples.get(0).getRecordId().getPageId());
+        assertEquals(new HeapPageId(empty.getId(), 3), tuples.get(1099).getRecordId().getPageId());
+        HeapPage last = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 3));
+        assertEquals(3 * 504 - 1100, last.getNumEmptySlots());
+
+        // regular inserts still fill the empty first page
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(new HeapPageId(empty.getId(), 0), t.getRecordId().getPageId());
+    }
+
+    /**
+     * Aborting a bulk insert removes its rows from disk
+     */
+    @Test public void bulkInsertAbort() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 1100; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        empty.bulkInsert(tid, tuples);
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        for (int pgNo = 1; pgNo < empty.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+            assertEquals(504, page.getNumEmptySlots());
+        }
+        TransactionId tid2 = new TransactionId();
+        DbFileIterator it = empty.iterator(tid2);
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+
+        // and once the first page is full, regular inserts reuse the emptied pages
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid2, Utility.getHeapTuple(i, 2));
+        }
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid2, t);
+        assertEquals(new HeapPageId(empty.getId(), 1), t.getRecordId().getPageId());
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -0,0 +1,58 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.optimizer.HyperLogLog;
+
+public class HyperLogLogTest {
+
+	/**
+	 * Small numbers of distinct values are counted nearly exactly, and
+	 * adding a value again does not change the count.
+	 */
+	@Test public void smallCountTest() {
+		HyperLogLog h = new HyperLogLog();
+		Assert.assertEquals(0.0, h.estimate(), 0.001);
+		for (int rep = 0; rep < 10; rep++) {
+			for (int v = 0; v < 100; v++)
+				h.add(HyperLogLog.hash(v));
+		}
+		Assert.assertEquals(100.0, h.estimate(), 2.0);
+	}
+
+	/**
+	 * Large numbers of distinct values are counted to within a few percent,
+	 * in constant space.
+	 */
+	@Test public void largeCountTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int v = 0; v < 1000000; v++)
+			h.add(HyperLogLog.hash(v));
+		Assert.assertEquals(1000000.0, h.estimate(), 50000.0);
+	}
+
+	/**
+	 * Strings are hashed on all of their characters.
+	 */
+	@Test public void stringTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int v = 0; v < 1000; v++)
+			h.add(HyperLogLog.hash("prefix" + v));
+		Assert.assertEquals(1000.0, h.estimate(), 50.0);
+	}
+
+	/**
+	 * Merging two sketches counts the values added to either once.
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int v = 0; v < 20000; v++)
+			a.add(HyperLogLog.hash(v));
+		for (int v = 10000; v < 30000; v++)
+			b.add(HyperLogLog.hash(v));
+		a.merge(b);
+		Assert.assertEquals(30000.0, a.estimate(), 1500.0);
+	}
+}
@@ -9,6 +9,8 @@ import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.OpIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -61,6 +63,22 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * Unit test for Insert.getNext() in bulk mode, which appends fresh pages
+   */
+  @Test public void getNextBulk() throws Exception {
+    Insert op = new Insert(tid, scan1, empty.getId(), true);
+    op.open();
+    assertTrue(TestUtil.compareTuples(
+        Utility.getHeapTuple(7, 1), // the length of scan1
+        op.next()));
+
+    // the tuples land on a new page after the existing empty one
+    assertEquals(2, empty.numPages());
+    HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1));
+    assertEquals(504 - 7, page.getNumEmptySlots());
+  }
+
   /**
    * JUnit suite target
    */
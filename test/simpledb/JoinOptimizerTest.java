@@ -11,7 +11,12 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
 import simpledb.optimizer.TableStats;
@@ -214,6 +219,72 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * Verify that the costs of hash joins grow with the number of batches
+     * the left-hand side is hashed in, and that only equality joins can be
+     * hashed
+     */
+    @Test
+    public void estimateAlgorithmJoinCostTest() throws ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 = t2.c2;"), new ArrayList<>());
+        LogicalJoinNode equalsJoinNode = new LogicalJoinNode(tableName1,
+                tableName2, Integer.toString(1), Integer.toString(2),
+                Predicate.Op.EQUALS);
+
+        // one batch: each side is scanned once
+        double hash = jo.estimateJoinCost(equalsJoinNode, LogicalJoinNode.Algorithm.HASH,
+                1000, 10000, 500, 5000);
+        double nestedLoop = jo.estimateJoinCost(equalsJoinNode, LogicalJoinNode.Algorithm.NESTED_LOOP,
+                1000, 10000, 500, 5000);
+        Assert.assertEquals(500 + 5000 + 1000 + 10000, hash, 0.001);
+        Assert.assertEquals(jo.estimateJoinCost(equalsJoinNode, 1000, 10000, 500, 5000), nestedLoop, 0.001);
+        Assert.assertTrue(hash < nestedLoop);
+
+        // three batches: the right-hand side is scanned three times
+        int card1 = 2 * HashEquiJoin.MAP_SIZE + 1;
+        Assert.assertEquals(500 + 3 * 5000 + card1 + 3 * 10000,
+                jo.estimateJoinCost(equalsJoinNode, LogicalJoinNode.Algorithm.HASH,
+                        card1, 10000, 500, 5000), 0.001);
+
+        LogicalJoinNode lessThanJoinNode = new LogicalJoinNode(tableName1,
+                tableName2, Integer.toString(1), Integer.toString(2),
+                Predicate.Op.LESS_THAN);
+        Assert.assertEquals(Double.POSITIVE_INFINITY,
+                jo.estimateJoinCost(lessThanJoinNode, LogicalJoinNode.Algorithm.HASH,
+                        1000, 10000, 500, 5000), 0.001);
+    }
+
+    /**
+     * Verify that instantiateJoin performs a join with the algorithm chosen
+     * for it
+     */
+    @Test
+    public void instantiateJoinAlgorithmTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode equalsJoinNode = new LogicalJoinNode(tableName1,
+                tableName2, "c1", "c2", Predicate.Op.EQUALS);
+
+        OpIterator j = JoinOptimizer.instantiateJoin(
+                equalsJoinNode.withAlgorithm(LogicalJoinNode.Algorithm.HASH),
+                new SeqScan(tid, tableId1, tableName1), new SeqScan(tid, tableId2, tableName2));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+
+        j = JoinOptimizer.instantiateJoin(
+                equalsJoinNode.withAlgorithm(LogicalJoinNode.Algorithm.NESTED_LOOP),
+                new SeqScan(tid, tableId1, tableName1), new SeqScan(tid, tableId2, tableName2));
+        Assert.assertTrue(j instanceof Join);
+
+        // neither table has an index to probe
+        j = JoinOptimizer.instantiateJoin(
+                equalsJoinNode.withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP),
+                new SeqScan(tid, tableId1, tableName1), new SeqScan(tid, tableId2, tableName2));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
@@ -272,6 +343,15 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
                         .getStatsMap());
 
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
+
+        // Without a key, each of the 20 distinct values of one side matches
+        // 1/20 of the other side
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + 3, "c" + 4,
+                Predicate.Op.EQUALS), stats1.estimateTableCardinality(0.8),
+                stats2.estimateTableCardinality(0.2), false, false, TableStats
+                        .getStatsMap());
+        Assert.assertEquals(800 * 2000 / 20, cardinality, 4000);
     }
 
     /**
@@ -526,6 +606,123 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 
         // Make sure that "bigTable" is the outermost table in the join
         Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
+
+        // The heuristic order used for join graphs too large to plan
+        // exhaustively should find that too
+        result = j.orderJoinsHeuristically(stats, filterSelectivities, 100, false);
+        Assert.assertEquals(result.size(), nodes.size());
+        Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
+    }
+
+    /**
+     * Order a star of 15 joins around one table, where every join shares a
+     * table with every other one, so that nearly all of the 2^15 sets of
+     * joins have to be planned, and check that no plan needs a cross product
+     */
+    @Test(timeout = 20000)
+    public void starOrderJoinsTest() throws IOException, ParsingException {
+        checkStarOrderJoins(15);
+    }
+
+    /**
+     * Order a star of 40 joins, too many sets of joins to plan exhaustively,
+     * so that orderJoins falls back on ordering them heuristically
+     */
+    @Test(timeout = 20000)
+    public void largeStarOrderJoinsTest() throws IOException, ParsingException {
+        checkStarOrderJoins(40);
+    }
+
+    private void checkStarOrderJoins(int spokes) throws IOException, ParsingException {
+        final int IO_COST = 101;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hub = SystemTestUtil.createRandomHeapFile(2, 1000,
+                Integer.MAX_VALUE, null, tuples, "c");
+        Database.getCatalog().addTable(hub, "hub");
+        stats.put("hub", new TableStats(hub.getId(), IO_COST));
+        filterSelectivities.put("hub", 1.0);
+        StringBuilder from = new StringBuilder("hub");
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < spokes; i++) {
+            String name = "s" + i;
+            HeapFile spoke = createDuplicateHeapFile(tuples.subList(0, 10 + i * 10), 2, "c");
+            Database.getCatalog().addTable(spoke, name);
+            stats.put(name, new TableStats(spoke.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            nodes.add(new LogicalJoinNode("hub", name, "c0", "c0", Predicate.Op.EQUALS));
+            from.append(", ").append(name);
+            where.append(i == 0 ? "" : " AND ").append("hub.c0 = ").append(name).append(".c0");
+        }
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + from + " WHERE " + where + ";"), nodes);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        Set<String> joined = new HashSet<>();
+        for (LogicalJoinNode lj : result) {
+            if (!joined.isEmpty())
+                Assert.assertTrue(joined.contains(lj.t1Alias) || joined.contains(lj.t2Alias));
+            joined.add(lj.t1Alias);
+            joined.add(lj.t2Alias);
+        }
+        Assert.assertEquals(spokes + 1, joined.size());
+    }
+
+    /**
+     * Join two pairs of tables that each join on a primary key to a few
+     * tuples, and the pairs with an inequality: the cheapest plan joins each
+     * pair first, and then the two pairs, which no left-deep plan can do
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws IOException, ParsingException {
+        final int IO_COST = 101;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        TransactionId tid = new TransactionId();
+
+        List<List<Integer>> bigTuples = new ArrayList<>();
+        HeapFile bigA = SystemTestUtil.createRandomHeapFile(2, 20000,
+                Integer.MAX_VALUE, null, bigTuples, "c");
+        HeapFile bigB = createDuplicateHeapFile(bigTuples, 2, "c");
+        HeapFile smallA = createDuplicateHeapFile(bigTuples.subList(0, 10), 2, "c");
+        HeapFile smallB = createDuplicateHeapFile(bigTuples.subList(0, 10), 2, "c");
+        Database.getCatalog().addTable(smallA, "sa");
+        Database.getCatalog().addTable(bigA, "ba", "c0");
+        Database.getCatalog().addTable(bigB, "bb", "c0");
+        Database.getCatalog().addTable(smallB, "sb");
+        for (String name : new String[] { "sa", "ba", "bb", "sb" }) {
+            stats.put(name, new TableStats(Database.getCatalog().getTableId(name), IO_COST));
+            filterSelectivities.put(name, 1.0);
+        }
+
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("sa", "ba", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("ba", "bb", "c1", "c1", Predicate.Op.LESS_THAN));
+        nodes.add(new LogicalJoinNode("bb", "sb", "c0", "c1", Predicate.Op.EQUALS));
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM sa, ba, bb, sb WHERE sa.c1 = ba.c0 AND ba.c1 < bb.c1 AND bb.c0 = sb.c1;"),
+                nodes);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        LogicalJoinNode last = result.get(result.size() - 1);
+        Assert.assertEquals(Predicate.Op.LESS_THAN, last.p);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE, last.algorithm);
+        for (LogicalJoinNode lj : result.subList(0, result.size() - 1)) {
+            Assert.assertEquals(Predicate.Op.EQUALS, lj.p);
+            Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, lj.algorithm);
+        }
     }
 
     /**
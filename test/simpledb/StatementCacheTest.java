@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.Query;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class StatementCacheTest extends SimpleDbTestBase {
+	private List<List<Integer>> aTuples;
+	private List<List<Integer>> bTuples;
+	private HeapFile a;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		aTuples = new ArrayList<>();
+		a = SystemTestUtil.createRandomHeapFile(2, 2000, 20, null, aTuples, "c");
+		Database.getCatalog().addTable(a, "a");
+		bTuples = new ArrayList<>();
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 500, 20, null, bTuples, "c");
+		Database.getCatalog().addTable(b, "b");
+		TableStats.setTableStats("a", new TableStats(a.getId(), 1000));
+		TableStats.setTableStats("b", new TableStats(b.getId(), 1000));
+		tid = new TransactionId();
+	}
+
+	@After public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** The tuples of a joined with b on c0, whose a.c1 is c1 */
+	private List<List<Integer>> expected(int c1) {
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> ta : aTuples) {
+			for (List<Integer> tb : bTuples) {
+				if (ta.get(0).equals(tb.get(0)) && ta.get(1) == c1) {
+					List<Integer> t = new ArrayList<>(ta);
+					t.addAll(tb);
+					expected.add(t);
+				}
+			}
+		}
+		return expected;
+	}
+
+	/**
+	 * Statements are keyed on their text with constants and parameters
+	 * replaced by ?, and runs of whitespace collapsed.
+	 */
+	@Test public void normalizeTest() throws Exception {
+		StatementCache.Statement s = StatementCache.parse(
+				"SELECT *  FROM t1\n WHERE t1.c0 = 42 AND t1.c1 = 'it''s' AND t1.c2 < ? ;", Arrays.asList(7));
+		Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 = ? AND t1.c1 = ? AND t1.c2 < ?;", s.key);
+		Assert.assertEquals(Arrays.asList("42", "it's", "7"), s.values);
+		Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 = 42 AND t1.c1 = 'it''s' AND t1.c2 < 7;", s.text());
+		Assert.assertEquals(1, s.parameterCount);
+		Assert.assertTrue(s.isCacheable());
+
+		Assert.assertEquals(s.key, StatementCache.parse(
+				"SELECT * FROM t1 WHERE t1.c0 = 1 AND t1.c1 = 'x' AND t1.c2 < 3;", Collections.emptyList()).key);
+		Assert.assertFalse(StatementCache.parse("INSERT INTO t1 VALUES (1, 2);", Collections.emptyList()).isCacheable());
+		Assert.assertFalse(StatementCache.parse(
+				"SELECT * FROM t1 WHERE t1.c0 = (SELECT t2.c0 FROM t2);", Collections.emptyList()).isCacheable());
+
+		Assert.assertEquals(2, StatementCache.parameterCount("SELECT * FROM t1 WHERE t1.c0 = ? AND t1.c1 = '?' AND t1.c2 = ?;"));
+		try {
+			StatementCache.parse("SELECT * FROM t1 WHERE t1.c0 = ?;", Collections.emptyList());
+			Assert.fail("Should not run a statement without values for its parameters");
+		} catch (ParsingException e) {
+			// Expected to get here
+		}
+		try {
+			StatementCache.parse("SELECT * FROM t1 WHERE t1.c0 = ?;", Arrays.asList(1, 2));
+			Assert.fail("Should not run a statement with more values than parameters");
+		} catch (ParsingException e) {
+			// Expected to get here
+		}
+	}
+
+	/**
+	 * A prepared statement is parsed and planned once, then rebound with
+	 * other constants; statements differing only in their constants share
+	 * its plan.
+	 */
+	@Test public void preparedStatementTest() throws Exception {
+		Parser p = new Parser();
+		PreparedStatement ps = p.prepare("SELECT * FROM a, b WHERE a.c0 = b.c0 AND a.c1 = ?;");
+		Assert.assertEquals(1, ps.getParameterCount());
+
+		Query q = p.bind(ps, tid, 3);
+		SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(3));
+		StatementCache cache = p.getStatementCache();
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(0, cache.hits());
+		Assert.assertEquals(1, cache.misses());
+
+		for (int c1 = 4; c1 < 8; c1++) {
+			q = p.bind(ps, tid, c1);
+			SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(c1));
+		}
+		q = p.bind(p.prepare("SELECT  *  FROM a, b WHERE a.c0 = b.c0 AND a.c1 = 11;"), tid);
+		SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(11));
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(5, cache.hits());
+		Assert.assertEquals(1, cache.misses());
+	}
+
+	/**
+	 * The join order is chosen again once the statistics of a table have been
+	 * replaced, and a plan is dropped once a table has been replaced.
+	 */
+	@Test public void invalidationTest() throws Exception {
+		Parser p = new Parser();
+		PreparedStatement ps = p.prepare("SELECT * FROM a, b WHERE a.c0 = b.c0 AND a.c1 = ?;");
+		p.bind(ps, tid, 1);
+		StatementCache.Entry entry = p.getStatementCache().get(
+				StatementCache.parse("SELECT * FROM a, b WHERE a.c0 = b.c0 AND a.c1 = ?;", Arrays.asList(1)));
+		LogicalPlan.JoinPlan joinPlan = entry.getJoinPlan();
+		Assert.assertNotNull(joinPlan);
+
+		p.bind(ps, tid, 2);
+		Assert.assertSame(joinPlan, entry.getJoinPlan());
+
+		TableStats.setTableStats("b", new TableStats(Database.getCatalog().getTableId("b"), 1000));
+		p.bind(ps, tid, 2);
+		Assert.assertNotNull(entry.getJoinPlan());
+		Assert.assertNotSame(joinPlan, entry.getJoinPlan());
+
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, tuples, "c");
+		Database.getCatalog().clear();
+		Database.getCatalog().addTable(a, "a");
+		Database.getCatalog().addTable(b, "b");
+		TableStats.setTableStats("b", new TableStats(b.getId(), 1000));
+		bTuples = tuples;
+		long misses = p.getStatementCache().misses();
+		Query q = p.bind(ps, tid, 5);
+		Assert.assertEquals(misses + 1, p.getStatementCache().misses());
+		SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(5));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(StatementCacheTest.class);
+	}
+}
@@ -1,23 +1,31 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
 
 import simpledb.common.Database;
+import simpledb.common.Utility;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +168,259 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics from a sample of the pages scale the tuple count up and
+	 * give about the same selectivities as those from every page.
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST, 0.5);
+		Assert.assertEquals(10200, s.totalTuples(), 200);
+		Assert.assertEquals(f.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(42)), 0.001);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badSampleRateTest() {
+		new TableStats(this.tableId, IO_COST, 0.0);
+	}
+
+	/**
+	 * Statistics saved to a file read back the same, and are out of date
+	 * once the table's file changes.
+	 */
+	@Test public void saveAndLoadStatsTest() throws IOException {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		File statsFile = File.createTempFile("stats", ".dat");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+
+		TableStats loaded = TableStats.loadStatistics(statsFile).get(this.tableName);
+		Assert.assertNotNull(loaded);
+		Assert.assertTrue(loaded.isCurrent());
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			for (int v = -1; v <= 33; v += 2) {
+				for (Predicate.Op op : Predicate.Op.values()) {
+					if (op == Predicate.Op.LIKE)
+						continue;
+					Assert.assertEquals(s.estimateSelectivity(col, op, new IntField(v)),
+							loaded.estimateSelectivity(col, op, new IntField(v)), 0.0);
+				}
+			}
+		}
+
+		Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() - 10000));
+		Assert.assertFalse(loaded.isCurrent());
+	}
+
+	/**
+	 * On skewed data, the common value is estimated from its own count and
+	 * the rest from the histogram of the other values.
+	 */
+	@Test public void skewedSelectivityTest() throws IOException {
+		List<List<Integer>> skewed = new ArrayList<>();
+		Random rand = new Random(7);
+		for (int i = 0; i < 10000; i++) {
+			int v = i % 2 == 0 ? 7 : rand.nextInt(100000);
+			skewed.add(Arrays.asList(v, i));
+		}
+		File file = File.createTempFile("skewed", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(skewed, file, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, file);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 0.01);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(50000)), 0.001);
+		Assert.assertEquals(0.75, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50000)), 0.03);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(7)), 0.01);
+		Assert.assertEquals(0.0, s.nullFraction(0), 0.0);
+		Assert.assertEquals(4.0, s.avgWidth(0), 0.0);
+
+		// the second column has a distinct value in every tuple
+		Assert.assertEquals(10000, s.estimateDistinctValues(1), 500);
+		Assert.assertEquals(1.0 / 10000, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(42)), 0.0001);
+	}
+
+	/**
+	 * The number of distinct values is estimated from a sample too.
+	 */
+	@Test public void distinctValuesTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 0.5);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(32, s.estimateDistinctValues(col), 1);
+			Assert.assertEquals(32, sampled.estimateDistinctValues(col), 2);
+		}
+	}
+
+	/**
+	 * A table with more tuples than a sample keeps is estimated from a
+	 * random sample of them, scaled up to the whole table.
+	 */
+	@Test public void cappedSampleTest() throws IOException {
+		List<List<Integer>> rows = new ArrayList<>();
+		for (int i = 0; i < 100000; i++)
+			rows.add(Arrays.asList(i % 100, i));
+		File file = File.createTempFile("large", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, file);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		Assert.assertEquals(100000, s.totalTuples());
+		Assert.assertEquals(0.01, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(42)), 0.002);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50)), 0.02);
+		Assert.assertEquals(100, s.estimateDistinctValues(0), 5);
+		Assert.assertEquals(100000, s.estimateDistinctValues(1), 10000);
+		Assert.assertEquals(0.3, s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(30000)), 0.02);
+	}
+
+	/**
+	 * Inserted values are added to the statistics.
+	 */
+	@Test public void addTuplesTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		List<Tuple> added = new ArrayList<>();
+		for (int i = 0; i < 10200; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(100));
+			added.add(t);
+		}
+		s.addTuples(added);
+		Assert.assertEquals(20400, s.totalTuples());
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.01);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50)), 0.01);
+		Assert.assertEquals(33, s.estimateDistinctValues(0), 1);
+	}
+
+	private static Predicate eq(int field, int v) {
+		return new Predicate(field, Predicate.Op.EQUALS, new IntField(v));
+	}
+
+	/**
+	 * Equality predicates on columns of a declared column group are
+	 * combined with the degrees to which the columns determine each other;
+	 * others are still taken to be independent.
+	 */
+	@Test public void correlatedSelectivityTest() throws IOException {
+		List<List<Integer>> rows = new ArrayList<>();
+		Random rand = new Random(11);
+		for (int i = 0; i < 10000; i++) {
+			int v = rand.nextInt(100);
+			// c1 is c0, c2 is determined by c0 but not the other way round, c3 is independent
+			rows.add(Arrays.asList(v, v, v % 10, rand.nextInt(100)));
+		}
+		File file = File.createTempFile("correlated", ".dat");
+		file.deleteOnExit();
+		HeapFileEncoder.convert(rows, file, BufferPool.getPageSize(), 4);
+		HeapFile hf = Utility.openHeapFile(4, file);
+
+		TableStats independent = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(1.0 / 10000, independent.estimateSelectivity(Arrays.asList(eq(0, 5), eq(1, 5))), 0.00005);
+
+		Database.getCatalog().addColumnGroup(hf.getId(), 2, 1, 0);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(0.01, s.estimateSelectivity(Arrays.asList(eq(0, 5), eq(1, 5))), 0.003);
+		Assert.assertEquals(0.01, s.estimateSelectivity(Arrays.asList(eq(0, 5), eq(2, 5))), 0.003);
+		Assert.assertEquals(0.01, s.estimateSelectivity(Arrays.asList(eq(2, 5), eq(1, 5), eq(0, 5))), 0.003);
+		Assert.assertEquals(1.0 / 10000, s.estimateSelectivity(Arrays.asList(eq(0, 5), eq(3, 7))), 0.00005);
+		Assert.assertEquals(independent.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50))
+				* independent.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(5)),
+				s.estimateSelectivity(Arrays.asList(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)), eq(1, 5))),
+				0.0001);
+
+		Assert.assertEquals(100, s.estimateDistinctValues(new int[] { 0, 1 }), 5);
+		Assert.assertEquals(100, s.estimateDistinctValues(new int[] { 1, 0, 2 }), 5);
+		Assert.assertEquals(10000, independent.estimateDistinctValues(new int[] { 0, 1 }), 1);
+
+		// the group is saved with the rest of the statistics
+		String name = Database.getCatalog().getTableName(hf.getId());
+		TableStats.setTableStats(name, s);
+		File statsFile = File.createTempFile("stats", ".dat");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+		TableStats loaded = TableStats.loadStatistics(statsFile).get(name);
+		Assert.assertEquals(s.estimateSelectivity(Arrays.asList(eq(0, 5), eq(2, 5))),
+				loaded.estimateSelectivity(Arrays.asList(eq(0, 5), eq(2, 5))), 0.0);
+	}
+
+	/**
+	 * Tuples inserted and deleted through the buffer pool are counted in
+	 * the statistics of their table when the transaction commits, and not
+	 * at all if it aborts.
+	 */
+	@Test public void insertDeleteTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TransactionId tid = new TransactionId();
+		List<Tuple> inserted = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(100));
+			Database.getBufferPool().insertTuple(tid, this.tableId, t);
+			inserted.add(t);
+		}
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(0, s.modificationsSinceAnalyze());
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(10300, s.totalTuples());
+		Assert.assertEquals(100, s.modificationsSinceAnalyze());
+		Assert.assertEquals(100.0 / 10300, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.001);
+
+		tid = new TransactionId();
+		for (Tuple t : inserted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid, false);
+		Assert.assertEquals(10300, s.totalTuples());
+		Assert.assertEquals(100, s.modificationsSinceAnalyze());
+
+		tid = new TransactionId();
+		for (Tuple t : inserted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(200, s.modificationsSinceAnalyze());
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.001);
+	}
+
+	/**
+	 * Once enough of a table has changed, it is analyzed again in the
+	 * background, and the new statistics replace the old ones.
+	 */
+	@Test public void reanalyzeTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		List<Tuple> added = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(100));
+			added.add(t);
+		}
+		// the tuples never reach the file, so analyzing it again forgets them
+		s.addTuples(added);
+		Assert.assertEquals(15200, s.totalTuples());
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(this.tableName) == s && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TableStats fresh = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(10200, fresh.totalTuples());
+		Assert.assertEquals(0, fresh.modificationsSinceAnalyze());
+
+		// changes that reach the old statistics once replaced go to the new ones
+		s.addTuples(added.subList(0, 100));
+		s.removeTuple(added.get(0));
+		Assert.assertEquals(15200, s.totalTuples());
+		Assert.assertEquals(10299, fresh.totalTuples());
+		Assert.assertEquals(101, fresh.modificationsSinceAnalyze());
+	}
 }
@@ -0,0 +1,189 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+    /** More tuples than HashEquiJoin hashes in one batch */
+    private static final int ROWS1 = HashEquiJoin.MAP_SIZE + 5000;
+    private static final int ROWS2 = 300;
+
+    private TransactionId tid;
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        tuples1 = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(2, ROWS1, 50000, null, tuples1);
+        tuples2 = new ArrayList<>();
+        table2 = SystemTestUtil.createRandomHeapFile(2, ROWS2, 50000, null, tuples2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<List<Integer>> expected() {
+        return expected(tuples1, tuples2);
+    }
+
+    private static List<List<Integer>> expected(List<List<Integer>> tuples1, List<List<Integer>> tuples2) {
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t2 : tuples2)
+            byKey.computeIfAbsent(t2.get(0), k -> new ArrayList<>()).add(t2);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : tuples1) {
+            for (List<Integer> t2 : byKey.getOrDefault(t1.get(0), Collections.emptyList())) {
+                List<Integer> t = new ArrayList<>(t1);
+                t.addAll(t2);
+                expected.add(t);
+            }
+        }
+        return expected;
+    }
+
+    private HashEquiJoin join(OpIterator child2, int card1, int card2) {
+        return join(table1, child2, card1, card2);
+    }
+
+    private HashEquiJoin join(HeapFile table1, OpIterator child2, int card1, int card2) {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), "t1"), child2);
+        j.setEstimatedChildCardinalities(card1, card2);
+        return j;
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * A hash join whose build side turns out far larger than estimated
+     * hashes its smaller probe side instead, and returns the same tuples.
+     */
+    @Test
+    public void switchBuildSide() throws Exception {
+        List<List<Integer>> expected = expected();
+        HashEquiJoin j = join(new SeqScan(tid, table2.getId(), "t2"), 100, ROWS2);
+        SystemTestUtil.matchTuples(j, expected);
+        assertTrue(j.isBuildSideSwitched());
+
+        j.open();
+        assertEquals(expected.size(), count(j));
+        j.rewind();
+        assertEquals(expected.size(), count(j));
+        j.close();
+    }
+
+    /**
+     * An estimate too large to be exceeded tenfold by the first batch is
+     * still caught by a later one; the join switches its build side then,
+     * without joining the batches already read twice.
+     */
+    @Test
+    public void switchBuildSideLater() throws Exception {
+        int rows = 3 * HashEquiJoin.MAP_SIZE + 5000;
+        int estimate = 2 * HashEquiJoin.MAP_SIZE / Operator.MISESTIMATE_FACTOR;
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, rows, 50000, null, tuples);
+        List<List<Integer>> expected = expected(tuples, tuples2);
+
+        HashEquiJoin j = join(big, new SeqScan(tid, table2.getId(), "t2"), estimate, ROWS2);
+        j.open();
+        assertFalse(j.isBuildSideSwitched());
+        j.close();
+        SystemTestUtil.matchTuples(j, expected);
+        assertTrue(j.isBuildSideSwitched());
+
+        // child2 needs more than one batch, so child1 is scanned again
+        j = join(big, new SeqScan(tid, table1.getId(), "t2"), estimate, ROWS2);
+        SystemTestUtil.matchTuples(j, expected(tuples, tuples1));
+        assertTrue(j.isBuildSideSwitched());
+    }
+
+    /**
+     * A hash join keeps its build side when the estimate was close, or when
+     * there is none to compare with.
+     */
+    @Test
+    public void keepBuildSide() throws Exception {
+        List<List<Integer>> expected = expected();
+        HashEquiJoin j = join(new SeqScan(tid, table2.getId(), "t2"), ROWS1, ROWS2);
+        SystemTestUtil.matchTuples(j, expected);
+        assertFalse(j.isBuildSideSwitched());
+
+        j = join(new SeqScan(tid, table2.getId(), "t2"), 0, 0);
+        SystemTestUtil.matchTuples(j, expected);
+        assertFalse(j.isBuildSideSwitched());
+
+        // the probe side is expected to be even larger than the build side
+        j = join(new SeqScan(tid, table2.getId(), "t2"), 100, 10 * ROWS1);
+        SystemTestUtil.matchTuples(j, expected);
+        assertFalse(j.isBuildSideSwitched());
+    }
+
+    /**
+     * Sorts and aggregates record the number of tuples they return once they
+     * have read their input, which a join above them plans with in place of
+     * the estimate.
+     */
+    @Test
+    public void breakersObserveCardinality() throws Exception {
+        OrderBy sort = new OrderBy(0, true, new SeqScan(tid, table2.getId(), "t2"));
+        assertEquals(-1, sort.getObservedCardinality());
+        sort.open();
+        assertEquals(ROWS2, sort.getObservedCardinality());
+        sort.close();
+        assertFalse(Operator.isMisestimate(ROWS2 / 2, sort.getObservedCardinality()));
+        assertTrue(Operator.isMisestimate(ROWS2 / 10, sort.getObservedCardinality()));
+        assertTrue(Operator.isMisestimate(10 * ROWS2, sort.getObservedCardinality()));
+        assertFalse(Operator.isMisestimate(0, sort.getObservedCardinality()));
+
+        Aggregate agg = new Aggregate(new SeqScan(tid, table2.getId(), "t2"), 1, 0, Aggregator.Op.COUNT);
+        Set<Integer> groups = new HashSet<>();
+        for (List<Integer> t : tuples2)
+            groups.add(t.get(0));
+        assertEquals(groups.size(), agg.getObservedCardinality());
+
+        // the estimate of the probe side is unknown, but the sort has counted it
+        sort = new OrderBy(0, true, new SeqScan(tid, table2.getId(), "t2"));
+        HashEquiJoin j = join(sort, 100, 0);
+        SystemTestUtil.matchTuples(j, expected());
+        assertTrue(j.isBuildSideSwitched());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AdaptiveJoinTest.class);
+    }
+}
@@ -186,6 +186,45 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
 	}
 
+	@Test
+	public void testReusePagesFreedByOtherTransactions() throws Exception {
+		BTreeFile threeLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 1005,
+				null, null, 0);
+		assertEquals(4, threeLeafPageFile.numPages());
+
+		// a page freed by a transaction that aborts is still in use afterwards
+		TransactionId aborted = new TransactionId();
+		DbFileIterator it = threeLeafPageFile.iterator(aborted);
+		it.open();
+		for(int i = 0; i < 502; ++i) {
+			Database.getBufferPool().deleteTuple(aborted, it.next());
+			it.rewind();
+		}
+		it.close();
+		assertEquals(5, threeLeafPageFile.numPages());
+		Database.getBufferPool().transactionComplete(aborted, false);
+
+		TransactionId deleter = new TransactionId();
+		it = threeLeafPageFile.iterator(deleter);
+		it.open();
+		for(int i = 0; i < 502; ++i) {
+			Database.getBufferPool().deleteTuple(deleter, it.next());
+			it.rewind();
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(deleter);
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+		int numPages = threeLeafPageFile.numPages();
+
+		// a page freed by a transaction that committed is reused by the next one
+		for(int i = 0; i < 502; ++i) {
+			Database.getBufferPool().insertTuple(tid, threeLeafPageFile.getId(),
+					BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(numPages, threeLeafPageFile.numPages());
+		BTreeChecker.checkRep(threeLeafPageFile, tid, new HashMap<>(), true);
+	}
+
 	@Test
 	public void testRedistributeInternalPages() throws Exception {
 		// This should create a B+ tree with two nodes in the second tier
@@ -4,8 +4,11 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
+import simpledb.common.DbException;
+import simpledb.storage.AbstractDbFileIterator;
 import simpledb.storage.BufferPool;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.execution.Predicate.Op;
 
 import java.io.File;
@@ -17,7 +20,10 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Type;
 import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.TupleDesc;
 import simpledb.storage.Tuple;
 import simpledb.transaction.TransactionId;
 
@@ -81,6 +87,38 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		} 
 	}
 
+	@Test public void reopenReusesExtent() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 1);
+		for (int i = 0; i < 753; ++i) {
+			Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(3, empty.numPages());
+		long length = emptyFile.length();
+		assertTrue(length > BTreeRootPtrPage.getPageSize() + 3L * BufferPool.getPageSize());
+
+		// the pages of the extent left unused are neither counted nor leaked
+		Database.reset();
+		tid = new TransactionId();
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, emptyFile, 1);
+		assertEquals(3, reopened.numPages());
+		Database.getBufferPool().insertTuple(tid, reopened.getId(), BTreeUtility.getBTreeTuple(753, 2));
+		assertEquals(4, reopened.numPages());
+		assertEquals(length, emptyFile.length());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(reopened, tid, new HashMap<>(), true);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (int i = 0; i <= 753; ++i) {
+			expected.add(Arrays.asList(i, i));
+		}
+		SystemTestUtil.matchTuples(reopened, tid, expected);
+	}
+
 	@Test public void addDuplicateTuples() throws Exception {
 		// create an empty B+ tree file keyed on the second field of a 2-field tuple
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -135,6 +173,191 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertEquals(1200, count);
 	}
 
+	@Test public void addStringKeys() throws Exception {
+		// create an empty B+ tree file keyed on the string field of a (string, int) tuple
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		BTreeFile empty = new BTreeFile(emptyFile, 0, td);
+		Database.getCatalog().addTable(empty, UUID.randomUUID().toString());
+		Database.resetBufferPool(500);
+
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < 2000; ++i)
+			values.add(i);
+		Collections.shuffle(values, new Random(7));
+		for (int i : values) {
+			Tuple tup = new Tuple(td);
+			tup.setField(0, new StringField(String.format("customer-%06d", i), Type.STRING_LEN));
+			tup.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, empty.getId(), tup);
+		}
+
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+
+		// 2000 tuples need more leaves than an internal page holds full-length string keys,
+		// but the truncated separators keep the tree at a single internal level
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(empty.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertTrue(root.getNumEntries() > BTreeInternalPage.getMaxEntries(Type.STRING_TYPE));
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		// the keys come back in order, and each one can be found
+		DbFileIterator it = empty.iterator(tid);
+		it.open();
+		int expected = 0;
+		while (it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		assertEquals(2000, expected);
+
+		for (int i = 0; i < 2000; i += 37) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS,
+					new StringField(String.format("customer-%06d", i), Type.STRING_LEN));
+			it = empty.indexIterator(tid, ipred);
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(i, ((IntField) it.next().getField(1)).getValue());
+			assertFalse(it.hasNext());
+			it.close();
+		}
+	}
+
+	@Test public void bulkLoad() throws Exception {
+		// a table of 20000 random tuples, sorted in runs small enough to spill
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(0, 0.75, 3000, 4);
+		BTreeFile bf = loader.load(tid, heap, bFile, UUID.randomUUID().toString());
+		Database.resetBufferPool(500);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		// leaves are filled to the fill factor: 502 tuples fit on a leaf, 376 at 0.75
+		assertEquals(54, bf.numPages());
+
+		// the keys come back in order, and each one can be found
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			int value = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(value >= prev);
+			prev = value;
+		}
+		it.close();
+		for (int i = 0; i < tuples.size(); i += 997) {
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(tuples.get(i).get(0)));
+			it = bf.indexIterator(tid, ipred);
+			it.open();
+			assertTrue(it.hasNext());
+			it.close();
+		}
+
+		// the loaded tree takes inserts like any other
+		for (int i = 0; i < 1000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test public void bulkLoadStringKeys() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		File heapFile = File.createTempFile("heap", ".dat");
+		heapFile.deleteOnExit();
+		HeapFile heap = new HeapFile(heapFile, td);
+		Database.getCatalog().addTable(heap, UUID.randomUUID().toString());
+		List<Tuple> rows = new ArrayList<>();
+		for (int i = 0; i < 3000; ++i) {
+			Tuple tup = new Tuple(td);
+			tup.setField(0, new StringField(String.format("customer-%06d", (i * 7919) % 3000), Type.STRING_LEN));
+			tup.setField(1, new IntField((i * 7919) % 3000));
+			rows.add(tup);
+		}
+		TransactionId loadTid = new TransactionId();
+		heap.bulkInsert(loadTid, rows);
+		Database.getBufferPool().transactionComplete(loadTid);
+
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = new BTreeBulkLoader(0).load(tid, heap, bFile, UUID.randomUUID().toString());
+		Database.resetBufferPool(500);
+
+		// truncated separators let one internal page hold every leaf
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int expected = 0;
+		while (it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		assertEquals(3000, expected);
+	}
+
+	/**
+	 * Loading into a file that already holds a tree replaces it, including
+	 * its cached pages; a load that fails leaves the file and catalog as
+	 * they were.
+	 */
+	@Test public void bulkLoadReplacesFile() throws Exception {
+		List<List<Integer>> first = new ArrayList<>();
+		HeapFile heap1 = SystemTestUtil.createRandomHeapFile(2, 1000, null, first);
+		List<List<Integer>> second = new ArrayList<>();
+		HeapFile heap2 = SystemTestUtil.createRandomHeapFile(2, 2000, null, second);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		String name = UUID.randomUUID().toString();
+
+		BTreeFile bf = new BTreeBulkLoader(0).load(tid, heap1, bFile, name);
+		SystemTestUtil.matchTuples(bf, tid, first);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		bf = new BTreeBulkLoader(0).load(tid, heap2, bFile, name);
+		SystemTestUtil.matchTuples(bf, tid, second);
+
+		DbFileIterator failing = new AbstractDbFileIterator() {
+			private int n = 0;
+
+			public void open() {
+			}
+
+			public void rewind() {
+				n = 0;
+			}
+
+			@Override
+			protected Tuple readNext() throws DbException {
+				if (n++ == 500)
+					throw new DbException("source failed");
+				return BTreeUtility.getBTreeTuple(n, 2);
+			}
+		};
+		try {
+			new BTreeBulkLoader(0).load(failing, bf.getTupleDesc(), bFile, name);
+			fail("expected the load to fail");
+		} catch (DbException e) {
+			// expected
+		}
+		assertEquals(bf.getId(), Database.getCatalog().getTableId(name));
+		assertFalse(new File(bFile.getPath() + ".tmp").exists());
+		SystemTestUtil.matchTuples(bf, tid, second);
+	}
+
 	@Test
 	public void testSplitLeafPage() throws Exception {
 		// This should create a B+ tree with one full page
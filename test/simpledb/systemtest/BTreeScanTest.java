@@ -15,6 +15,8 @@ import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRange;
 import simpledb.index.BTreeScan;
 import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
@@ -284,6 +286,139 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    private static List<BTreePageId> lockedLeaves(TransactionId tid, BTreeFile f) {
+        List<BTreePageId> locked = new ArrayList<>();
+        for (int i = 1; i <= f.numPages(); i++) {
+            BTreePageId pid = new BTreePageId(f.getId(), i, BTreePageId.LEAF);
+            if (Database.getBufferPool().holdsLock(tid, pid))
+                locked.add(pid);
+        }
+        return locked;
+    }
+
+    /** Test batched range scans, with and without releasing leaf locks */
+    @Test public void testRangeScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, keyField);
+        Op[] ops = { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ };
+        for (Op op : ops) {
+            for (boolean releaseLocks : new boolean[] { false, true }) {
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                TransactionId tid = new TransactionId();
+                IntField value = new IntField(tuples.get(r.nextInt(tuples.size())).get(keyField));
+                List<List<Integer>> tuplesFiltered = new ArrayList<>();
+                for (List<Integer> tup : tuples) {
+                    if (new IntField(tup.get(keyField)).compare(op, value))
+                        tuplesFiltered.add(tup);
+                }
+
+                BTreeScan scan = new BTreeScan(tid, f.getId(), "table", new IndexPredicate(op, value), 4, releaseLocks);
+                scan.open();
+                List<List<Integer>> found = new ArrayList<>();
+                while (scan.hasNext())
+                    found.add(SystemTestUtil.tupleToList(scan.next()));
+                scan.close();
+                // in key order, and the same tuples
+                List<List<Integer>> sorted = new ArrayList<>(found);
+                sorted.sort(new TupleComparator(keyField));
+                assertEquals(sorted, found);
+                Comparator<List<Integer>> byAllFields = Comparator.comparing((List<Integer> t) -> t.get(0))
+                        .thenComparing(t -> t.get(1));
+                found.sort(byAllFields);
+                tuplesFiltered.sort(byAllFields);
+                assertEquals(tuplesFiltered, found);
+
+                if (releaseLocks)
+                    assertEquals(Collections.emptyList(), lockedLeaves(tid, f));
+                else
+                    assertFalse(lockedLeaves(tid, f).isEmpty());
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /** Test that a range scan releasing its locks keeps the ones the transaction held already */
+    @Test public void testRangeScanKeepsHeldLocks() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        Database.resetBufferPool(500);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] { 100, 100 }));
+        List<BTreePageId> held = lockedLeaves(tid, f);
+        assertFalse(held.isEmpty());
+
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", null, 4, true);
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(tuples.size() + 1, count);
+        assertEquals(held, lockedLeaves(tid, f));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test two-sided range scans in both directions, over keys with many duplicates */
+    @Test public void testBoundedRangeScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 500, null, tuples, keyField);
+        Comparator<List<Integer>> byAllFields = Comparator.comparing((List<Integer> t) -> t.get(0))
+                .thenComparing(t -> t.get(1));
+        for (int i = 0; i < 8; i++) {
+            IntField lo = new IntField(r.nextInt(500));
+            IntField hi = new IntField(lo.getValue() + r.nextInt(100));
+            BTreeRange range = new BTreeRange(lo, r.nextBoolean(), hi, r.nextBoolean());
+            for (boolean descending : new boolean[] { false, true }) {
+                TransactionId tid = new TransactionId();
+                List<List<Integer>> tuplesFiltered = new ArrayList<>();
+                for (List<Integer> tup : tuples) {
+                    if (range.contains(new IntField(tup.get(keyField))))
+                        tuplesFiltered.add(tup);
+                }
+
+                BTreeScan scan = new BTreeScan(tid, f.getId(), "table", range, descending, 4, false);
+                scan.open();
+                List<List<Integer>> found = new ArrayList<>();
+                while (scan.hasNext())
+                    found.add(SystemTestUtil.tupleToList(scan.next()));
+                scan.close();
+                // in key order, or in reverse key order, and the same tuples
+                List<List<Integer>> sorted = new ArrayList<>(found);
+                Comparator<List<Integer>> byKey = new TupleComparator(keyField);
+                sorted.sort(descending ? byKey.reversed() : byKey);
+                assertEquals(range.toString(), sorted, found);
+                found.sort(byAllFields);
+                tuplesFiltered.sort(byAllFields);
+                assertEquals(range.toString(), tuplesFiltered, found);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /** Test that a descending scan with no bounds reads the whole tree backwards */
+    @Test public void testDescendingScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 1);
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", BTreeRange.ALL, true, 4, false);
+        scan.open();
+        int count = 0;
+        int last = Integer.MAX_VALUE;
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(1)).getValue();
+            assertTrue(key <= last);
+            last = key;
+            count++;
+        }
+        scan.close();
+        assertEquals(tuples.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
@@ -0,0 +1,297 @@
+package simpledb.systemtest;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexScanTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static List<List<Integer>> matching(List<List<Integer>> tuples, int field, Op op, int value) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value)))
+                result.add(t);
+        }
+        return result;
+    }
+
+    @Test public void scanBuiltIndex() throws Exception {
+        // 5000 tuples with 100 distinct values in the indexed field
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+        SecondaryIndex index = SecondaryIndex.build(tid, heap.getId(), 1, tempFile(), "heap_f1");
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(heap.getId()));
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap", null), tuples);
+        for (int v : new int[] { 0, 17, 99 }) {
+            SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap",
+                    new IndexPredicate(Op.EQUALS, new IntField(v)), 16), matching(tuples, 1, Op.EQUALS, v));
+        }
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap",
+                new IndexPredicate(Op.LESS_THAN, new IntField(40))), matching(tuples, 1, Op.LESS_THAN, 40));
+    }
+
+    @Test public void maintainedByBufferPool() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 1000, 50, null, tuples);
+        SecondaryIndex index = SecondaryIndex.build(tid, heap.getId(), 0, tempFile(), "heap_f0");
+        Database.resetBufferPool(500);
+
+        // inserted tuples are found through the index
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(heap.getTupleDesc());
+            t.setField(0, new IntField(1000 + i % 3));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, heap.getId(), t);
+            tuples.add(Arrays.asList(1000 + i % 3, i));
+        }
+        IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1000));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap", ipred),
+                matching(tuples, 0, Op.GREATER_THAN_OR_EQ, 1000));
+
+        // deleted tuples are not
+        IndexScan scan = new IndexScan(tid, index, "heap", new IndexPredicate(Op.EQUALS, new IntField(1001)));
+        scan.open();
+        List<Tuple> victims = new ArrayList<>();
+        while (scan.hasNext())
+            victims.add(scan.next());
+        scan.close();
+        assertEquals(100, victims.size());
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        tuples.removeIf(t -> t.get(0) == 1001);
+
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap", ipred),
+                matching(tuples, 0, Op.GREATER_THAN_OR_EQ, 1000));
+        SystemTestUtil.matchTuples(new IndexScan(tid, index, "heap", null), tuples);
+    }
+
+    private static boolean planUses(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && planUses(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static OpIterator plan(TransactionId tid, String query) throws Exception {
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    @Test public void plannerChoosesIndexScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(3, 20000, 10000, null, tuples, "c");
+        Database.getCatalog().addTable(big, "big");
+        SecondaryIndex.build(tid, big.getId(), 1, tempFile(), "big_c1");
+        TableStats.setTableStats("big", new TableStats(big.getId(), 1000));
+
+        // a selective filter on the indexed field is answered by the index
+        OpIterator plan = plan(tid, "SELECT * FROM big WHERE big.c1 = 17;");
+        assertTrue(planUses(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, matching(tuples, 1, Op.EQUALS, 17));
+
+        // reading almost the whole table through the index is not worth it
+        plan = plan(tid, "SELECT * FROM big WHERE big.c1 > 0;");
+        assertFalse(planUses(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, matching(tuples, 1, Op.GREATER_THAN, 0));
+    }
+
+    @Test public void plannerChoosesIndexJoin() throws Exception {
+        // big.c1 is a key, so that each probe is estimated to find one tuple;
+        // probing ten times is then cheaper than hashing small and scanning big
+        List<List<Integer>> bigTuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(3, 20000, Integer.MAX_VALUE, null, bigTuples, "c");
+        Database.getCatalog().addTable(big, "big", "c1");
+        SecondaryIndex.build(tid, big.getId(), 1, tempFile(), "big_c1");
+        TableStats.setTableStats("big", new TableStats(big.getId(), 1000));
+
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            smallTuples.add(Arrays.asList(bigTuples.get(i * 1000).get(1), i));
+        File smallFile = tempFile();
+        HeapFileEncoder.convert(smallTuples, smallFile, BufferPool.getPageSize(), 2);
+        HeapFile small = Utility.openHeapFile(2, "c", smallFile);
+        Database.getCatalog().addTable(small, "small");
+        TableStats.setTableStats("small", new TableStats(small.getId(), 1000));
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> s : smallTuples) {
+            for (List<Integer> b : bigTuples) {
+                if (s.get(0).equals(b.get(1))) {
+                    List<Integer> t = new ArrayList<>(s);
+                    t.addAll(b);
+                    expected.add(t);
+                }
+            }
+        }
+
+        OpIterator plan = plan(tid, "SELECT * FROM small, big WHERE small.c0 = big.c1;");
+        assertTrue(planUses(plan, IndexNestedLoopJoin.class));
+        SystemTestUtil.matchTuples(plan, expected);
+    }
+
+    private static List<List<Integer>> project(List<List<Integer>> tuples, int... fields) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            List<Integer> p = new ArrayList<>();
+            for (int f : fields)
+                p.add(t.get(f));
+            result.add(p);
+        }
+        return result;
+    }
+
+    @Test public void indexOnlyScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(4, 5000, 100, null, tuples, "c");
+        SecondaryIndex index = SecondaryIndex.build(tid, heap.getId(), 3, tempFile(), "heap_c3", 1);
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+        assertTrue(index.covers(Arrays.asList(1, 3)));
+        assertFalse(index.covers(Arrays.asList(0, 3)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // fields come back in table order, and the heap is never read
+        tid = new TransactionId();
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "heap", new IndexPredicate(Op.LESS_THAN, new IntField(30)));
+        assertEquals("heap.c1", scan.getTupleDesc().getFieldName(0));
+        assertEquals("heap.c3", scan.getTupleDesc().getFieldName(1));
+        SystemTestUtil.matchTuples(scan, project(matching(tuples, 3, Op.LESS_THAN, 30), 1, 3));
+        for (int i = 0; i < heap.numPages(); i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(heap.getId(), i)));
+
+        // the included field is maintained along with the key
+        Tuple t = new Tuple(heap.getTupleDesc());
+        for (int i = 0; i < 4; i++)
+            t.setField(i, new IntField(1000 + i));
+        Database.getBufferPool().insertTuple(tid, heap.getId(), t);
+        SystemTestUtil.matchTuples(new IndexOnlyScan(tid, index, "heap",
+                new IndexPredicate(Op.EQUALS, new IntField(1003))), Collections.singletonList(Arrays.asList(1001, 1003)));
+    }
+
+    @Test public void plannerChoosesIndexOnlyScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(6, 20000, 10000, null, tuples, "c");
+        Database.getCatalog().addTable(big, "big");
+        SecondaryIndex.build(tid, big.getId(), 1, tempFile(), "big_c1", 3);
+        TableStats.setTableStats("big", new TableStats(big.getId(), 1000));
+
+        // the index stores every field the query reads, in fewer pages than the table
+        OpIterator plan = plan(tid, "SELECT big.c3 FROM big WHERE big.c1 < 2000;");
+        assertTrue(planUses(plan, IndexOnlyScan.class));
+        SystemTestUtil.matchTuples(plan, project(matching(tuples, 1, Op.LESS_THAN, 2000), 3));
+
+        plan = plan(tid, "SELECT big.c1, big.c3 FROM big;");
+        assertTrue(planUses(plan, IndexOnlyScan.class));
+        SystemTestUtil.matchTuples(plan, project(tuples, 1, 3));
+
+        // but not c2
+        plan = plan(tid, "SELECT big.c2 FROM big WHERE big.c1 < 2000;");
+        assertFalse(planUses(plan, IndexOnlyScan.class));
+        SystemTestUtil.matchTuples(plan, project(matching(tuples, 1, Op.LESS_THAN, 2000), 2));
+    }
+
+    private static List<Integer> keys(OpIterator plan, int field) throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            keys.add(((IntField) plan.next().getField(field)).getValue());
+        plan.close();
+        return keys;
+    }
+
+    @Test public void plannerUsesBTreeOrder() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 20000, 10000, null, tuples, "c");
+        Database.getCatalog().addTable(heap, "heap");
+        BTreeFile tree = new BTreeBulkLoader(0).load(tid, heap, tempFile(), "tree");
+        TableStats.setTableStats("tree", new TableStats(tree.getId(), 1000));
+        List<Integer> sorted = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            sorted.add(t.get(0));
+        Collections.sort(sorted);
+
+        // the largest keys are read off the right end of the tree, with no sort
+        OpIterator plan = plan(tid, "SELECT * FROM tree ORDER BY tree.c0 DESC LIMIT 10;");
+        assertTrue(planUses(plan, BTreeScan.class));
+        assertFalse(planUses(plan, OrderBy.class));
+        List<Integer> expected = new ArrayList<>(sorted.subList(sorted.size() - 10, sorted.size()));
+        Collections.reverse(expected);
+        assertEquals(expected, keys(plan, 0));
+
+        // both filters bound a single range scan, which returns the keys in order
+        plan = plan(tid, "SELECT * FROM tree WHERE tree.c0 >= 100 AND tree.c0 < 200 ORDER BY tree.c0;");
+        assertTrue(planUses(plan, BTreeScan.class));
+        assertFalse(planUses(plan, OrderBy.class));
+        assertFalse(planUses(plan, Filter.class));
+        SystemTestUtil.matchTuples(plan, matching(matching(tuples, 0, Op.GREATER_THAN_OR_EQ, 100), 0, Op.LESS_THAN, 200));
+        expected = new ArrayList<>();
+        for (int k : sorted) {
+            if (k >= 100 && k < 200)
+                expected.add(k);
+        }
+        assertEquals(expected, keys(plan, 0));
+
+        // ordering by another field still sorts
+        plan = plan(tid, "SELECT * FROM tree ORDER BY tree.c1 LIMIT 10;");
+        assertTrue(planUses(plan, OrderBy.class));
+        assertEquals(10, keys(plan, 1).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -11,6 +11,8 @@ import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -436,6 +438,123 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestCheckpointDropsOldSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // fill more than one log segment, checkpoint, crash
+        // segments before the checkpoint are deleted, data survives
+
+        for (int i = 0; i < 200; i++)
+            doInsert(hf1, 100 + i, -1);
+        File firstSegment = new File("log.00000000");
+        assertTrue(firstSegment.exists());
+
+        Database.getLogFile().logCheckpoint();
+        assertFalse(firstSegment.exists());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 100, true);
+        look(hf1, t, 299, true);
+        look(hf1, t, 300, false);
+        t.commit();
+    }
+
+    @Test public void TestInterleavedAbortOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 30, 31);
+
+        // *** Test:
+        // T1 and T2 interleave their updates to different tables
+        // T1 aborts: its chain undoes only its own pages
+        // T3 inserts into T1's table and commits
+        // crash with T2 open: its chain undoes only its own pages
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t1, 40);
+        insertRow(hf2, t2, 50);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf1, t1, 41);
+        insertRow(hf2, t2, 51);
+        abort(t1);
+
+        look(hf2, t2, 30, true);
+        look(hf2, t2, 50, true);
+        look(hf2, t2, 51, true);
+
+        doInsert(hf1, 42, -1);
+        insertRow(hf2, t2, 52);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 40, false);
+        look(hf1, t, 41, false);
+        look(hf1, t, 42, true);
+        look(hf2, t, 30, true);
+        look(hf2, t, 31, true);
+        look(hf2, t, 50, false);
+        look(hf2, t, 51, false);
+        look(hf2, t, 52, false);
+        t.commit();
+    }
+
+    @Test public void TestBTreeOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File bfile = new File("simplebtree.db");
+        bfile.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(bfile.getAbsolutePath(), 2, 0);
+
+        // *** Test:
+        // T1 fills the B+ tree past one leaf and commits
+        // T2 inserts enough to split leaves and update the internal page
+        // crash with T2 open
+        // the leaf and internal pages are rolled back to T1's images
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        t.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 2000; i < 2600; i++)
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, bfile, 0);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int expected = 0;
+        while (it.hasNext())
+            assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+        it.close();
+        assertEquals(1000, expected);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,185 @@
+package simpledb.systemtest;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static List<List<Integer>> expected(List<List<Integer>> tuples1, List<List<Integer>> tuples2, Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : tuples1) {
+            for (List<Integer> t2 : tuples2) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    List<Integer> t = new ArrayList<>(t1);
+                    t.addAll(t2);
+                    expected.add(t);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private SortMergeJoin mergeJoin(HeapFile f1, HeapFile f2, Op op) {
+        return new SortMergeJoin(new JoinPredicate(0, op, 0),
+                new OrderBy(0, true, new SeqScan(tid, f1.getId(), "t1")),
+                new OrderBy(0, true, new SeqScan(tid, f2.getId(), "t2")));
+    }
+
+    @Test public void testMergeJoins() throws Exception {
+        // few distinct values, so that both sides have runs of duplicates
+        List<List<Integer>> tuples1 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 300, 40, null, tuples1, "c");
+        List<List<Integer>> tuples2 = new ArrayList<>();
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(3, 200, 40, null, tuples2, "c");
+
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ,
+                Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+            SystemTestUtil.matchTuples(mergeJoin(f1, f2, op), expected(tuples1, tuples2, op));
+        }
+    }
+
+    @Test public void testNoMatches() throws Exception {
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(0, 1);
+        List<List<Integer>> tuples1 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 10, columnSpecification, tuples1);
+        columnSpecification.put(0, 2);
+        List<List<Integer>> tuples2 = new ArrayList<>();
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 10, columnSpecification, tuples2);
+
+        SystemTestUtil.matchTuples(mergeJoin(f1, f2, Op.EQUALS), new ArrayList<>());
+        SystemTestUtil.matchTuples(mergeJoin(f1, f2, Op.GREATER_THAN), new ArrayList<>());
+        SystemTestUtil.matchTuples(mergeJoin(f1, f2, Op.LESS_THAN), expected(tuples1, tuples2, Op.LESS_THAN));
+    }
+
+    @Test public void testRewind() throws Exception {
+        List<List<Integer>> tuples1 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, tuples1, "c");
+        List<List<Integer>> tuples2 = new ArrayList<>();
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, tuples2, "c");
+
+        SortMergeJoin join = mergeJoin(f1, f2, Op.EQUALS);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.rewind();
+        int again = 0;
+        while (join.hasNext()) {
+            join.next();
+            again++;
+        }
+        join.close();
+        assertEquals(expected(tuples1, tuples2, Op.EQUALS).size(), count);
+        assertEquals(count, again);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotEqualsIsRejected() throws Exception {
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        mergeJoin(f1, f2, Op.NOT_EQUALS);
+    }
+
+    private static boolean planUses(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && planUses(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private BTreeFile btree(String name, List<List<Integer>> tuples) throws Exception {
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 30000, 100000, null, tuples, "c");
+        BTreeFile tree = new BTreeBulkLoader(0).load(tid, heap, tempFile(), name);
+        TableStats.setTableStats(name, new TableStats(tree.getId(), 1000));
+        return tree;
+    }
+
+    @Test public void plannerMergesSortedTables() throws Exception {
+        List<List<Integer>> tuples1 = new ArrayList<>();
+        btree("fa", tuples1);
+        List<List<Integer>> tuples2 = new ArrayList<>();
+        btree("fb", tuples2);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        // both trees are read in key order, too many tuples to hash at once,
+        // and the merge returns them in the order asked for
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM fa, fb WHERE fa.c0 = fb.c0 ORDER BY fa.c0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(planUses(plan, SortMergeJoin.class));
+        assertFalse(planUses(plan, HashEquiJoin.class));
+        assertFalse(planUses(plan, OrderBy.class));
+
+        List<List<Integer>> expected = expected(tuples1, tuples2, Op.EQUALS);
+        SystemTestUtil.matchTuples(plan, expected);
+        plan.open();
+        int last = Integer.MIN_VALUE;
+        int count = 0;
+        while (plan.hasNext()) {
+            int key = ((IntField) plan.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+            count++;
+        }
+        plan.close();
+        assertEquals(expected.size(), count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}